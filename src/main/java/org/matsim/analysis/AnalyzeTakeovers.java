@@ -1,8 +1,10 @@
 package org.matsim.analysis;
 
-import org.apache.commons.lang3.tuple.Pair;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.events.BinaryEventsReader;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.events.Event;
 import org.matsim.api.core.v01.events.LinkEnterEvent;
@@ -11,6 +13,7 @@ import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
 import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.api.experimental.events.GenericEvent;
 import org.matsim.core.api.experimental.events.LaneEnterEvent;
 import org.matsim.core.api.experimental.events.LaneLeaveEvent;
 import org.matsim.core.api.experimental.events.handler.LaneEnterEventHandler;
@@ -18,6 +21,7 @@ import org.matsim.core.api.experimental.events.handler.LaneLeaveEventHandler;
 import org.matsim.core.events.EventsManagerImpl;
 import org.matsim.core.events.MatsimEventsReader;
 import org.matsim.lanes.Lane;
+import org.matsim.vehicles.Vehicle;
 import picocli.CommandLine;
 
 import java.nio.file.Path;
@@ -25,6 +29,12 @@ import java.util.*;
 import java.util.concurrent.Callable;
 
 
+/**
+ * Counts overtakes, i.e. a vehicle entering a link after another one, but leaving it before.
+ * <p>
+ * Events are processed as a stream. Enter and leave events are paired per vehicle, and only the resulting visits are stored per link.
+ * Overtakes on a link are then counted as inversions of the leave order, which needs O(n log n) per link.
+ */
 @CommandLine.Command(
         name = "analyzeTakeovers",
         description = "Analyze takeover of vehicles on one link, but different lanes."
@@ -33,11 +43,28 @@ public class AnalyzeTakeovers implements Callable<Integer>, LinkEnterEventHandle
 
     private static final Logger log = LogManager.getLogger(AnalyzeTakeovers.class);
 
+    /**
+     * Maximum time for one vehicle on a link, longer visits are ignored.
+     */
+    private static final double TIME_THRESHOLD = 300;
+
+    /**
+     * Lane index of visits without lane information.
+     */
+    private static final int NO_LANE = -1;
+
     @CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Input event file")
     private Path input;
 
-    private List<Event> events;
-    private int countOvertakes = 0;
+    /**
+     * Currently open visit of each vehicle.
+     */
+    private final Map<Id<Vehicle>, OpenVisit> open = new HashMap<>();
+
+    /**
+     * Completed visits per link.
+     */
+    private final Map<Id<Link>, Visits> visits = new HashMap<>();
 
     public static void main(String[] args) {
         System.exit(new CommandLine(new AnalyzeTakeovers()).execute(args));
@@ -46,43 +73,36 @@ public class AnalyzeTakeovers implements Callable<Integer>, LinkEnterEventHandle
     @Override
     public Integer call() throws Exception {
 
-        events = new ArrayList<>();
-
         EventsManager manager = new EventsManagerImpl();
         manager.addHandler(this);
         manager.initProcessing();
 
-        MatsimEventsReader reader = new MatsimEventsReader(manager);
-
-        reader.addCustomEventMapper(LaneLeaveEvent.EVENT_TYPE, event ->
-                new LaneLeaveEvent(
-                        event.getTime(),
-                        Id.createVehicleId(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_VEHICLE)),
-                        Id.createLinkId(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_LINK)),
-                        Id.create(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_LANE), Lane.class)
-                )
-        );
-
-        reader.addCustomEventMapper(LaneEnterEvent.EVENT_TYPE, event ->
-                new LaneEnterEvent(
-                        event.getTime(),
-                        Id.createVehicleId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_VEHICLE)),
-                        Id.createLinkId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LINK)),
-                        Id.create(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LANE), Lane.class)
-                )
-        );
-
+        if (BinaryEventsReader.isBinary(input.toString())) {
+            BinaryEventsReader reader = new BinaryEventsReader(manager);
+            reader.addCustomEventMapper(LaneEnterEvent.EVENT_TYPE, AnalyzeTakeovers::mapLaneEnter);
+            reader.readFile(input.toString());
+        } else {
+            MatsimEventsReader reader = new MatsimEventsReader(manager);
+            reader.addCustomEventMapper(LaneEnterEvent.EVENT_TYPE, AnalyzeTakeovers::mapLaneEnter);
+            reader.readFile(input.toString());
+        }
 
-        reader.readFile(input.toString());
         manager.finishProcessing();
 
-        log.info("Read {} events", events.size());
-
-        analyze(events);
+        countOvertakes();
 
         return 0;
     }
 
+    private static LaneEnterEvent mapLaneEnter(GenericEvent event) {
+        return new LaneEnterEvent(
+                event.getTime(),
+                Id.createVehicleId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_VEHICLE)),
+                Id.createLinkId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LINK)),
+                Id.create(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LANE), Lane.class)
+        );
+    }
+
     /**
      * Analyze events for takeover maneuver
      *
@@ -90,139 +110,211 @@ public class AnalyzeTakeovers implements Callable<Integer>, LinkEnterEventHandle
      */
     int analyze(List<Event> events) {
 
-        Map<Id<Link>, List<LinkEnterEvent>> linkEntered = new HashMap<>();
-        Map<Id<Link>, List<LinkLeaveEvent>> linkLeave = new HashMap<>();
-        Map<Id<Link>, List<Event>> laneEvents = new HashMap<>();
+        open.clear();
+        visits.clear();
 
-        // maximum time for one vehicle on a link
-        double timeThreshold = 300;
+        // visits can only be paired in chronological order
+        List<Event> sorted = new ArrayList<>(events);
+        sorted.sort(Comparator.comparingDouble(Event::getTime));
 
-        for (Event value : events) {
+        for (Event event : sorted) {
+            if (event instanceof LinkEnterEvent)
+                handleEvent((LinkEnterEvent) event);
+            else if (event instanceof LinkLeaveEvent)
+                handleEvent((LinkLeaveEvent) event);
+            else if (event instanceof LaneEnterEvent)
+                handleEvent((LaneEnterEvent) event);
+        }
 
-            Id<Link> linkTemp = Id.createLinkId(value.getAttributes().get("link"));
+        return countOvertakes();
+    }
 
-            if (linkTemp.toString().startsWith("pt_"))
-                continue;
-            if (value instanceof LinkEnterEvent)
-                linkEntered.computeIfAbsent(linkTemp, (k) -> new ArrayList<>()).add((LinkEnterEvent) value);
-            else if (value instanceof LinkLeaveEvent)
-                linkLeave.computeIfAbsent(linkTemp, (k) -> new ArrayList<>()).add((LinkLeaveEvent) value);
-            else if (value instanceof LaneEnterEvent || value instanceof LaneLeaveEvent)
-                laneEvents.computeIfAbsent(linkTemp, (k) -> new ArrayList<>()).add(value);
-        }
+    /**
+     * Count overtakes on all links. Links are processed in parallel.
+     */
+    private int countOvertakes() {
 
-        linkEntered.values().forEach(l -> l.sort(Comparator.comparingDouble(Event::getTime)));
-        linkLeave.values().forEach(l -> l.sort(Comparator.comparingDouble(Event::getTime)));
+        log.info("Total amount of links: {}", visits.size());
 
-        Map<Id<Link>, List<Pair<LinkEnterEvent, LinkLeaveEvent>>> linkPairs = new HashMap<>();
+        long total = visits.values().parallelStream().mapToLong(v -> v.countInversions(false)).sum();
+        long sameLane = visits.values().parallelStream().mapToLong(v -> v.countInversions(true)).sum();
 
-        log.info("Total amount of links: " + linkEntered.keySet().size());
+        log.info("########################## {} Overtakes were found ##########################", total);
+        log.info("{} overtakes happened on the same lane, {} on different lanes or without lane information", sameLane, total - sameLane);
 
-        for (Map.Entry<Id<Link>, List<LinkEnterEvent>> e : linkEntered.entrySet()) {
+        return Math.toIntExact(total);
+    }
 
-            Id<Link> link = e.getKey();
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
 
-            for (LinkEnterEvent linkEnterEvent : e.getValue()) {
+        if (event.getLinkId().toString().startsWith("pt_"))
+            return;
 
-                LinkLeaveEvent linkLeaveEvent = new LinkLeaveEvent(0, Id.createVehicleId(""), Id.createLinkId(""));
+        // an unfinished visit of the same vehicle is discarded
+        open.put(event.getVehicleId(), new OpenVisit(event.getLinkId(), event.getTime()));
+    }
 
-                try {
-                    for (LinkLeaveEvent otherLinkLeave : linkLeave.get(link)) {
-                        if (otherLinkLeave.getVehicleId().equals(linkEnterEvent.getVehicleId())) {
-                            if (linkLeaveEvent.getAttributes().get("vehicle").equals("") && otherLinkLeave.getTime() > linkEnterEvent.getTime()) {
-                                linkLeaveEvent = otherLinkLeave;
-                            } else {
-                                if (linkLeaveEvent.getTime() > otherLinkLeave.getTime()) {
-                                    if (otherLinkLeave.getTime() > linkEnterEvent.getTime()) {
-                                        linkLeaveEvent = otherLinkLeave;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } catch (NullPointerException ignored) {
-                }
+    @Override
+    public void handleEvent(LinkLeaveEvent event) {
 
-                for (LinkEnterEvent linkEnterEventTwo : e.getValue()) {
-                    if(linkEnterEvent.getVehicleId().equals(linkEnterEventTwo.getVehicleId())) {
-                        if (linkEnterEventTwo.getTime() > linkEnterEvent.getTime() && linkEnterEventTwo.getTime() < linkLeaveEvent.getTime()) {
-                            linkLeaveEvent.setTime(0);
-                        }
-                    }
-                }
+        OpenVisit visit = open.get(event.getVehicleId());
+        if (visit == null || !visit.link.equals(event.getLinkId()))
+            return;
 
-                if (linkLeaveEvent.getTime() != 0) {
-                    if ((linkLeaveEvent.getTime() - linkEnterEvent.getTime()) < timeThreshold) {
-                        linkPairs.computeIfAbsent(link, (k) -> new ArrayList<>())
-                                .add(Pair.of(linkEnterEvent, linkLeaveEvent));
-                    }
-                }
-            }
+        open.remove(event.getVehicleId());
+
+        if (event.getTime() - visit.enter < TIME_THRESHOLD)
+            visits.computeIfAbsent(visit.link, k -> new Visits()).add(visit.enter, event.getTime(), visit.lane);
+    }
+
+    @Override
+    public void handleEvent(LaneEnterEvent event) {
+
+        OpenVisit visit = open.get(event.getVehicleId());
+
+        // the first lane entered on a link is used for the visit
+        if (visit != null && visit.lane == NO_LANE && visit.link.equals(event.getLinkId()))
+            visit.lane = event.getLaneId().index();
+    }
+
+    @Override
+    public void handleEvent(LaneLeaveEvent event) {
+        // not needed
+    }
+
+    /**
+     * Vehicle that entered a link, but did not leave it yet.
+     */
+    private static final class OpenVisit {
+
+        private final Id<Link> link;
+        private final double enter;
+        private int lane = NO_LANE;
+
+        private OpenVisit(Id<Link> link, double enter) {
+            this.link = link;
+            this.enter = enter;
         }
+    }
 
-        log.info("Added all pairs!");
+    /**
+     * Completed visits of one link.
+     */
+    private static final class Visits {
 
-        linkPairs.entrySet().parallelStream().forEach(e -> {
-            List<Pair<LinkEnterEvent, LinkLeaveEvent>> pairs = e.getValue();
+        private final DoubleArrayList enter = new DoubleArrayList();
+        private final DoubleArrayList leave = new DoubleArrayList();
+        private final IntArrayList lane = new IntArrayList();
 
-            for (int i = 0; i < pairs.size(); i++) {
-                for (Pair<LinkEnterEvent, LinkLeaveEvent> pair : pairs) {
-                    checkLinkForTakeovers(pairs.get(i), pair, laneEvents.get(pair.getLeft().getLinkId()));
-                }
+        private void add(double enterTime, double leaveTime, int laneIdx) {
+            enter.add(enterTime);
+            leave.add(leaveTime);
+            lane.add(laneIdx);
+        }
+
+        /**
+         * Count pairs of visits where one enters strictly before and leaves strictly after the other one.
+         *
+         * @param sameLane only count pairs where both vehicles are on the same known lane
+         */
+        private long countInversions(boolean sameLane) {
+
+            int n = enter.size();
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++)
+                order[i] = i;
+
+            // sort by lane, then by enter time
+            Arrays.sort(order, Comparator.<Integer>comparingInt(i -> sameLane ? lane.getInt(i) : NO_LANE)
+                    .thenComparingDouble(enter::getDouble));
+
+            // rank of leave times, equal times share the same rank
+            double[] times = leave.toDoubleArray();
+            Arrays.sort(times);
+            int distinct = 0;
+            for (int k = 0; k < n; k++) {
+                if (k == 0 || times[k] != times[distinct - 1])
+                    times[distinct++] = times[k];
             }
-        });
 
-        log.info("Checked all pairs for overtake!");
-        log.info("########################## " + countOvertakes + " Overtakes were found ##########################");
+            int[] rank = new int[n];
+            for (int k = 0; k < n; k++)
+                rank[k] = Arrays.binarySearch(times, 0, distinct, leave.getDouble(k));
 
-        return countOvertakes;
-    }
+            FenwickTree tree = new FenwickTree(distinct);
+            long count = 0;
+
+            int i = 0;
+            while (i < n) {
+
+                int group = sameLane ? lane.getInt(order[i]) : NO_LANE;
+
+                // vehicles without lane information are never on the same lane
+                if (sameLane && group == NO_LANE) {
+                    while (i < n && lane.getInt(order[i]) == NO_LANE)
+                        i++;
+                    continue;
+                }
+
+                tree.clear();
+                int inserted = 0;
+
+                while (i < n && (!sameLane || lane.getInt(order[i]) == group)) {
 
-    private void checkLinkForTakeovers(Pair<LinkEnterEvent, LinkLeaveEvent> p1, Pair<LinkEnterEvent, LinkLeaveEvent> p2, List<Event> laneEvents) {
-        if (p1.getLeft().getTime() < p2.getLeft().getTime() && p1.getRight().getTime() > p2.getRight().getTime()) {
-            log.info("################################ Found Overtake ################################");
-            log.info("Vehicle " + p2.getLeft().getVehicleId() + " has overtaken vehicle " +
-                    p1.getLeft().getVehicleId() + " on the link " + p1.getLeft().getLinkId() + ".");
-            log.info("Enter Event 1: " + p1.getLeft().getTime());
-            log.info("Leave Event 1: " + p1.getRight().getTime());
-            log.info("Enter Event 2: " + p2.getLeft().getTime());
-            log.info("Leave Event 2: " + p2.getRight().getTime());
-
-            try {
-                for (Event laneEvent : laneEvents) {
-
-                    if (laneEvent.getTime() == p1.getLeft().getTime()) {
-                        log.info("Event 1 lane: " + laneEvent.getAttributes().get("lane"));
+                    // all visits with the same enter time are queried before any of them is inserted
+                    int j = i;
+                    double time = enter.getDouble(order[i]);
+                    while (j < n && enter.getDouble(order[j]) == time && (!sameLane || lane.getInt(order[j]) == group)) {
+                        // earlier entered vehicles that leave strictly later
+                        count += inserted - tree.sum(rank[order[j]]);
+                        j++;
                     }
 
-                    if (laneEvent.getTime() == p2.getLeft().getTime()) {
-                        log.info("Event 2 lane: " + laneEvent.getAttributes().get("lane"));
+                    for (int k = i; k < j; k++) {
+                        tree.add(rank[order[k]]);
+                        inserted++;
                     }
-                }
-            } catch (NullPointerException ignored) {}
 
-            countOvertakes += 1;
+                    i = j;
+                }
+            }
 
+            return count;
         }
     }
 
-    @Override
-    public void handleEvent(LinkEnterEvent linkEnterEvent) {
-        events.add(linkEnterEvent);
-    }
+    /**
+     * Binary indexed tree over counts, used to count inversions.
+     */
+    private static final class FenwickTree {
 
-    @Override
-    public void handleEvent(LinkLeaveEvent linkLeaveEvent) {
-        events.add(linkLeaveEvent);
-    }
+        private final int[] tree;
 
-    @Override
-    public void handleEvent(LaneEnterEvent laneEnterEvent) {
-        events.add(laneEnterEvent);
-    }
+        private FenwickTree(int n) {
+            tree = new int[n + 1];
+        }
 
-    @Override
-    public void handleEvent(LaneLeaveEvent laneLeaveEvent) {
-        events.add(laneLeaveEvent);
+        private void clear() {
+            Arrays.fill(tree, 0);
+        }
+
+        /**
+         * Increment the count at index (zero based).
+         */
+        private void add(int idx) {
+            for (int i = idx + 1; i < tree.length; i += i & -i)
+                tree[i]++;
+        }
+
+        /**
+         * Sum of counts from 0 to index inclusive.
+         */
+        private int sum(int idx) {
+            int s = 0;
+            for (int i = idx + 1; i > 0; i -= i & -i)
+                s += tree[i];
+            return s;
+        }
     }
 }
@@ -0,0 +1,324 @@
+package org.matsim.analysis;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.analysis.events.BinaryEventsReader;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.gbl.MatsimRandom;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
+import org.matsim.core.router.costcalculators.RandomizingTimeDistanceTravelDisutilityFactory;
+import org.matsim.core.router.speedy.SpeedyALTFactory;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.core.utils.io.IOUtils;
+import picocli.CommandLine;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.matsim.run.RunDuesseldorfScenario.VERSION;
+
+/**
+ * Routes a large number of origin destination pairs on the car network in parallel.
+ * <p>
+ * Input is either a csv with the columns {@code from,to,time}, containing link ids and departure time in seconds,
+ * or a binary file with the same fields written by {@link java.io.DataOutput#writeUTF(String)} and {@link java.io.DataOutput#writeDouble(double)}.
+ * Travel times are taken from a {@link TravelTimeMatrix}, built from events or read from a file, and default to free flow.
+ * Routes are computed between the to node of the origin link and the from node of the destination link. Unconnected pairs are written with NaN values.
+ */
+@CommandLine.Command(
+		name = "batch-routing",
+		description = "Route origin destination pairs in parallel",
+		showDefaultValues = true
+)
+public class BatchRouting implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(BatchRouting.class);
+
+	/**
+	 * Number of routes processed as one unit of work.
+	 */
+	private static final int CHUNK_SIZE = 1000;
+
+	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Input csv or binary (.bin) file with od pairs")
+	private Path input;
+
+	@CommandLine.Option(names = "--config", description = "Config with the scoring parameters used for the travel disutility",
+			defaultValue = "scenarios/input/duesseldorf-v1.0-1pct.config.xml")
+	private Path configPath;
+
+	@CommandLine.Option(names = "--network", description = "Network xml", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-network.xml.gz")
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--travel-times", description = "Travel time matrix file, created from --events if it does not exist")
+	private Path travelTimes;
+
+	@CommandLine.Option(names = "--events", description = "Events to build the travel times from")
+	private Path events;
+
+	@CommandLine.Option(names = "--output", description = "Output csv", required = true)
+	private Path output;
+
+	@CommandLine.Option(names = "--links", description = "Write the link sequence of each route", defaultValue = "false")
+	private boolean writeLinks;
+
+	@CommandLine.Option(names = "--threads", description = "Number of routing threads")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	@CommandLine.Option(names = "--seed", description = "Random seed for the travel disutility", defaultValue = "4711")
+	private long seed;
+
+	public static void main(String[] args) {
+		new BatchRouting().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		Config config = ConfigUtils.loadConfig(configPath.toString());
+
+		Network network = NetworkUtils.createNetwork();
+		new TransportModeNetworkFilter(NetworkUtils.readNetwork(networkPath.toString())).filter(network, Set.of(TransportMode.car));
+
+		TravelTime tt = createTravelTime(network);
+
+		List<Od> ods = readOds(network);
+		log.info("Read {} od pairs from {}", ods.size(), input);
+
+		// disutilities are created in fixed order, and each worker always processes the same chunks, so results are reproducible
+		MatsimRandom.reset(seed);
+		RandomizingTimeDistanceTravelDisutilityFactory disutilityFactory = new RandomizingTimeDistanceTravelDisutilityFactory(TransportMode.car, config);
+
+		// the factory shares the graph and landmark data between all path calculators
+		SpeedyALTFactory factory = new SpeedyALTFactory();
+
+		List<LeastCostPathCalculator> calculators = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			TravelDisutility td = disutilityFactory.createTravelDisutility(tt);
+			calculators.add(factory.createPathCalculator(network, td, tt));
+		}
+
+		int chunks = (ods.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		List<CompletableFuture<List<Route>>> results = new ArrayList<>(chunks);
+		for (int i = 0; i < chunks; i++)
+			results.add(new CompletableFuture<>());
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		for (int w = 0; w < threads; w++) {
+			LeastCostPathCalculator router = calculators.get(w);
+			int worker = w;
+			executor.submit(() -> {
+				for (int c = worker; c < chunks; c += threads) {
+					try {
+						results.get(c).complete(route(router, writeLinks, ods.subList(c * CHUNK_SIZE, Math.min(ods.size(), (c + 1) * CHUNK_SIZE))));
+					} catch (Throwable e) {
+						// the writer waits for every chunk in order, so none of the remaining chunks of this worker may stay incomplete
+						for (int r = c; r < chunks; r += threads)
+							results.get(r).completeExceptionally(e);
+						return;
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		int n = 0;
+		int unreachable = 0;
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(output.toString()), CSVFormat.DEFAULT)) {
+
+			if (writeLinks)
+				printer.printRecord("from", "to", "time", "travel_time", "cost", "distance", "links");
+			else
+				printer.printRecord("from", "to", "time", "travel_time", "cost", "distance");
+
+			// results are written in input order as soon as they are available
+			for (int c = 0; c < chunks; c++) {
+				for (Route r : results.get(c).join()) {
+					if (Double.isNaN(r.travelTime))
+						unreachable++;
+
+					if (writeLinks)
+						printer.printRecord(r.od.from, r.od.to, r.od.time, r.travelTime, r.cost, r.distance, r.links);
+					else
+						printer.printRecord(r.od.from, r.od.to, r.od.time, r.travelTime, r.cost, r.distance);
+				}
+
+				// release memory of written results
+				results.set(c, null);
+
+				n = Math.min(ods.size(), (c + 1) * CHUNK_SIZE);
+				if (c % 100 == 99)
+					log.info("Routed {} / {} od pairs, {} routes/s", n, ods.size(), throughput(n, start));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		log.info("Routed {} od pairs with {} threads in {} s, {} routes/s", n, threads, (System.nanoTime() - start) / 1e9, throughput(n, start));
+
+		if (unreachable > 0)
+			log.warn("{} od pairs are not connected, they are written with NaN travel time, cost and distance", unreachable);
+
+		return 0;
+	}
+
+	private TravelTime createTravelTime(Network network) throws IOException {
+
+		if (travelTimes != null && Files.exists(travelTimes)) {
+			log.info("Using travel times from {}", travelTimes);
+			return TravelTimeMatrix.read(travelTimes);
+		}
+
+		if (events == null) {
+			log.info("Using free flow travel times");
+			return new FreeSpeedTravelTime();
+		}
+
+		TravelTimeMatrix.Builder builder = new TravelTimeMatrix.Builder(network, 900, 97);
+		EventsManager manager = EventsUtils.createEventsManager();
+		manager.addHandler(builder);
+		manager.initProcessing();
+
+		if (BinaryEventsReader.isBinary(events.toString()))
+			new BinaryEventsReader(manager).readFile(events.toString());
+		else
+			new MatsimEventsReader(manager).readFile(events.toString());
+
+		manager.finishProcessing();
+
+		TravelTimeMatrix matrix = builder.build();
+		if (travelTimes != null) {
+			matrix.write(travelTimes);
+			log.info("Written travel times to {}", travelTimes);
+		}
+
+		return matrix;
+	}
+
+	private List<Od> readOds(Network network) throws IOException {
+
+		List<Od> ods = new ArrayList<>();
+
+		if (input.getFileName().toString().endsWith(".bin")) {
+			try (DataInputStream in = new DataInputStream(IOUtils.getInputStream(IOUtils.getFileUrl(input.toString())))) {
+				while (true) {
+					String from;
+					try {
+						from = in.readUTF();
+					} catch (EOFException e) {
+						break;
+					}
+					ods.add(createOd(network, from, in.readUTF(), in.readDouble()));
+				}
+			}
+		} else {
+			try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(input.toString()), CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
+				for (CSVRecord record : parser) {
+					ods.add(createOd(network, record.get("from"), record.get("to"), Double.parseDouble(record.get("time"))));
+				}
+			}
+		}
+
+		return ods;
+	}
+
+	private static Od createOd(Network network, String from, String to, double time) {
+
+		Link fromLink = network.getLinks().get(Id.createLinkId(from));
+		Link toLink = network.getLinks().get(Id.createLinkId(to));
+
+		if (fromLink == null || toLink == null)
+			throw new IllegalArgumentException(String.format("Link %s or %s is not part of the car network", from, to));
+
+		return new Od(fromLink, toLink, time);
+	}
+
+	private static List<Route> route(LeastCostPathCalculator router, boolean withLinks, List<Od> ods) {
+
+		List<Route> routes = new ArrayList<>(ods.size());
+		for (Od od : ods) {
+			LeastCostPathCalculator.Path path = router.calcLeastCostPath(od.fromLink.getToNode(), od.toLink.getFromNode(), od.time, null, null);
+
+			if (path == null) {
+				routes.add(new Route(od, Double.NaN, Double.NaN, Double.NaN, withLinks ? "" : null));
+				continue;
+			}
+
+			double distance = 0;
+			for (Link link : path.links)
+				distance += link.getLength();
+
+			String links = withLinks ? path.links.stream().map(l -> l.getId().toString()).collect(Collectors.joining(" ")) : null;
+			routes.add(new Route(od, path.travelTime, path.travelCost, distance, links));
+		}
+
+		return routes;
+	}
+
+	private static long throughput(int n, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return seconds > 0 ? Math.round(n / seconds) : 0;
+	}
+
+	private static final class Od {
+
+		private final Link fromLink;
+		private final Link toLink;
+		private final String from;
+		private final String to;
+		private final double time;
+
+		private Od(Link fromLink, Link toLink, double time) {
+			this.fromLink = fromLink;
+			this.toLink = toLink;
+			this.from = fromLink.getId().toString();
+			this.to = toLink.getId().toString();
+			this.time = time;
+		}
+	}
+
+	private static final class Route {
+
+		private final Od od;
+		private final double travelTime;
+		private final double cost;
+		private final double distance;
+		private final String links;
+
+		private Route(Od od, double travelTime, double cost, double distance, String links) {
+			this.od = od;
+			this.travelTime = travelTime;
+			this.cost = cost;
+			this.distance = distance;
+			this.links = links;
+		}
+	}
+}
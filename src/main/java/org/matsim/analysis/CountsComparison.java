@@ -0,0 +1,214 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.StartupListener;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.counts.Count;
+import org.matsim.counts.Counts;
+import org.matsim.counts.Volume;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Compares hourly link volumes with counts while the simulation is running, without the need to write events.
+ * <p>
+ * Only links with a count station are observed. Volumes are collected in one array with 24 hours per station and scaled to the full population.
+ * After each iteration the GEH statistic and relative errors are logged and written to {@code counts_comparison.csv}, together with one row per station and hour.
+ * The summary of all iterations is kept in {@code counts_geh.csv} in the output directory.
+ * <p>
+ * This class has to be bound as event handler and controler listener.
+ */
+public final class CountsComparison implements LinkLeaveEventHandler, StartupListener, IterationEndsListener {
+
+	private static final Logger log = LogManager.getLogger(CountsComparison.class);
+
+	@Inject
+	private OutputDirectoryHierarchy controlerIO;
+
+	@Inject
+	private Scenario scenario;
+
+	private final List<Count<Link>> stations = new ArrayList<>();
+
+	/**
+	 * Station slot for each link index, -1 if the link is not counted.
+	 */
+	private final int[] slot;
+
+	/**
+	 * Observed volumes per slot and hour, NaN if there is no value.
+	 */
+	private final double[] observed;
+
+	/**
+	 * Simulated vehicles per slot and hour.
+	 */
+	private final int[] simulated;
+
+	private final double scale;
+
+	/**
+	 * Transit vehicles are not part of the counts.
+	 */
+	private final BitSet transitVehicles = new BitSet();
+
+	private final List<double[]> summary = new ArrayList<>();
+
+	/**
+	 * @param scale factor from simulated to real vehicles
+	 */
+	public CountsComparison(Counts<Link> counts, double scale) {
+
+		this.scale = scale;
+		this.slot = new int[Id.getNumberOfIds(Link.class)];
+		Arrays.fill(slot, -1);
+
+		for (Count<Link> count : counts.getCounts().values()) {
+			int idx = count.getId().index();
+			if (slot[idx] != -1) {
+				log.warn("Multiple counts on link {}, only the first is compared", count.getId());
+				continue;
+			}
+
+			slot[idx] = stations.size();
+			stations.add(count);
+		}
+
+		this.observed = new double[stations.size() * 24];
+		this.simulated = new int[stations.size() * 24];
+
+		for (int s = 0; s < stations.size(); s++) {
+			for (int h = 0; h < 24; h++) {
+				Volume v = stations.get(s).getVolume(h + 1);
+				observed[s * 24 + h] = v != null ? v.getValue() : Double.NaN;
+			}
+		}
+	}
+
+	@Override
+	public void notifyStartup(StartupEvent event) {
+		for (Id<Vehicle> id : scenario.getTransitVehicles().getVehicles().keySet())
+			transitVehicles.set(id.index());
+
+		log.info("Comparing {} count stations, volumes are scaled by {}", stations.size(), scale);
+	}
+
+	@Override
+	public void reset(int iteration) {
+		Arrays.fill(simulated, 0);
+	}
+
+	@Override
+	public void handleEvent(LinkLeaveEvent event) {
+
+		int link = event.getLinkId().index();
+		if (link >= slot.length || slot[link] == -1)
+			return;
+
+		int hour = (int) (event.getTime() / 3600);
+		if (hour >= 24 || transitVehicles.get(event.getVehicleId().index()))
+			return;
+
+		simulated[slot[link] * 24 + hour]++;
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+
+		int n = 0;
+		int below5 = 0;
+		double geh = 0;
+		double relError = 0;
+		double absRelError = 0;
+		int relN = 0;
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getIterationFilename(event.getIteration(), "counts_comparison.csv")), CSVFormat.DEFAULT)) {
+			printer.printRecord("link", "station", "hour", "observed", "simulated", "geh");
+
+			for (int s = 0; s < stations.size(); s++) {
+				for (int h = 0; h < 24; h++) {
+					int i = s * 24 + h;
+					double c = observed[i];
+					if (Double.isNaN(c))
+						continue;
+
+					double m = simulated[i] * scale;
+					double g = geh(m, c);
+
+					n++;
+					geh += g;
+					if (g < 5)
+						below5++;
+
+					if (c > 0) {
+						relError += (m - c) / c;
+						absRelError += Math.abs(m - c) / c;
+						relN++;
+					}
+
+					Count<Link> count = stations.get(s);
+					printer.printRecord(count.getId(), count.getCsLabel(), h, c, m, g);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write counts comparison", e);
+		}
+
+		double[] row = {event.getIteration(), n, n > 0 ? geh / n : Double.NaN, n > 0 ? (double) below5 / n : Double.NaN,
+				relN > 0 ? relError / relN : Double.NaN, relN > 0 ? absRelError / relN : Double.NaN};
+
+		summary.add(row);
+
+		log.info("Counts comparison: mean GEH {}, share GEH < 5 {}, mean rel. error {}, mean abs. rel. error {} ({} station hours)",
+				row[2], row[3], row[4], row[5], n);
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getOutputFilename("counts_geh.csv")), CSVFormat.DEFAULT)) {
+			printer.printRecord("iteration", "station_hours", "mean_geh", "share_geh_below_5", "mean_rel_error", "mean_abs_rel_error");
+			for (double[] r : summary) {
+				printer.printRecord((int) r[0], (int) r[1], r[2], r[3], r[4], r[5]);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write counts summary", e);
+		}
+	}
+
+	/**
+	 * Factor from simulated to real vehicles, the same scaling as the flow capacity.
+	 *
+	 * @param sampleSize       sample size in percent
+	 * @param demandCorrection factor of the demand correction
+	 */
+	public static double scale(double sampleSize, double demandCorrection) {
+		return 100 * demandCorrection / sampleSize;
+	}
+
+	/**
+	 * GEH statistic of a simulated and counted hourly volume.
+	 */
+	static double geh(double simulated, double counted) {
+		if (simulated + counted == 0)
+			return 0;
+
+		double d = simulated - counted;
+		return Math.sqrt(2 * d * d / (simulated + counted));
+	}
+}
@@ -0,0 +1,259 @@
+package org.matsim.analysis;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.matsim.analysis.events.BinaryEventsReader;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.application.options.ShpOptions;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.run.RunDuesseldorfScenario;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import picocli.CommandLine;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.matsim.run.RunDuesseldorfScenario.VERSION;
+
+/**
+ * Computes hourly noise immissions at receiver points from the link volumes of a run.
+ * <p>
+ * The geometric part of the calculation is stored in a {@link NoiseInfluenceIndex}, which is cached in a directory and reused by all runs
+ * with the same network, receiver points and barriers. Only the emissions of the links are computed for each run.
+ */
+@CommandLine.Command(
+		name = "noise-immission",
+		description = "Compute noise immissions with a reusable receiver point index",
+		showDefaultValues = true
+)
+public class NoiseImmission implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(NoiseImmission.class);
+
+	@CommandLine.Option(names = "--events", description = "Events of the run", required = true)
+	private Path events;
+
+	@CommandLine.Option(names = "--network", description = "Network xml", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-network.xml.gz")
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--barriers", description = "GeoJSON with noise barrier polygons, see PrepareNoiseBarrierFile")
+	private Path barrierPath;
+
+	@CommandLine.Option(names = "--index-cache", description = "Directory for the influence indices", defaultValue = "noise-index")
+	private Path cache;
+
+	@CommandLine.Option(names = "--gap", description = "Distance between receiver points in meters", defaultValue = "250")
+	private double gap;
+
+	@CommandLine.Option(names = "--radius", description = "Maximum distance of links to a receiver point in meters", defaultValue = "500")
+	private double radius;
+
+	@CommandLine.Option(names = "--barrier-correction", description = "Correction in dB if a barrier is between link and receiver point", defaultValue = "-10")
+	private double barrierCorrection;
+
+	@CommandLine.Option(names = "--sample-size", description = "Sample size of the run in percent", defaultValue = "25")
+	private double sampleSize;
+
+	@CommandLine.Option(names = "--hgv-prefix", description = "Prefix of heavy goods vehicle ids", defaultValue = "freight")
+	private String hgvPrefix;
+
+	@CommandLine.Option(names = "--output", description = "Output csv", required = true)
+	private Path output;
+
+	@CommandLine.Mixin
+	private ShpOptions shp = new ShpOptions();
+
+	public static void main(String[] args) {
+		new NoiseImmission().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		Network network = NetworkUtils.readNetwork(networkPath.toString());
+		Predicate<Link> filter = l -> l.getAllowedModes().contains(TransportMode.car);
+
+		List<Coord> receivers = createReceivers();
+		List<Geometry> barriers = barrierPath != null ? readBarriers(barrierPath) : List.of();
+		byte[] barrierFile = barrierPath != null ? Files.readAllBytes(barrierPath) : new byte[0];
+
+		String hash = NoiseInfluenceIndex.hash(receivers, network, filter, barrierFile, radius, barrierCorrection);
+		Path indexPath = cache.resolve("noise-influence-" + hash.substring(0, 16) + ".bin");
+
+		NoiseInfluenceIndex index;
+		if (Files.exists(indexPath)) {
+			index = NoiseInfluenceIndex.read(indexPath);
+			log.info("Using influence index {}", indexPath);
+		} else {
+			long start = System.currentTimeMillis();
+			index = NoiseInfluenceIndex.build(receivers, network, filter, barriers, radius, barrierCorrection);
+			log.info("Built influence index for {} receivers with {} entries in {} ms", receivers.size(), index.size(), System.currentTimeMillis() - start);
+
+			// other runs may read the cache concurrently, so the file only appears when it is complete
+			Files.createDirectories(cache);
+			Path tmp = Files.createTempFile(cache, "noise-influence-", ".tmp");
+			try {
+				index.write(tmp);
+				Files.move(tmp, indexPath, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+
+		Volumes volumes = new Volumes(index.getLinks(), hgvPrefix);
+		EventsManager manager = EventsUtils.createEventsManager();
+		manager.addHandler(volumes);
+		manager.initProcessing();
+
+		if (BinaryEventsReader.isBinary(events.toString()))
+			new BinaryEventsReader(manager).readFile(events.toString());
+		else
+			new MatsimEventsReader(manager).readFile(events.toString());
+
+		manager.finishProcessing();
+
+		double scale = 100 / sampleSize;
+		List<Id<Link>> links = index.getLinks();
+
+		double[] vCar = new double[links.size()];
+		double[] vHgv = new double[links.size()];
+		for (int i = 0; i < links.size(); i++) {
+			double v = network.getLinks().get(links.get(i)).getFreespeed() * 3.6;
+			vCar[i] = Math.max(30, Math.min(130, v));
+			vHgv[i] = Math.max(30, Math.min(80, v));
+		}
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(output.toString()), CSVFormat.DEFAULT)) {
+			printer.printRecord("x", "y", "hour", "immission");
+
+			double[] emission = new double[links.size()];
+			for (int h = 0; h < 24; h++) {
+				for (int i = 0; i < links.size(); i++)
+					emission[i] = NoiseInfluenceIndex.emission(volumes.cars[i * 24 + h] * scale, volumes.hgv[i * 24 + h] * scale, vCar[i], vHgv[i]);
+
+				double[] immission = index.immission(emission);
+				for (int r = 0; r < immission.length; r++) {
+					if (immission[r] > 0) {
+						Coord c = index.getReceiver(r);
+						printer.printRecord(c.getX(), c.getY(), h, immission[r]);
+					}
+				}
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Regular grid within the shape file, or the scenario extent.
+	 */
+	private List<Coord> createReceivers() {
+
+		PreparedGeometry area = null;
+		Envelope envelope;
+		if (shp.getShapeFile() != null) {
+			Geometry geom = shp.getGeometry();
+			area = PreparedGeometryFactory.prepare(geom);
+			envelope = geom.getEnvelopeInternal();
+		} else
+			envelope = new Envelope(RunDuesseldorfScenario.X_EXTENT[0], RunDuesseldorfScenario.X_EXTENT[1],
+					RunDuesseldorfScenario.Y_EXTENT[0], RunDuesseldorfScenario.Y_EXTENT[1]);
+
+		GeometryFactory gf = new GeometryFactory();
+		List<Coord> receivers = new ArrayList<>();
+
+		for (double x = envelope.getMinX(); x <= envelope.getMaxX(); x += gap) {
+			for (double y = envelope.getMinY(); y <= envelope.getMaxY(); y += gap) {
+				Coord coord = new Coord(x, y);
+				if (area == null || area.contains(gf.createPoint(MGC.coord2Coordinate(coord))))
+					receivers.add(coord);
+			}
+		}
+
+		return receivers;
+	}
+
+	private static List<Geometry> readBarriers(Path path) throws Exception {
+
+		List<Geometry> barriers = new ArrayList<>();
+
+		try (InputStream in = Files.newInputStream(path)) {
+			@SuppressWarnings("unchecked")
+			FeatureCollection<SimpleFeatureType, SimpleFeature> fc = new FeatureJSON().readFeatureCollection(in);
+			try (FeatureIterator<SimpleFeature> it = fc.features()) {
+				while (it.hasNext())
+					barriers.add((Geometry) it.next().getDefaultGeometry());
+			}
+		}
+
+		return barriers;
+	}
+
+	/**
+	 * Hourly volumes of cars and heavy goods vehicles, in the link order of the index.
+	 */
+	private static final class Volumes implements LinkLeaveEventHandler {
+
+		private final int[] column;
+		private final String hgvPrefix;
+		private final int[] cars;
+		private final int[] hgv;
+
+		private Volumes(List<Id<Link>> links, String hgvPrefix) {
+			this.hgvPrefix = hgvPrefix;
+			this.column = new int[Id.getNumberOfIds(Link.class)];
+			Arrays.fill(column, -1);
+			for (int i = 0; i < links.size(); i++)
+				column[links.get(i).index()] = i;
+
+			this.cars = new int[links.size() * 24];
+			this.hgv = new int[links.size() * 24];
+		}
+
+		@Override
+		public void handleEvent(LinkLeaveEvent event) {
+
+			int idx = event.getLinkId().index();
+			if (idx >= column.length || column[idx] == -1)
+				return;
+
+			int hour = (int) (event.getTime() / 3600);
+			if (hour >= 24)
+				return;
+
+			if (event.getVehicleId().toString().startsWith(hgvPrefix))
+				hgv[column[idx] * 24 + hour]++;
+			else
+				cars[column[idx] * 24 + hour]++;
+		}
+	}
+}
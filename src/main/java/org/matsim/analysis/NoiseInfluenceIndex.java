@@ -0,0 +1,415 @@
+package org.matsim.analysis;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.prepare.LinkIndex;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Geometric relation between noise receiver points and the links around them, which does not depend on traffic volumes.
+ * <p>
+ * For each receiver point the links within a radius are stored in a sparse row, together with the distance, angle and shielding
+ * corrections in dB, following RLS-90 as in the noise contrib. The immission of all receivers is then a sparse matrix-vector product
+ * with the emission of the links, see {@link #immission(double[])}.
+ * The index can be persisted with {@link #write(Path)} and identified by {@link #hash(List, Network, Predicate, byte[], double, double)}.
+ */
+public final class NoiseInfluenceIndex {
+
+	private static final int MAGIC = 0x4e494932;
+
+	/**
+	 * Minimum distance to a link, to avoid infinite levels directly at the road.
+	 */
+	private static final double MIN_DISTANCE = 5;
+
+	private final double[] x;
+	private final double[] y;
+	private final List<Id<Link>> links;
+
+	/**
+	 * Entries of receiver {@code r} are stored between {@code offsets[r]} and {@code offsets[r + 1]}.
+	 */
+	private final int[] offsets;
+	private final int[] link;
+	private final float[] distanceCorrection;
+	private final float[] angleCorrection;
+	private final float[] shieldingCorrection;
+
+	/**
+	 * Sum of all corrections as linear factor.
+	 */
+	private final double[] weight;
+
+	private NoiseInfluenceIndex(double[] x, double[] y, List<Id<Link>> links, int[] offsets, int[] link,
+								float[] distanceCorrection, float[] angleCorrection, float[] shieldingCorrection) {
+		this.x = x;
+		this.y = y;
+		this.links = links;
+		this.offsets = offsets;
+		this.link = link;
+		this.distanceCorrection = distanceCorrection;
+		this.angleCorrection = angleCorrection;
+		this.shieldingCorrection = shieldingCorrection;
+
+		this.weight = new double[link.length];
+		for (int i = 0; i < link.length; i++)
+			weight[i] = Math.pow(10, (distanceCorrection[i] + angleCorrection[i] + shieldingCorrection[i]) / 10);
+	}
+
+	/**
+	 * Create the index for receiver points and links. Receivers are processed in parallel.
+	 *
+	 * @param filter             links that emit noise, their order in the network defines the columns of the index
+	 * @param barriers           polygons of noise barriers
+	 * @param radius             maximum distance of links to a receiver
+	 * @param barrierCorrection  correction in dB (negative) if the line between receiver and link crosses a barrier that does not contain the
+	 *                           receiver or the nearest point of the link
+	 */
+	public static NoiseInfluenceIndex build(List<Coord> receivers, Network network, Predicate<Link> filter, List<Geometry> barriers,
+											double radius, double barrierCorrection) {
+
+		List<Link> links = links(network, filter);
+
+		int[] column = new int[Id.getNumberOfIds(Link.class)];
+		Arrays.fill(column, -1);
+		for (int i = 0; i < links.size(); i++)
+			column[links.get(i).getId().index()] = i;
+
+		LinkIndex index = new LinkIndex(network, filter);
+
+		STRtree barrierIndex = new STRtree();
+		for (Geometry b : barriers)
+			barrierIndex.insert(b.getEnvelopeInternal(), b);
+		barrierIndex.build();
+
+		GeometryFactory gf = new GeometryFactory();
+
+		Row[] rows = IntStream.range(0, receivers.size()).parallel()
+				.mapToObj(r -> {
+					Coord coord = receivers.get(r);
+					List<LinkIndex.Match> matches = index.query(coord, radius);
+
+					Row row = new Row(matches.size());
+					for (LinkIndex.Match m : matches) {
+
+						Link l = m.getLink();
+						double d = Math.max(MIN_DISTANCE, m.getDistance());
+
+						LineString ray = gf.createLineString(new Coordinate[]{new Coordinate(coord.getX(), coord.getY()), new Coordinate(m.getPoint().getX(), m.getPoint().getY())});
+
+						row.add(column[l.getId().index()], distanceCorrection(d), angleCorrection(coord, l), isShielded(barrierIndex, ray) ? barrierCorrection : 0);
+					}
+
+					return row;
+				})
+				.toArray(Row[]::new);
+
+		int[] offsets = new int[receivers.size() + 1];
+		for (int r = 0; r < rows.length; r++)
+			offsets[r + 1] = offsets[r] + rows[r].size;
+
+		int nnz = offsets[rows.length];
+		int[] link = new int[nnz];
+		float[] dc = new float[nnz];
+		float[] ac = new float[nnz];
+		float[] sc = new float[nnz];
+
+		for (int r = 0; r < rows.length; r++) {
+			Row row = rows[r];
+			System.arraycopy(row.link, 0, link, offsets[r], row.size);
+			System.arraycopy(row.distance, 0, dc, offsets[r], row.size);
+			System.arraycopy(row.angle, 0, ac, offsets[r], row.size);
+			System.arraycopy(row.shielding, 0, sc, offsets[r], row.size);
+		}
+
+		List<Id<Link>> ids = new ArrayList<>(links.size());
+		for (Link l : links)
+			ids.add(l.getId());
+
+		return new NoiseInfluenceIndex(receivers.stream().mapToDouble(Coord::getX).toArray(), receivers.stream().mapToDouble(Coord::getY).toArray(),
+				ids, offsets, link, dc, ac, sc);
+	}
+
+	private static List<Link> links(Network network, Predicate<Link> filter) {
+		return network.getLinks().values().stream().filter(filter).collect(Collectors.toList());
+	}
+
+	/**
+	 * Identifies the inputs of {@link #build(List, Network, Predicate, List, double, double)}, with the content of the barrier file instead of the polygons.
+	 */
+	public static String hash(List<Coord> receivers, Network network, Predicate<Link> filter, byte[] barrierFile, double radius, double barrierCorrection) {
+
+		List<Link> links = links(network, filter);
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest)))) {
+			out.writeInt(MAGIC);
+			out.writeDouble(radius);
+			out.writeDouble(barrierCorrection);
+
+			out.writeInt(receivers.size());
+			for (Coord c : receivers) {
+				out.writeDouble(c.getX());
+				out.writeDouble(c.getY());
+			}
+
+			out.writeInt(links.size());
+			for (Link l : links) {
+				out.writeUTF(l.getId().toString());
+				out.writeDouble(l.getFromNode().getCoord().getX());
+				out.writeDouble(l.getFromNode().getCoord().getY());
+				out.writeDouble(l.getToNode().getCoord().getX());
+				out.writeDouble(l.getToNode().getCoord().getY());
+			}
+
+			out.writeInt(barrierFile.length);
+			out.write(barrierFile);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		StringBuilder b = new StringBuilder();
+		for (byte v : digest.digest())
+			b.append(String.format("%02x", v));
+
+		return b.toString();
+	}
+
+	/**
+	 * Read an index written by {@link #write(Path)}.
+	 */
+	public static NoiseInfluenceIndex read(Path path) throws IOException {
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+
+			if (in.readInt() != MAGIC)
+				throw new IllegalArgumentException("Not a noise influence index: " + path);
+
+			int n = in.readInt();
+			double[] x = new double[n];
+			double[] y = new double[n];
+			for (int i = 0; i < n; i++) {
+				x[i] = in.readDouble();
+				y[i] = in.readDouble();
+			}
+
+			int m = in.readInt();
+			List<Id<Link>> links = new ArrayList<>(m);
+			for (int i = 0; i < m; i++)
+				links.add(Id.createLinkId(in.readUTF()));
+
+			int[] offsets = new int[n + 1];
+			for (int i = 0; i <= n; i++)
+				offsets[i] = in.readInt();
+
+			int nnz = offsets[n];
+			int[] link = new int[nnz];
+			float[] dc = new float[nnz];
+			float[] ac = new float[nnz];
+			float[] sc = new float[nnz];
+
+			for (int i = 0; i < nnz; i++)
+				link[i] = in.readInt();
+			for (int i = 0; i < nnz; i++)
+				dc[i] = in.readFloat();
+			for (int i = 0; i < nnz; i++)
+				ac[i] = in.readFloat();
+			for (int i = 0; i < nnz; i++)
+				sc[i] = in.readFloat();
+
+			return new NoiseInfluenceIndex(x, y, links, offsets, link, dc, ac, sc);
+		}
+	}
+
+	/**
+	 * Write the index to a file, which can be read with {@link #read(Path)}.
+	 */
+	public void write(Path path) throws IOException {
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+			out.writeInt(MAGIC);
+
+			out.writeInt(x.length);
+			for (int i = 0; i < x.length; i++) {
+				out.writeDouble(x[i]);
+				out.writeDouble(y[i]);
+			}
+
+			out.writeInt(links.size());
+			for (Id<Link> id : links)
+				out.writeUTF(id.toString());
+
+			for (int offset : offsets)
+				out.writeInt(offset);
+
+			for (int l : link)
+				out.writeInt(l);
+			for (float v : distanceCorrection)
+				out.writeFloat(v);
+			for (float v : angleCorrection)
+				out.writeFloat(v);
+			for (float v : shieldingCorrection)
+				out.writeFloat(v);
+		}
+	}
+
+	/**
+	 * Links of the index, in the order of the emission vector.
+	 */
+	public List<Id<Link>> getLinks() {
+		return links;
+	}
+
+	public int getNumberOfReceivers() {
+		return x.length;
+	}
+
+	public Coord getReceiver(int r) {
+		return new Coord(x[r], y[r]);
+	}
+
+	/**
+	 * Number of stored receiver link relations.
+	 */
+	public int size() {
+		return link.length;
+	}
+
+	/**
+	 * Immission level of all receivers.
+	 *
+	 * @param emission emission level of each link in dB(A), in the order of {@link #getLinks()}. Links without traffic are negative infinity.
+	 * @return level at each receiver in dB(A), 0 if no link contributes
+	 */
+	public double[] immission(double[] emission) {
+
+		double[] linear = new double[emission.length];
+		for (int i = 0; i < emission.length; i++)
+			linear[i] = emission[i] == Double.NEGATIVE_INFINITY ? 0 : Math.pow(10, emission[i] / 10);
+
+		double[] result = new double[x.length];
+		for (int r = 0; r < x.length; r++) {
+			double sum = 0;
+			for (int i = offsets[r]; i < offsets[r + 1]; i++)
+				sum += weight[i] * linear[link[i]];
+
+			result[r] = sum > 0 ? 10 * Math.log10(sum) : 0;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Emission level of a link according to RLS-90.
+	 *
+	 * @param cars  cars per hour
+	 * @param hgv   heavy goods vehicles per hour
+	 * @param vCar  speed of cars in km/h
+	 * @param vHgv  speed of heavy goods vehicles in km/h
+	 */
+	public static double emission(double cars, double hgv, double vCar, double vHgv) {
+
+		double m = cars + hgv;
+		if (m <= 0)
+			return Double.NEGATIVE_INFINITY;
+
+		double p = 100 * hgv / m;
+
+		double lm25 = 37.3 + 10 * Math.log10(m * (1 + 0.082 * p));
+		double lCar = 27.7 + 10 * Math.log10(1 + Math.pow(0.02 * vCar, 3));
+		double lHgv = 23.1 + 12.5 * Math.log10(vHgv);
+		double d = lHgv - lCar;
+		double dv = lCar - 37.3 + 10 * Math.log10((100 + (Math.pow(10, 0.1 * d) - 1) * p) / (100 + 8.23 * p));
+
+		return lm25 + dv;
+	}
+
+	static double distanceCorrection(double distance) {
+		return 15.8 - 10 * Math.log10(distance) - 0.0142 * Math.pow(distance, 0.9);
+	}
+
+	/**
+	 * Correction for the angle under which the link is seen from the receiver.
+	 */
+	static double angleCorrection(Coord receiver, Link link) {
+
+		Coord a = link.getFromNode().getCoord();
+		Coord b = link.getToNode().getCoord();
+
+		double ax = a.getX() - receiver.getX();
+		double ay = a.getY() - receiver.getY();
+		double bx = b.getX() - receiver.getX();
+		double by = b.getY() - receiver.getY();
+
+		double angle = Math.toDegrees(Math.abs(Math.atan2(ax * by - ay * bx, ax * bx + ay * by)));
+
+		// avoid infinite corrections for very short or radial links
+		return 10 * Math.log10(Math.max(angle, 0.1) / 180);
+	}
+
+	private static boolean isShielded(STRtree barriers, LineString ray) {
+
+		@SuppressWarnings("unchecked")
+		List<Geometry> candidates = barriers.query(ray.getEnvelopeInternal());
+
+		for (Geometry b : candidates) {
+			// barriers around the receiver or the emitting link itself do not shield, the polygons are buffers around roads
+			if (b.intersects(ray) && !b.contains(ray.getStartPoint()) && !b.contains(ray.getEndPoint()))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Entries of one receiver while building.
+	 */
+	private static final class Row {
+
+		private final int[] link;
+		private final float[] distance;
+		private final float[] angle;
+		private final float[] shielding;
+		private int size;
+
+		private Row(int capacity) {
+			link = new int[capacity];
+			distance = new float[capacity];
+			angle = new float[capacity];
+			shielding = new float[capacity];
+		}
+
+		private void add(int l, double d, double a, double s) {
+			link[size] = l;
+			distance[size] = (float) d;
+			angle[size] = (float) a;
+			shielding[size] = (float) s;
+			size++;
+		}
+	}
+}
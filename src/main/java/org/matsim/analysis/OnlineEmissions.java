@@ -0,0 +1,407 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleEntersTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Accumulates emissions per link and hour during the last iteration, without the need to read the events again.
+ * <p>
+ * Emission factors are read from a csv with the columns {@code link;category} followed by one column per pollutant. Values are
+ * warm emissions in g per vehicle and km. Rows with an empty link contain the cold start emissions of a category in g per start,
+ * which are assigned to the link where the vehicle enters traffic, also if that link has no warm factors. The category of a vehicle is the id
+ * of its vehicle type. The table is created from the HBEFA tables of the emissions contrib by {@link org.matsim.prepare.ExportEmissionFactors},
+ * which names the pollutant columns like the contrib's pollutants.
+ * <p>
+ * After the last iteration, totals per link, per link and hour, per vehicle category and per grid cell are written to the output directory.
+ * Volumes are not scaled to the full population. The outputs correspond to those of the offline analysis:
+ * <ul>
+ *     <li>{@code emissions_per_link.csv} and {@code emissions_per_link_per_hour.csv.gz} to the link totals of
+ *     {@link org.matsim.application.analysis.emissions.AirPollutionByVehicleCategory}, in g and additionally per hour</li>
+ *     <li>{@code emissions_per_vehicle_category.csv} to its totals per vehicle category, where the category is the vehicle type</li>
+ *     <li>{@code emissions_grid.csv} to the grid of {@link org.matsim.application.analysis.emissions.AirPollutionSpatialAggregation},
+ *     with the emissions of each link assigned to the cell of its midpoint instead of being smoothed</li>
+ * </ul>
+ * Warm emissions use one traffic situation per link instead of the simulated speeds, so values are lower than those of the offline analysis
+ * in congested links.
+ * <p>
+ * This class has to be bound as event handler and controler listener.
+ */
+public final class OnlineEmissions implements LinkLeaveEventHandler, VehicleEntersTrafficEventHandler, IterationStartsListener, IterationEndsListener {
+
+	private static final Logger log = LogManager.getLogger(OnlineEmissions.class);
+
+	/**
+	 * Category of a vehicle that has not been looked up yet.
+	 */
+	private static final int UNKNOWN = -2;
+
+	@Inject
+	private OutputDirectoryHierarchy controlerIO;
+
+	@Inject
+	private Scenario scenario;
+
+	private final Path factorFile;
+	private final double gridSize;
+
+	private List<String> pollutants;
+	private List<String> categories;
+	private Object2IntMap<String> categoryIndex;
+
+	/**
+	 * Slot of each link index, -1 if the link has no emissions. Only the first {@link #warmLinks} slots have warm factors, further slots are
+	 * created for cold starts on other links.
+	 */
+	private int[] slot;
+	private List<Id<Link>> links;
+	private int warmLinks;
+
+	/**
+	 * Warm emissions per vehicle passage at {@code (slot * categories + category) * pollutants + pollutant}.
+	 */
+	private float[] warm;
+
+	/**
+	 * Cold start emissions at {@code category * pollutants + pollutant}.
+	 */
+	private float[] cold;
+
+	/**
+	 * Emissions in g at {@code (slot * 24 + hour) * pollutants + pollutant}.
+	 */
+	private double[] linkHour;
+
+	/**
+	 * Emissions in g at {@code category * pollutants + pollutant}.
+	 */
+	private double[] categoryTotal;
+
+	/**
+	 * Category of each vehicle index, -1 if the vehicle type has no factors.
+	 */
+	private int[] vehicleCategory = new int[0];
+
+	private boolean active;
+
+	/**
+	 * @param factorFile emission factor csv
+	 * @param gridSize   size of the grid cells for the spatial aggregation in meters
+	 */
+	public OnlineEmissions(Path factorFile, double gridSize) {
+		this.factorFile = factorFile;
+		this.gridSize = gridSize;
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+
+		active = event.isLastIteration();
+		if (!active)
+			return;
+
+		if (warm == null) {
+			try {
+				readFactors();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not read emission factors", e);
+			}
+		}
+
+		Arrays.fill(linkHour, 0);
+		Arrays.fill(categoryTotal, 0);
+		Arrays.fill(vehicleCategory, UNKNOWN);
+	}
+
+	private void readFactors() throws IOException {
+
+		Map<Id<Link>, Map<String, float[]>> warmFactors = new LinkedHashMap<>();
+		Map<String, float[]> coldFactors = new HashMap<>();
+		Set<String> allCategories = new LinkedHashSet<>();
+
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(factorFile.toString()), CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader())) {
+
+			pollutants = new ArrayList<>(parser.getHeaderNames().subList(2, parser.getHeaderNames().size()));
+
+			for (CSVRecord record : parser) {
+				String category = record.get(1);
+				allCategories.add(category);
+
+				float[] values = new float[pollutants.size()];
+				for (int p = 0; p < values.length; p++)
+					values[p] = Float.parseFloat(record.get(p + 2));
+
+				if (record.get(0).isBlank())
+					coldFactors.put(category, values);
+				else
+					warmFactors.computeIfAbsent(Id.createLinkId(record.get(0)), k -> new HashMap<>()).put(category, values);
+			}
+		}
+
+		categories = new ArrayList<>(allCategories);
+		categoryIndex = new Object2IntOpenHashMap<>();
+		categoryIndex.defaultReturnValue(-1);
+		for (int c = 0; c < categories.size(); c++)
+			categoryIndex.put(categories.get(c), c);
+
+		int nP = pollutants.size();
+		int nC = categories.size();
+
+		slot = new int[Id.getNumberOfIds(Link.class)];
+		Arrays.fill(slot, -1);
+		links = new ArrayList<>();
+
+		warm = new float[warmFactors.size() * nC * nP];
+		for (Map.Entry<Id<Link>, Map<String, float[]>> e : warmFactors.entrySet()) {
+			Link link = scenario.getNetwork().getLinks().get(e.getKey());
+			if (link == null)
+				continue;
+
+			int s = links.size();
+			slot[e.getKey().index()] = s;
+			links.add(e.getKey());
+
+			double km = link.getLength() / 1000;
+			for (Map.Entry<String, float[]> f : e.getValue().entrySet()) {
+				int c = categoryIndex.getInt(f.getKey());
+				for (int p = 0; p < nP; p++)
+					warm[(s * nC + c) * nP + p] = (float) (f.getValue()[p] * km);
+			}
+		}
+
+		cold = new float[nC * nP];
+		for (Map.Entry<String, float[]> e : coldFactors.entrySet())
+			System.arraycopy(e.getValue(), 0, cold, categoryIndex.getInt(e.getKey()) * nP, nP);
+
+		warmLinks = links.size();
+		linkHour = new double[links.size() * 24 * nP];
+		categoryTotal = new double[nC * nP];
+
+		log.info("Read emission factors of {} pollutants for {} links and {} vehicle categories", nP, links.size(), nC);
+	}
+
+	@Override
+	public void handleEvent(LinkLeaveEvent event) {
+		if (!active)
+			return;
+
+		int link = event.getLinkId().index();
+		if (link >= slot.length || slot[link] == -1 || slot[link] >= warmLinks)
+			return;
+
+		int c = category(event.getVehicleId());
+		if (c == -1)
+			return;
+
+		int nP = pollutants.size();
+		int from = (slot[link] * categories.size() + c) * nP;
+		add(slot[link], event.getTime(), c, warm, from);
+	}
+
+	@Override
+	public void handleEvent(VehicleEntersTrafficEvent event) {
+		if (!active)
+			return;
+
+		int c = category(event.getVehicleId());
+		if (c == -1)
+			return;
+
+		// cold starts are counted on every link, not only those with warm factors
+		add(slot(event.getLinkId()), event.getTime(), c, cold, c * pollutants.size());
+	}
+
+	/**
+	 * Slot of a link, created if the link has none yet.
+	 */
+	private int slot(Id<Link> id) {
+
+		int idx = id.index();
+		if (idx >= slot.length) {
+			int old = slot.length;
+			slot = Arrays.copyOf(slot, Math.max(idx + 1, Id.getNumberOfIds(Link.class)));
+			Arrays.fill(slot, old, slot.length, -1);
+		}
+
+		if (slot[idx] == -1) {
+			slot[idx] = links.size();
+			links.add(id);
+
+			int size = links.size() * 24 * pollutants.size();
+			if (size > linkHour.length)
+				linkHour = Arrays.copyOf(linkHour, Math.max(size, linkHour.length * 2));
+		}
+
+		return slot[idx];
+	}
+
+	private void add(int s, double time, int category, float[] factors, int from) {
+
+		int nP = pollutants.size();
+		int hour = Math.min(23, (int) (time / 3600));
+		int to = (s * 24 + hour) * nP;
+
+		for (int p = 0; p < nP; p++) {
+			linkHour[to + p] += factors[from + p];
+			categoryTotal[category * nP + p] += factors[from + p];
+		}
+	}
+
+	private int category(Id<Vehicle> id) {
+
+		int idx = id.index();
+		if (idx >= vehicleCategory.length) {
+			int old = vehicleCategory.length;
+			vehicleCategory = Arrays.copyOf(vehicleCategory, Math.max(idx + 1, Id.getNumberOfIds(Vehicle.class)));
+			Arrays.fill(vehicleCategory, old, vehicleCategory.length, UNKNOWN);
+		}
+
+		if (vehicleCategory[idx] == UNKNOWN) {
+			Vehicle vehicle = scenario.getVehicles().getVehicles().get(id);
+			if (vehicle == null)
+				vehicle = scenario.getTransitVehicles().getVehicles().get(id);
+
+			vehicleCategory[idx] = vehicle != null ? categoryIndex.getInt(vehicle.getType().getId().toString()) : -1;
+		}
+
+		return vehicleCategory[idx];
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		if (!active)
+			return;
+
+		active = false;
+
+		int nP = pollutants.size();
+
+		try {
+			try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getOutputFilename("emissions_per_link.csv")), CSVFormat.DEFAULT.withDelimiter(';'))) {
+				printer.print("linkId");
+				printer.printRecord(pollutants);
+
+				for (int s = 0; s < links.size(); s++) {
+					printer.print(links.get(s));
+					for (int p = 0; p < nP; p++) {
+						double sum = 0;
+						for (int h = 0; h < 24; h++)
+							sum += linkHour[(s * 24 + h) * nP + p];
+						printer.print(sum);
+					}
+					printer.println();
+				}
+			}
+
+			try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getOutputFilename("emissions_per_link_per_hour.csv.gz")), CSVFormat.DEFAULT.withDelimiter(';'))) {
+				printer.print("linkId");
+				printer.print("hour");
+				printer.printRecord(pollutants);
+
+				for (int s = 0; s < links.size(); s++) {
+					for (int h = 0; h < 24; h++) {
+						int from = (s * 24 + h) * nP;
+						if (isZero(linkHour, from, nP))
+							continue;
+
+						printer.print(links.get(s));
+						printer.print(h);
+						for (int p = 0; p < nP; p++)
+							printer.print(linkHour[from + p]);
+						printer.println();
+					}
+				}
+			}
+
+			try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getOutputFilename("emissions_per_vehicle_category.csv")), CSVFormat.DEFAULT.withDelimiter(';'))) {
+				printer.print("category");
+				printer.printRecord(pollutants);
+
+				for (int c = 0; c < categories.size(); c++) {
+					printer.print(categories.get(c));
+					for (int p = 0; p < nP; p++)
+						printer.print(categoryTotal[c * nP + p]);
+					printer.println();
+				}
+			}
+
+			writeGrid(nP);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write emissions", e);
+		}
+
+		log.info("Written emissions of {} links", links.size());
+	}
+
+	/**
+	 * Emissions of each link are assigned to the grid cell of its midpoint.
+	 */
+	private void writeGrid(int nP) throws IOException {
+
+		Map<Coord, double[]> cells = new TreeMap<>(Comparator.comparingDouble(Coord::getX).thenComparingDouble(Coord::getY));
+
+		for (int s = 0; s < links.size(); s++) {
+			Link link = scenario.getNetwork().getLinks().get(links.get(s));
+			Coord from = link.getFromNode().getCoord();
+			Coord to = link.getToNode().getCoord();
+
+			double x = (Math.floor((from.getX() + to.getX()) / 2 / gridSize) + 0.5) * gridSize;
+			double y = (Math.floor((from.getY() + to.getY()) / 2 / gridSize) + 0.5) * gridSize;
+
+			double[] cell = cells.computeIfAbsent(new Coord(x, y), k -> new double[nP]);
+			for (int h = 0; h < 24; h++) {
+				for (int p = 0; p < nP; p++)
+					cell[p] += linkHour[(s * 24 + h) * nP + p];
+			}
+		}
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getOutputFilename("emissions_grid.csv")), CSVFormat.DEFAULT.withDelimiter(';'))) {
+			printer.print("x");
+			printer.print("y");
+			printer.printRecord(pollutants);
+
+			for (Map.Entry<Coord, double[]> e : cells.entrySet()) {
+				printer.print(e.getKey().getX());
+				printer.print(e.getKey().getY());
+				for (double v : e.getValue())
+					printer.print(v);
+				printer.println();
+			}
+		}
+	}
+
+	private static boolean isZero(double[] values, int from, int n) {
+		for (int i = from; i < from + n; i++) {
+			if (values[i] != 0)
+				return false;
+		}
+		return true;
+	}
+}
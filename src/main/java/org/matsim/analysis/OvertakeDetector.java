@@ -0,0 +1,175 @@
+package org.matsim.analysis;
+
+import com.google.inject.Inject;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.api.experimental.events.LaneEnterEvent;
+import org.matsim.core.api.experimental.events.handler.LaneEnterEventHandler;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.lanes.Lane;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Detects overtakes and collects lane usage while the simulation is running, without the need to write events.
+ * <p>
+ * Each link hands out increasing sequence numbers to entering vehicles. A vehicle leaving a link is counted as overtaken if a
+ * vehicle with a higher sequence number already left the link before, which needs constant time per event.
+ * Note that this counts overtaken vehicles, not every overtaking pair like {@link AnalyzeTakeovers}.
+ * <p>
+ * This class has to be bound as event handler and controler listener.
+ */
+public final class OvertakeDetector implements LinkEnterEventHandler, LinkLeaveEventHandler, VehicleLeavesTrafficEventHandler,
+		LaneEnterEventHandler, IterationEndsListener {
+
+	private static final Logger log = LogManager.getLogger(OvertakeDetector.class);
+
+	@Inject
+	private OutputDirectoryHierarchy controlerIO;
+
+	/**
+	 * Next sequence number per link index.
+	 */
+	private int[] nextSeq = new int[0];
+
+	/**
+	 * Highest sequence number that left the link, -1 if none.
+	 */
+	private int[] maxLeftSeq = new int[0];
+
+	/**
+	 * Sequence number of each vehicle on its current link.
+	 */
+	private final Int2IntMap vehicleSeq = new Int2IntOpenHashMap();
+
+	/**
+	 * Number of overtaken vehicles, keyed by link index and hour.
+	 */
+	private final Long2IntMap overtakes = new Long2IntOpenHashMap();
+
+	/**
+	 * Number of vehicles entering a lane, keyed by link and lane index.
+	 */
+	private final Long2IntMap laneUsage = new Long2IntOpenHashMap();
+
+	@Override
+	public void reset(int iteration) {
+		Arrays.fill(nextSeq, 0);
+		Arrays.fill(maxLeftSeq, -1);
+		vehicleSeq.clear();
+		overtakes.clear();
+		laneUsage.clear();
+	}
+
+	@Override
+	public void handleEvent(LinkEnterEvent event) {
+
+		int link = event.getLinkId().index();
+		ensureCapacity(link);
+
+		vehicleSeq.put(event.getVehicleId().index(), nextSeq[link]++);
+	}
+
+	@Override
+	public void handleEvent(LinkLeaveEvent event) {
+
+		int vehicle = event.getVehicleId().index();
+		if (!vehicleSeq.containsKey(vehicle))
+			return;
+
+		int seq = vehicleSeq.remove(vehicle);
+		int link = event.getLinkId().index();
+
+		if (seq < maxLeftSeq[link])
+			overtakes.mergeInt(key(link, (int) (event.getTime() / 3600)), 1, Integer::sum);
+		else
+			maxLeftSeq[link] = seq;
+	}
+
+	@Override
+	public void handleEvent(VehicleLeavesTrafficEvent event) {
+		// vehicle arrives on the link and will not leave it
+		vehicleSeq.remove(event.getVehicleId().index());
+	}
+
+	@Override
+	public void handleEvent(LaneEnterEvent event) {
+		laneUsage.mergeInt(key(event.getLinkId().index(), event.getLaneId().index()), 1, Integer::sum);
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+
+		int total = 0;
+		for (int n : overtakes.values())
+			total += n;
+
+		log.info("Detected {} overtaken vehicles on {} link hours", total, overtakes.size());
+
+		try {
+			try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getIterationFilename(event.getIteration(), "overtakes.csv")), CSVFormat.DEFAULT)) {
+				printer.printRecord("link", "hour", "overtaken");
+				for (Long2IntMap.Entry e : overtakes.long2IntEntrySet()) {
+					printer.printRecord(Id.get(first(e.getLongKey()), Link.class), second(e.getLongKey()), e.getIntValue());
+				}
+			}
+
+			if (!laneUsage.isEmpty()) {
+				try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(controlerIO.getIterationFilename(event.getIteration(), "lane_usage.csv")), CSVFormat.DEFAULT)) {
+					printer.printRecord("link", "lane", "vehicles");
+					for (Long2IntMap.Entry e : laneUsage.long2IntEntrySet()) {
+						printer.printRecord(Id.get(first(e.getLongKey()), Link.class), Id.get(second(e.getLongKey()), Lane.class), e.getIntValue());
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write overtakes", e);
+		}
+	}
+
+	/**
+	 * Grow the per link arrays, links may be created after this handler.
+	 */
+	private void ensureCapacity(int link) {
+		if (link < nextSeq.length)
+			return;
+
+		int size = Math.max(link + 1, Id.getNumberOfIds(Link.class));
+		int old = nextSeq.length;
+
+		nextSeq = Arrays.copyOf(nextSeq, size);
+		maxLeftSeq = Arrays.copyOf(maxLeftSeq, size);
+		Arrays.fill(maxLeftSeq, old, size, -1);
+	}
+
+	private static long key(int a, int b) {
+		return ((long) a << 32) | (b & 0xffffffffL);
+	}
+
+	private static int first(long key) {
+		return (int) (key >>> 32);
+	}
+
+	private static int second(long key) {
+		return (int) key;
+	}
+}
@@ -3,7 +3,8 @@ package org.matsim.analysis;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
-import org.geotools.feature.DefaultFeatureCollection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geojson.feature.FeatureJSON;
@@ -17,21 +18,32 @@ import org.matsim.application.MATSimAppCommand;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.core.utils.io.IOUtils;
-import org.opengis.feature.simple.SimpleFeature;
+import org.matsim.prepare.LinkIndex;
 import org.opengis.feature.simple.SimpleFeatureType;
 import picocli.CommandLine;
 
-import java.io.OutputStream;
+import java.io.BufferedWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-
+import java.util.stream.Collectors;
+
+/**
+ * Creates polygons around the links next to noise barriers and tunnels.
+ * <p>
+ * Barriers are matched to the nearest link segment with a {@link LinkIndex} and buffered in parallel. Each link is used only once,
+ * the first barrier record on a link determines the position in the output.
+ */
 @CommandLine.Command(
         name = "prepare-noise-barrier",
         description = "Prepare noise barrier file based on the noise barrier data"
 )
 public class PrepareNoiseBarrierFile implements MATSimAppCommand {
+
+    private static final Logger log = LogManager.getLogger(PrepareNoiseBarrierFile.class);
+
     @CommandLine.Option(names = "--noise-barrier", description = "Noise barrier file", required = true)
     private String noiseBarrierFile;
 
@@ -45,16 +57,15 @@ public class PrepareNoiseBarrierFile implements MATSimAppCommand {
     @Override
     public Integer call() throws Exception {
         Network network = NetworkUtils.readNetwork(networkFile);
+        LinkIndex index = new LinkIndex(network);
         GeometryFactory geometryFactory = new GeometryFactory();
 
-        DefaultFeatureCollection featureCollection = new DefaultFeatureCollection();
         SimpleFeatureTypeBuilder featureTypeBuilder = new SimpleFeatureTypeBuilder();
         featureTypeBuilder.setName("soundBarriers");
         featureTypeBuilder.add("geometry", Geometry.class);
         final SimpleFeatureType featureType = featureTypeBuilder.buildFeatureType();
 
-        int counter = 0;
-        List<Link> includedLink = new ArrayList<>();
+        List<Coord> barriers = new ArrayList<>();
         try (CSVParser parser = new CSVParser(Files.newBufferedReader(Path.of(noiseBarrierFile)),
                 CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader())) {
             for (CSVRecord record : parser) {
@@ -68,36 +79,52 @@ public class PrepareNoiseBarrierFile implements MATSimAppCommand {
                         continue;
                     }
 
-                    Coord noiseBarrierCoord = new Coord(x, y);
-                    Link noiseBarrierLink = NetworkUtils.getNearestLink(network, noiseBarrierCoord);
-                    if (includedLink.contains(noiseBarrierLink)) {
-                        continue;
-                    }
-                    includedLink.add(noiseBarrierLink);
-
-                    Coord coord1 = noiseBarrierLink.getFromNode().getCoord();
-                    Coord coord2 = noiseBarrierLink.getToNode().getCoord();
-
-                    Coordinate[] coordinates = new Coordinate[]{MGC.coord2Coordinate(coord1), MGC.coord2Coordinate(coord2)};
-                    Geometry line = geometryFactory.createLineString(coordinates);
-                    Geometry polygon = line.buffer(5);
-
-                    SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(featureType);
-                    featureBuilder.add(polygon);
-                    SimpleFeature feature = featureBuilder.buildFeature("noise_barrier_" + counter);
-                    featureCollection.add(feature);
-                    counter++;
+                    barriers.add(new Coord(x, y));
                 }
             }
         }
 
+        List<Link> matched = barriers.parallelStream()
+                .map(index::nearest)
+                .map(LinkIndex.Match::getLink)
+                .collect(Collectors.toList());
+
+        // keep the first barrier of each link, in the order of the records
+        BitSet includedLinks = new BitSet();
+        List<Link> links = new ArrayList<>();
+        for (Link link : matched) {
+            int idx = link.getId().index();
+            if (!includedLinks.get(idx)) {
+                includedLinks.set(idx);
+                links.add(link);
+            }
+        }
+
+        List<Geometry> polygons = links.parallelStream()
+                .map(link -> {
+                    Coordinate[] coordinates = new Coordinate[]{MGC.coord2Coordinate(link.getFromNode().getCoord()), MGC.coord2Coordinate(link.getToNode().getCoord())};
+                    return geometryFactory.createLineString(coordinates).buffer(5);
+                })
+                .collect(Collectors.toList());
+
+        log.info("Matched {} noise barrier records to {} links", barriers.size(), links.size());
+
         // Write json file. For some reason, the reader cannot read gzip file properly. So only use .json or .geojson as the ending of the output path!
         FeatureJSON featureJSON = new FeatureJSON();
         if (!Files.exists(outputPath.getParent()))
             Files.createDirectories(outputPath.getParent());
 
-        try (OutputStream outputStream = IOUtils.getOutputStream(outputPath.toFile().toURI().toURL(), false)) {
-            featureJSON.writeFeatureCollection(featureCollection, outputStream);
+        // features are written one by one instead of collecting them first
+        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(featureType);
+        try (BufferedWriter writer = IOUtils.getBufferedWriter(outputPath.toFile().toURI().toURL(), IOUtils.CHARSET_UTF8, false)) {
+            writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+            for (int i = 0; i < polygons.size(); i++) {
+                featureBuilder.add(polygons.get(i));
+                if (i > 0)
+                    writer.write(",");
+                writer.write(featureJSON.toString(featureBuilder.buildFeature("noise_barrier_" + i)));
+            }
+            writer.write("]}");
         }
         return 0;
     }
@@ -0,0 +1,278 @@
+package org.matsim.analysis;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleEntersTrafficEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mean link travel times per time bin, stored densely as one row of bins per link.
+ * <p>
+ * The matrix is created from events with the {@link Builder} and can be persisted and memory-mapped with {@link #write(Path)} and {@link #read(Path)}.
+ * Links or bins without observations fall back to the free flow travel time.
+ */
+public final class TravelTimeMatrix implements TravelTime {
+
+	private static final int MAGIC = 0x54544d32;
+
+	private final double binSize;
+	private final int bins;
+	private final List<Id<Link>> links;
+
+	/**
+	 * Mean travel time at {@code row * bins + bin}, NaN if there was no observation.
+	 */
+	private final FloatBuffer data;
+
+	/**
+	 * Row for each link id index, -1 if not contained.
+	 */
+	private final int[] rows;
+
+	private TravelTimeMatrix(double binSize, int bins, List<Id<Link>> links, FloatBuffer data) {
+		this.binSize = binSize;
+		this.bins = bins;
+		this.links = links;
+		this.data = data;
+
+		int max = links.stream().mapToInt(Id::index).max().orElse(-1);
+		this.rows = new int[max + 1];
+		Arrays.fill(rows, -1);
+		for (int i = 0; i < links.size(); i++)
+			rows[links.get(i).index()] = i;
+	}
+
+	/**
+	 * Memory-map a matrix written by {@link #write(Path)}.
+	 */
+	public static TravelTimeMatrix read(Path path) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+
+			if (in.readInt() != MAGIC)
+				throw new IllegalArgumentException("Not a travel time matrix: " + path);
+
+			double binSize = in.readDouble();
+			int bins = in.readInt();
+			long offset = in.readLong();
+			int n = in.readInt();
+
+			List<Id<Link>> links = new ArrayList<>(n);
+			for (int i = 0; i < n; i++)
+				links.add(Id.createLinkId(in.readUTF()));
+
+			FloatBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) n * bins * Float.BYTES).asFloatBuffer();
+
+			return new TravelTimeMatrix(binSize, bins, links, data);
+		}
+	}
+
+	/**
+	 * Write the matrix to a file, which can be memory-mapped again with {@link #read(Path)}.
+	 */
+	public void write(Path path) throws IOException {
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+
+			ByteArrayOutputStream ids = new ByteArrayOutputStream();
+			try (DataOutputStream idOut = new DataOutputStream(ids)) {
+				idOut.writeInt(links.size());
+				for (Id<Link> link : links)
+					idOut.writeUTF(link.toString());
+			}
+
+			// the data starts after magic, bin size, bins, the offset itself and the ids
+			long offset = Integer.BYTES + Double.BYTES + Integer.BYTES + Long.BYTES + ids.size();
+
+			out.writeInt(MAGIC);
+			out.writeDouble(binSize);
+			out.writeInt(bins);
+			out.writeLong(offset);
+			ids.writeTo(out);
+
+			ByteBuffer buffer = ByteBuffer.allocate(bins * Float.BYTES);
+			for (int row = 0; row < links.size(); row++) {
+				buffer.clear();
+				for (int bin = 0; bin < bins; bin++)
+					buffer.putFloat(data.get(row * bins + bin));
+
+				out.write(buffer.array(), 0, buffer.position());
+			}
+		}
+	}
+
+	public double getBinSize() {
+		return binSize;
+	}
+
+	public int getBins() {
+		return bins;
+	}
+
+	/**
+	 * Time bin of given time, all times after the last bin are mapped to it.
+	 */
+	public int getBin(double time) {
+		return Math.min(bins - 1, Math.max(0, (int) (time / binSize)));
+	}
+
+	/**
+	 * Observed mean travel time or NaN.
+	 */
+	public double getObservedTravelTime(Id<Link> link, double time) {
+		int idx = link.index();
+		if (idx >= rows.length || rows[idx] == -1)
+			return Double.NaN;
+
+		return data.get(rows[idx] * bins + getBin(time));
+	}
+
+	@Override
+	public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+
+		double tt = getObservedTravelTime(link.getId(), time);
+		if (!Double.isNaN(tt))
+			return tt;
+
+		return Math.floor(link.getLength() / link.getFreespeed()) + 1;
+	}
+
+	/**
+	 * Collects travel times from events. A travel time is measured from entering a link or traffic until leaving the link or traffic,
+	 * and is assigned to the bin of the entry time.
+	 */
+	public static final class Builder implements VehicleEntersTrafficEventHandler, VehicleLeavesTrafficEventHandler,
+			LinkEnterEventHandler, LinkLeaveEventHandler {
+
+		private final double binSize;
+		private final int bins;
+		private final List<Id<Link>> links;
+		private final int[] rows;
+
+		private final float[] sum;
+		private final int[] count;
+
+		/**
+		 * Open entry per vehicle index: row of the link, -1 if none, and entry time.
+		 */
+		private int[] openRow = new int[0];
+		private double[] openTime = new double[0];
+
+		/**
+		 * Create a builder for all links of the network.
+		 *
+		 * @param binSize size of time bins in seconds
+		 * @param bins    number of bins, later times are assigned to the last bin
+		 */
+		public Builder(Network network, double binSize, int bins) {
+			this.binSize = binSize;
+			this.bins = bins;
+			this.links = new ArrayList<>(network.getLinks().keySet());
+
+			int max = links.stream().mapToInt(Id::index).max().orElse(-1);
+			this.rows = new int[max + 1];
+			Arrays.fill(rows, -1);
+			for (int i = 0; i < links.size(); i++)
+				rows[links.get(i).index()] = i;
+
+			this.sum = new float[links.size() * bins];
+			this.count = new int[links.size() * bins];
+		}
+
+		@Override
+		public void reset(int iteration) {
+			Arrays.fill(sum, 0);
+			Arrays.fill(count, 0);
+			Arrays.fill(openRow, -1);
+		}
+
+		@Override
+		public void handleEvent(VehicleEntersTrafficEvent event) {
+			open(event.getVehicleId(), event.getLinkId(), event.getTime());
+		}
+
+		@Override
+		public void handleEvent(LinkEnterEvent event) {
+			open(event.getVehicleId(), event.getLinkId(), event.getTime());
+		}
+
+		@Override
+		public void handleEvent(LinkLeaveEvent event) {
+			close(event.getVehicleId(), event.getLinkId(), event.getTime());
+		}
+
+		@Override
+		public void handleEvent(VehicleLeavesTrafficEvent event) {
+			close(event.getVehicleId(), event.getLinkId(), event.getTime());
+		}
+
+		private void open(Id<Vehicle> vehicle, Id<Link> link, double time) {
+
+			int idx = link.index();
+			if (idx >= rows.length || rows[idx] == -1)
+				return;
+
+			int v = vehicle.index();
+			if (v >= openRow.length) {
+				int size = Math.max(v + 1, openRow.length * 2);
+				int old = openRow.length;
+				openRow = Arrays.copyOf(openRow, size);
+				openTime = Arrays.copyOf(openTime, size);
+				Arrays.fill(openRow, old, size, -1);
+			}
+
+			openRow[v] = rows[idx];
+			openTime[v] = time;
+		}
+
+		private void close(Id<Vehicle> vehicle, Id<Link> link, double time) {
+
+			int v = vehicle.index();
+			int idx = link.index();
+			if (v >= openRow.length || idx >= rows.length || openRow[v] == -1 || openRow[v] != rows[idx])
+				return;
+
+			int bin = Math.min(bins - 1, Math.max(0, (int) (openTime[v] / binSize)));
+			int i = openRow[v] * bins + bin;
+
+			sum[i] += (float) (time - openTime[v]);
+			count[i]++;
+
+			openRow[v] = -1;
+		}
+
+		/**
+		 * Create the matrix with mean travel times of the collected events.
+		 */
+		public TravelTimeMatrix build() {
+
+			float[] mean = new float[sum.length];
+			for (int i = 0; i < sum.length; i++)
+				mean[i] = count[i] > 0 ? sum[i] / count[i] : Float.NaN;
+
+			return new TravelTimeMatrix(binSize, bins, links, FloatBuffer.wrap(mean));
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.matsim.analysis.events;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Constants of the binary events format, shared by {@link BinaryEventsWriter} and {@link BinaryEventsReader}.
+ * <p>
+ * A file consists of a header, a sequence of deflate compressed blocks, a footer and a trailer:
+ * <pre>
+ * header:  int magic, int version
+ * block:   compressed events, each event is encoded as
+ *          varint type, zigzag varlong time delta in ms, varint number of attributes,
+ *          and per attribute varint key followed by a value
+ * footer:  dictionary of all strings, codes used as link ids, block index with the set of link codes of each block
+ * trailer: long footer offset, int magic
+ * </pre>
+ * Event types, attribute keys and id-like attribute values are stored as codes of a single string dictionary.
+ * A value is written as varint {@code code << 1}, or as varint {@code 1} followed by the literal string.
+ * Times are rounded to milliseconds and stored as difference to the previous event of the same block.
+ */
+final class BinaryEventsFormat {
+
+	static final int MAGIC = 0x4d455642;
+	static final int VERSION = 2;
+
+	/**
+	 * Number of events per block.
+	 */
+	static final int BLOCK_EVENTS = 1 << 16;
+
+	/**
+	 * Attributes with the link id, used for the block index.
+	 */
+	static final String LINK = "link";
+
+	/**
+	 * Attributes whose values are stored in the dictionary. All other values are stored literally.
+	 */
+	static final Set<String> DICTIONARY_ATTRIBUTES = Set.of(
+			LINK, "vehicle", "person", "driverId", "facility", "actType", "legMode", "networkMode", "mode", "lane",
+			"transitLineId", "transitRouteId", "departureId", "vehicleId", "agent", "atStop", "stopId", "toLink", "fromLink"
+	);
+
+	private BinaryEventsFormat() {
+	}
+
+	/**
+	 * Entry of the block index.
+	 */
+	static final class Block {
+
+		long offset;
+		int compressedLength;
+		int rawLength;
+		int events;
+		double minTime = Double.POSITIVE_INFINITY;
+		double maxTime = Double.NEGATIVE_INFINITY;
+
+		/**
+		 * Sorted dictionary codes of all link ids within the block.
+		 */
+		int[] links;
+
+	}
+
+	/**
+	 * Write the link codes of a block as number of codes followed by varint differences.
+	 */
+	static void writeLinks(DataOutput out, int[] links) throws IOException {
+		writeUnsigned(out, links.length);
+		int prev = 0;
+		for (int l : links) {
+			writeUnsigned(out, l - prev);
+			prev = l;
+		}
+	}
+
+	static int[] readLinks(DataInput in) throws IOException {
+		int[] links = new int[readUnsigned(in)];
+		int prev = 0;
+		for (int i = 0; i < links.length; i++) {
+			prev += readUnsigned(in);
+			links[i] = prev;
+		}
+		return links;
+	}
+
+	private static void writeUnsigned(DataOutput out, int v) throws IOException {
+		while ((v & ~0x7f) != 0) {
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	private static int readUnsigned(DataInput in) throws IOException {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.readByte();
+			v |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+}
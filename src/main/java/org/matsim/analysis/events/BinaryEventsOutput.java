@@ -0,0 +1,83 @@
+package org.matsim.analysis.events;
+
+import com.google.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.groups.ControlerConfigGroup;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes events in the binary format at the same iterations as the xml events, i.e. according to {@link ControlerConfigGroup#getWriteEventsInterval()}
+ * and in the last iteration. The events of the last written iteration are copied to the output directory.
+ */
+public final class BinaryEventsOutput implements IterationStartsListener, IterationEndsListener, ShutdownListener {
+
+	private static final Logger log = LogManager.getLogger(BinaryEventsOutput.class);
+
+	static final String FILENAME = "events.bin";
+
+	@Inject
+	private EventsManager eventsManager;
+
+	@Inject
+	private OutputDirectoryHierarchy controlerIO;
+
+	@Inject
+	private ControlerConfigGroup config;
+
+	private BinaryEventsWriter writer;
+	private String lastFile;
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+
+		int iteration = event.getIteration();
+		int interval = config.getWriteEventsInterval();
+
+		if ((interval > 0 && iteration % interval == 0) || event.isLastIteration()) {
+			lastFile = controlerIO.getIterationFilename(iteration, FILENAME);
+			writer = new BinaryEventsWriter(lastFile);
+			eventsManager.addHandler(writer);
+		}
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+
+		// events have been processed completely after the mobsim
+		if (writer != null) {
+			eventsManager.removeHandler(writer);
+			writer.closeFile();
+			writer = null;
+		}
+	}
+
+	@Override
+	public void notifyShutdown(ShutdownEvent event) {
+
+		if (lastFile == null || event.isUnexpected())
+			return;
+
+		Path output = Path.of(controlerIO.getOutputFilename("output_" + FILENAME));
+		try {
+			Files.copy(Path.of(lastFile), output, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not copy events", e);
+		}
+
+		log.info("Copied binary events to {}", output);
+	}
+}
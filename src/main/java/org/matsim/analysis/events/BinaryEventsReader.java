@@ -0,0 +1,286 @@
+package org.matsim.analysis.events;
+
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsReaderXMLv1;
+import org.matsim.core.events.MatsimEventsReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.matsim.analysis.events.BinaryEventsFormat.*;
+
+/**
+ * Reads events written by {@link BinaryEventsWriter} and passes them to an {@link EventsManager}.
+ * <p>
+ * Events are created the same way as by {@link MatsimEventsReader}, so existing handlers and custom event mappers work unchanged.
+ * With {@link #setTimeWindow(double, double)} and {@link #setLinkFilter(Predicate)} only the blocks that may contain matching events are decompressed.
+ */
+public final class BinaryEventsReader {
+
+	private final EventsReaderXMLv1 delegate;
+
+	private double fromTime = Double.NEGATIVE_INFINITY;
+	private double toTime = Double.POSITIVE_INFINITY;
+	private Predicate<String> linkFilter;
+
+	private int blocksRead;
+
+	public BinaryEventsReader(EventsManager manager) {
+		this.delegate = new EventsReaderXMLv1(manager);
+	}
+
+	/**
+	 * Whether the file is in the binary events format, judged by its extension.
+	 */
+	public static boolean isBinary(String filename) {
+		return filename.endsWith(".bin");
+	}
+
+	public void addCustomEventMapper(String eventType, MatsimEventsReader.CustomEventMapper mapper) {
+		delegate.addCustomEventMapper(eventType, mapper);
+	}
+
+	/**
+	 * Only read events with time in [from, to].
+	 */
+	public void setTimeWindow(double from, double to) {
+		this.fromTime = from;
+		this.toTime = to;
+	}
+
+	/**
+	 * Only read events that have a link attribute matching the filter. Events without link are skipped as well.
+	 */
+	public void setLinkFilter(Predicate<String> linkFilter) {
+		this.linkFilter = linkFilter;
+	}
+
+	/**
+	 * Number of blocks decompressed by the last {@link #readFile(String)}.
+	 */
+	public int getBlocksRead() {
+		return blocksRead;
+	}
+
+	public void readFile(String filename) {
+
+		blocksRead = 0;
+
+		try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+
+			ByteBuffer header = read(channel, 0, 8);
+			if (header.getInt() != MAGIC)
+				throw new IllegalArgumentException("Not a binary events file: " + filename);
+			if (header.getInt() != VERSION)
+				throw new IllegalArgumentException("Unsupported version of binary events file: " + filename);
+
+			ByteBuffer trailer = read(channel, channel.size() - 12, 12);
+			long footer = trailer.getLong();
+			if (trailer.getInt() != MAGIC)
+				throw new IllegalArgumentException("Not a binary events file: " + filename);
+
+			DataInputStream data = new DataInputStream(new ByteBufferInputStream(read(channel, footer, (int) (channel.size() - 12 - footer))));
+
+			String[] strings = new String[data.readInt()];
+			for (int i = 0; i < strings.length; i++)
+				strings[i] = data.readUTF();
+
+			long[] words = new long[data.readInt()];
+			for (int i = 0; i < words.length; i++)
+				words[i] = data.readLong();
+
+			// codes of links that pass the filter
+			BitSet links = null;
+			if (linkFilter != null) {
+				links = new BitSet();
+				BitSet linkCodes = BitSet.valueOf(words);
+				for (int i = linkCodes.nextSetBit(0); i >= 0; i = linkCodes.nextSetBit(i + 1)) {
+					if (linkFilter.test(strings[i]))
+						links.set(i);
+				}
+			}
+
+			int linkCode = Arrays.asList(strings).indexOf(LINK);
+
+			int n = data.readInt();
+			Inflater inflater = new Inflater();
+
+			for (int i = 0; i < n; i++) {
+				Block b = new Block();
+				b.offset = data.readLong();
+				b.compressedLength = data.readInt();
+				b.rawLength = data.readInt();
+				b.events = data.readInt();
+				b.minTime = data.readDouble();
+				b.maxTime = data.readDouble();
+				b.links = readLinks(data);
+
+				if (b.maxTime < fromTime || b.minTime > toTime)
+					continue;
+
+				if (links != null && !containsAny(b.links, links))
+					continue;
+
+				blocksRead++;
+
+				ByteBuffer compressed = read(channel, b.offset, b.compressedLength);
+				byte[] raw = new byte[b.rawLength];
+
+				inflater.reset();
+				inflater.setInput(compressed.array(), 0, b.compressedLength);
+				inflater.inflate(raw);
+
+				readBlock(b, raw, strings, linkCode, links);
+			}
+
+			inflater.end();
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read " + filename, e);
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupt events file " + filename, e);
+		}
+	}
+
+	private void readBlock(Block b, byte[] raw, String[] strings, int linkCode, BitSet links) {
+
+		Cursor c = new Cursor(raw);
+		Stack<String> context = new Stack<>();
+		long time = 0;
+
+		int[] keys = new int[16];
+		String[] values = new String[16];
+
+		for (int i = 0; i < b.events; i++) {
+
+			int type = c.readVarInt();
+			time += unzigzag(c.readVarLong());
+			int n = c.readVarInt();
+
+			if (n > keys.length) {
+				keys = new int[n];
+				values = new String[n];
+			}
+
+			boolean linkMatch = links == null;
+			for (int j = 0; j < n; j++) {
+				keys[j] = c.readVarInt();
+				int v = c.readVarInt();
+				if ((v & 1) == 0) {
+					int code = v >>> 1;
+					values[j] = strings[code];
+					if (keys[j] == linkCode && links != null && links.get(code))
+						linkMatch = true;
+				} else
+					values[j] = c.readString();
+			}
+
+			double seconds = time / 1000.0;
+			if (!linkMatch || seconds < fromTime || seconds > toTime)
+				continue;
+
+			AttributesImpl atts = new AttributesImpl();
+			atts.addAttribute("", "", "time", "CDATA", Double.toString(seconds));
+			atts.addAttribute("", "", "type", "CDATA", strings[type]);
+			for (int j = 0; j < n; j++)
+				atts.addAttribute("", "", strings[keys[j]], "CDATA", values[j]);
+
+			delegate.startTag("event", atts, context);
+		}
+	}
+
+	private static boolean containsAny(int[] codes, BitSet links) {
+		for (int code : codes) {
+			if (links.get(code))
+				return true;
+		}
+		return false;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Reads variable length numbers and strings from a byte array.
+	 */
+	private static final class Cursor {
+
+		private final byte[] buf;
+		private int pos;
+
+		private Cursor(byte[] buf) {
+			this.buf = buf;
+		}
+
+		private int readVarInt() {
+			return (int) readVarLong();
+		}
+
+		private long readVarLong() {
+			long v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buf[pos++];
+				v |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		private String readString() {
+			int len = readVarInt();
+			String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			return s;
+		}
+	}
+
+	/**
+	 * Input stream over a heap byte buffer.
+	 */
+	private static final class ByteBufferInputStream extends java.io.InputStream {
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+}
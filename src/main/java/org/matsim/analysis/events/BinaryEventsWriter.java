@@ -0,0 +1,310 @@
+package org.matsim.analysis.events;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.matsim.analysis.events.BinaryEventsFormat.*;
+
+/**
+ * Writes events in the binary format described in {@link BinaryEventsFormat}.
+ * <p>
+ * Events are encoded in the calling thread, compression and writing of full blocks happens asynchronously on a separate thread.
+ * Like {@link org.matsim.core.events.algorithms.EventWriterXML}, {@link #closeFile()} needs to be called after the last event.
+ */
+public final class BinaryEventsWriter implements BasicEventHandler {
+
+	/**
+	 * Maximum number of blocks waiting for compression.
+	 */
+	private static final int MAX_PENDING = 4;
+
+	private final CountingOutputStream out;
+	private final ExecutorService executor;
+	private final Semaphore pending = new Semaphore(MAX_PENDING);
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private final List<Future<?>> futures = new ArrayList<>();
+
+	/**
+	 * Written blocks, only accessed from the executor until it is shut down.
+	 */
+	private final List<Block> index = new ArrayList<>();
+
+	private final Object2IntMap<String> dictionary = new Object2IntOpenHashMap<>();
+	private final List<String> strings = new ArrayList<>();
+	private final BitSet linkCodes = new BitSet();
+
+	/**
+	 * Link codes of the current block.
+	 */
+	private final BitSet blockLinks = new BitSet();
+
+	private byte[] buf = new byte[1 << 20];
+	private int pos;
+	private long prevTime;
+	private Block block = new Block();
+
+	public BinaryEventsWriter(String filename) {
+		try {
+			out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(Path.of(filename)), 1 << 16));
+
+			DataOutputStream header = new DataOutputStream(out);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.flush();
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not open " + filename, e);
+		}
+
+		dictionary.defaultReturnValue(-1);
+
+		executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "BinaryEventsWriter");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+
+		double time = event.getTime();
+		long ms = Math.round(time * 1000);
+
+		Map<String, String> attributes = event.getAttributes();
+
+		writeVarInt(code(event.getEventType()));
+		writeVarLong(zigzag(ms - prevTime));
+		prevTime = ms;
+
+		// time and type are not repeated
+		int n = attributes.size();
+		if (attributes.containsKey(Event.ATTRIBUTE_TIME))
+			n--;
+		if (attributes.containsKey(Event.ATTRIBUTE_TYPE))
+			n--;
+
+		writeVarInt(n);
+
+		for (Map.Entry<String, String> e : attributes.entrySet()) {
+			String key = e.getKey();
+			if (key.equals(Event.ATTRIBUTE_TIME) || key.equals(Event.ATTRIBUTE_TYPE))
+				continue;
+
+			writeVarInt(code(key));
+
+			String value = e.getValue();
+			if (value != null && DICTIONARY_ATTRIBUTES.contains(key)) {
+				int code = code(value);
+				writeVarInt(code << 1);
+
+				if (key.equals(LINK)) {
+					linkCodes.set(code);
+					blockLinks.set(code);
+				}
+
+			} else {
+				writeVarInt(1);
+				writeString(value == null ? "" : value);
+			}
+		}
+
+		block.minTime = Math.min(block.minTime, time);
+		block.maxTime = Math.max(block.maxTime, time);
+
+		if (++block.events >= BLOCK_EVENTS)
+			flushBlock();
+	}
+
+	/**
+	 * Write remaining events and the footer and close the file.
+	 */
+	public void closeFile() {
+
+		if (block.events > 0)
+			flushBlock();
+
+		executor.shutdown();
+
+		try {
+			for (Future<?> f : futures)
+				f.get();
+
+			DataOutputStream data = new DataOutputStream(out);
+			long footer = out.count;
+
+			data.writeInt(strings.size());
+			for (String s : strings)
+				data.writeUTF(s);
+
+			long[] links = linkCodes.toLongArray();
+			data.writeInt(links.length);
+			for (long l : links)
+				data.writeLong(l);
+
+			data.writeInt(index.size());
+			for (Block b : index) {
+				data.writeLong(b.offset);
+				data.writeInt(b.compressedLength);
+				data.writeInt(b.rawLength);
+				data.writeInt(b.events);
+				data.writeDouble(b.minTime);
+				data.writeDouble(b.maxTime);
+				writeLinks(data, b.links);
+			}
+
+			data.writeLong(footer);
+			data.writeInt(MAGIC);
+			data.close();
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write events", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while writing events", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not write events", e.getCause());
+		} finally {
+			releaseDeflater();
+		}
+	}
+
+	/**
+	 * Free the native memory of the deflater, once the compression thread is done with it.
+	 */
+	private void releaseDeflater() {
+		try {
+			if (executor.awaitTermination(1, TimeUnit.MINUTES))
+				deflater.end();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Hand the current block over to the compression thread.
+	 */
+	private void flushBlock() {
+
+		byte[] raw = new byte[pos];
+		System.arraycopy(buf, 0, raw, 0, pos);
+
+		Block b = block;
+		b.rawLength = pos;
+		b.links = blockLinks.stream().toArray();
+		blockLinks.clear();
+
+		block = new Block();
+		pos = 0;
+		prevTime = 0;
+
+		pending.acquireUninterruptibly();
+		futures.add(executor.submit(() -> {
+			try {
+				writeBlock(b, raw);
+			} finally {
+				pending.release();
+			}
+			return null;
+		}));
+	}
+
+	/**
+	 * Compress and write a block, runs on the executor thread.
+	 */
+	private void writeBlock(Block b, byte[] raw) throws IOException {
+
+		deflater.reset();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4);
+		try (DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater)) {
+			dos.write(raw);
+		}
+
+		b.offset = out.count;
+		b.compressedLength = compressed.size();
+		compressed.writeTo(out);
+
+		index.add(b);
+	}
+
+	private int code(String s) {
+		int code = dictionary.getInt(s);
+		if (code == -1) {
+			code = strings.size();
+			strings.add(s);
+			dictionary.put(s, code);
+		}
+		return code;
+	}
+
+	private void ensure(int n) {
+		if (pos + n > buf.length) {
+			byte[] b = new byte[Math.max(buf.length * 2, pos + n)];
+			System.arraycopy(buf, 0, b, 0, pos);
+			buf = b;
+		}
+	}
+
+	private void writeVarInt(int v) {
+		writeVarLong(v & 0xffffffffL);
+	}
+
+	private void writeVarLong(long v) {
+		ensure(10);
+		while ((v & ~0x7fL) != 0) {
+			buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+	}
+
+	private void writeString(String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(b.length);
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, pos, b.length);
+		pos += b.length;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	/**
+	 * Output stream that keeps track of the number of written bytes.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
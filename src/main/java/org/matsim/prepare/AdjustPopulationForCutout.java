@@ -3,29 +3,41 @@ package org.matsim.prepare;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
 import org.apache.commons.math3.distribution.LogNormalDistribution;
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Activity;
-import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimAppCommand;
 import org.matsim.application.options.ShpOptions;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.io.StreamingPopulationWriter;
 import org.matsim.core.router.TripStructureUtils;
-import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
 import org.matsim.run.RunDuesseldorfScenario;
 import picocli.CommandLine;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 import static org.matsim.run.RunDuesseldorfScenario.VERSION;
@@ -38,6 +50,11 @@ public class AdjustPopulationForCutout implements MATSimAppCommand {
 
 	private static final Logger log = LogManager.getLogger(AdjustPopulationForCutout.class);
 
+	/**
+	 * Seed for the random displacement of activities.
+	 */
+	private static final long SEED = 1234;
+
 	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Input population xml", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-25pct.plans.xml.gz")
 	private List<Path> input;
 
@@ -50,6 +67,9 @@ public class AdjustPopulationForCutout implements MATSimAppCommand {
 	@CommandLine.Option(names = "--scale", description = "Additional scale for the length", defaultValue = "1.15")
 	private double scale;
 
+	@CommandLine.Option(names = "--streaming", description = "Process one person at a time instead of loading the whole population into memory", defaultValue = "false")
+	private boolean streaming;
+
 	@CommandLine.Mixin
 	private ShpOptions shp = new ShpOptions();
 
@@ -66,12 +86,35 @@ public class AdjustPopulationForCutout implements MATSimAppCommand {
 			return 2;
 		}
 
-		Population population = PopulationUtils.readPopulation(input.get(0).toString());
 		Network network = NetworkUtils.readNetwork(networkPath.toString());
 
 		ShpOptions.Index index = shp.createIndex(RunDuesseldorfScenario.COORDINATE_SYSTEM, "_");
 
-		DoubleList dist = computeLinkDistances(population, network, act -> index.contains(act.getCoord()));
+		LinkIndex linkIndex = new LinkIndex(network);
+
+		if (streaming)
+			return adjustStreaming(index, linkIndex);
+
+		Population population = PopulationUtils.readPopulation(input.get(0).toString());
+
+		adjustPopulation(population, index, linkIndex, scale);
+
+		PopulationUtils.writePopulation(population, output.toString());
+
+		return 0;
+	}
+
+	/**
+	 * Move all activities outside the shape closer to the network, so that their distances to the nearest link
+	 * follow the same distribution as within the shape. The population is modified in place.
+	 */
+	static void adjustPopulation(Population population, ShpOptions.Index index, LinkIndex linkIndex, double scale) {
+
+		// nearest link queries are memoized, because many activities share the same coordinates
+		Map<Coord, LinkIndex.Match> matches = new ConcurrentHashMap<>();
+		Function<Coord, LinkIndex.Match> nearest = coord -> matches.computeIfAbsent(coord, linkIndex::nearest);
+
+		DoubleList dist = computeLinkDistances(population, nearest, act -> index.contains(act.getCoord()));
 
 		// Data exploring
 		/*
@@ -91,97 +134,208 @@ public class AdjustPopulationForCutout implements MATSimAppCommand {
 		double lstd = Math.sqrt(dist.doubleStream().map(Math::log).map(x -> (x - lmean) * (x - lmean)).sum() / dist.size());
 
 		LogNormalDistribution normal = new LogNormalDistribution(lmean, lstd);
-		Random r = new Random(1234);
 
-		dist.clear();
+		dist = computeLinkDistances(population, nearest, act -> !index.contains(act.getCoord()));
+
+		double mean2 = dist.doubleStream().sum() / dist.size();
+		double std2 = Math.sqrt(dist.doubleStream().map(x -> (x - mean2) * (x - mean2)).sum() / dist.size());
+
+		log.info("Distance to nearest link distribution outside shape had mean: {}, std: {}", mean2, std2);
 
 		// same coordinates always need to be mapped to same position
-		Map<Coord, Coord> mapping = new HashMap<>();
+		// the new position only depends on the coordinate itself, so the result is independent of processing order
+		Map<Coord, Coord> mapping = new ConcurrentHashMap<>();
 
-		for (Person p : population.getPersons().values()) {
+		population.getPersons().values().parallelStream().forEach(p -> {
 
 			Plan plan = p.getSelectedPlan();
 
 			for (Activity act : PopulationUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities)) {
-
 				if (!index.contains(act.getCoord())) {
+					Coord v = mapping.computeIfAbsent(act.getCoord(), coord -> moveToLink(coord, nearest.apply(coord), normal, scale));
+					act.setCoord(v);
+				}
+			}
+		});
 
-					Link link = NetworkUtils.getNearestLinkExactly(network, act.getCoord());
-					Coord coord = NetworkUtils.findNearestPointOnLink(act.getCoord(), link);
-					double d = CoordUtils.calcEuclideanDistance(act.getCoord(), coord);
+		log.info("Mapped {} unique coordinates using {} indexed links", mapping.size(), linkIndex.size());
 
-					dist.add(d);
+		dist = computeLinkDistances(population, nearest, act -> !index.contains(act.getCoord()));
 
-					Coord v;
-					if (mapping.containsKey(act.getCoord()))
-						v = mapping.get(act.getCoord());
-					else {
+		double mean3 = dist.doubleStream().sum() / dist.size();
+		double std3 = Math.sqrt(dist.doubleStream().map(x -> (x - mean3) * (x - mean3)).sum() / dist.size());
 
-						// Compute perpendicular vector and normalize length to 1
-						double x = link.getFromNode().getCoord().getX() - link.getToNode().getCoord().getX();
-						double y = link.getFromNode().getCoord().getY() - link.getToNode().getCoord().getY();
+		log.info("Distance to nearest link distribution outside shape after adjusting has mean: {}, std: {}", mean3, std3);
+	}
 
-						double length = Math.sqrt(x*x + y*y);
-						x /= length;
-						y /= length;
+	/**
+	 * Adjust the population by streaming through the input twice. The first pass only gathers the distance statistics,
+	 * the second pass moves the activities and writes each person directly to the output.
+	 * Memory usage does not depend on the size of the population.
+	 */
+	private Integer adjustStreaming(ShpOptions.Index index, LinkIndex linkIndex) throws IOException {
+
+		SummaryStatistics inside = new SummaryStatistics();
+		SummaryStatistics logInside = new SummaryStatistics();
+		SummaryStatistics outside = new SummaryStatistics();
+
+		streamPopulation(p -> {
+			for (Activity act : PopulationUtils.getActivities(p.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities)) {
+				double d = linkIndex.nearest(act.getCoord()).getDistance();
+				if (index.contains(act.getCoord())) {
+					inside.addValue(d);
+					logInside.addValue(Math.log(d));
+				} else
+					outside.addValue(d);
+			}
+		});
 
-						double m = scale * Math.max(0, normal.sample());
+		log.info("Distance to nearest link distribution within shape has mean: {}, std: {}", inside.getMean(), Math.sqrt(inside.getPopulationVariance()));
+		log.info("Distance to nearest link distribution outside shape had mean: {}, std: {}", outside.getMean(), Math.sqrt(outside.getPopulationVariance()));
 
-						// Random direction
-						if (r.nextBoolean()) {
-							v = new Coord(coord.getX() + y * m, coord.getY() - x * m);
-						} else {
-							v = new Coord(coord.getX() - y * m, coord.getY() + x * m);
-						}
+		LogNormalDistribution normal = new LogNormalDistribution(logInside.getMean(), Math.sqrt(logInside.getPopulationVariance()));
 
+		SummaryStatistics adjusted = new SummaryStatistics();
 
-						mapping.put(act.getCoord(), v);
-					}
+		// the streaming writer does not write population attributes, they are added when the file is copied to the output
+		Path tmp = Files.createTempFile(output.toAbsolutePath().getParent(), "population", ".xml.gz");
+
+		StreamingPopulationWriter writer = new StreamingPopulationWriter();
+		writer.startStreaming(tmp.toString());
 
+		streamPopulation(p -> {
+			for (Activity act : PopulationUtils.getActivities(p.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities)) {
+				if (!index.contains(act.getCoord())) {
+					Coord v = moveToLink(act.getCoord(), linkIndex.nearest(act.getCoord()), normal, scale);
 					act.setCoord(v);
+					adjusted.addValue(linkIndex.nearest(v).getDistance());
 				}
 			}
-		}
 
-		double mean2 = dist.doubleStream().sum() / dist.size();
-		double std2 = Math.sqrt(dist.doubleStream().map(x -> (x - mean2) * (x - mean2)).sum() / dist.size());
+			writer.run(p);
+		});
 
-		log.info("Distance to nearest link distribution outside shape had mean: {}, std: {}", mean2, std2);
+		writer.closeStreaming();
 
-		dist = computeLinkDistances(population, network, act -> !index.contains(act.getCoord()));
+		try {
+			copyWithAttributes(tmp, readPopulationAttributes(input.get(0)), output);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
 
-		double mean3 = dist.doubleStream().sum() / dist.size();
-		double std3 = Math.sqrt(dist.doubleStream().map(x -> (x - mean3) * (x - mean3)).sum() / dist.size());
+		log.info("Distance to nearest link distribution outside shape after adjusting has mean: {}, std: {}", adjusted.getMean(), Math.sqrt(adjusted.getPopulationVariance()));
 
-		log.info("Distance to nearest link distribution outside shape after adjusting has mean: {}, std: {}", mean3, std3);
+		return 0;
+	}
 
-		PopulationUtils.writePopulation(population, output.toString());
+	/**
+	 * Read the input population and pass each person to the algorithm, without retaining them.
+	 */
+	private void streamPopulation(PersonAlgorithm algorithm) {
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		StreamingPopulationReader reader = new StreamingPopulationReader(scenario);
+		reader.addAlgorithm(algorithm);
+		reader.readFile(input.get(0).toString());
+	}
 
-		return 0;
+	/**
+	 * Lines of the population attributes in the xml file, like the coordinate reference system.
+	 */
+	private static List<String> readPopulationAttributes(Path file) throws IOException {
+
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = IOUtils.getBufferedReader(file.toString())) {
+
+			boolean population = false;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String t = line.trim();
+				if (t.startsWith("<population")) {
+					population = true;
+				} else if (population) {
+					// attributes come before the first person
+					if (t.startsWith("<person") || t.startsWith("</population"))
+						break;
+
+					if (t.startsWith("<attributes") || !lines.isEmpty())
+						lines.add(line);
+
+					if (t.startsWith("</attributes"))
+						break;
+				}
+			}
+		}
+
+		return lines;
 	}
 
 	/**
-	 * Compute distances to the nearest link for all activities that match the predicate.
+	 * Copy a population xml and insert the given attribute lines after the population start tag.
 	 */
-	private DoubleList computeLinkDistances(Population population, Network network, Predicate<Activity> f) {
-		DoubleList dist = new DoubleArrayList();
+	private static void copyWithAttributes(Path file, List<String> attributes, Path output) throws IOException {
+
+		try (BufferedReader reader = IOUtils.getBufferedReader(file.toString());
+			 BufferedWriter writer = IOUtils.getBufferedWriter(output.toString())) {
+
+			boolean inserted = attributes.isEmpty();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				writer.write(line);
+				writer.newLine();
+
+				if (!inserted && line.trim().startsWith("<population")) {
+					writer.newLine();
+					for (String a : attributes) {
+						writer.write(a);
+						writer.newLine();
+					}
+					inserted = true;
+				}
+			}
+		}
+	}
 
-		for (Person p : population.getPersons().values()) {
+	/**
+	 * Place a coordinate next to its nearest link, with a distance drawn from the given distribution.
+	 * The random draw is seeded by the coordinate, so that the same input always yields the same output.
+	 */
+	private static Coord moveToLink(Coord coord, LinkIndex.Match match, LogNormalDistribution normal, double scale) {
 
-			Plan plan = p.getSelectedPlan();
+		Link link = match.getLink();
+		Coord point = match.getPoint();
 
-			for (Activity act : PopulationUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.ExcludeStageActivities)) {
-				if (f.test(act)) {
+		Random r = new Random(SEED ^ (31 * Double.hashCode(coord.getX()) + Double.hashCode(coord.getY())));
 
-					Link link = NetworkUtils.getNearestLinkExactly(network, act.getCoord());
+		// Compute perpendicular vector and normalize length to 1
+		double x = link.getFromNode().getCoord().getX() - link.getToNode().getCoord().getX();
+		double y = link.getFromNode().getCoord().getY() - link.getToNode().getCoord().getY();
 
-					Coord coord = NetworkUtils.findNearestPointOnLink(act.getCoord(), link);
+		double length = Math.sqrt(x*x + y*y);
+		x /= length;
+		y /= length;
 
-					dist.add(CoordUtils.calcEuclideanDistance(act.getCoord(), coord));
-				}
-			}
+		double m = scale * Math.max(0, normal.inverseCumulativeProbability(r.nextDouble()));
+
+		// Random direction
+		if (r.nextBoolean()) {
+			return new Coord(point.getX() + y * m, point.getY() - x * m);
+		} else {
+			return new Coord(point.getX() - y * m, point.getY() + x * m);
 		}
+	}
+
+	/**
+	 * Compute distances to the nearest link for all activities that match the predicate.
+	 * Persons are processed in parallel, but the order of the result is deterministic.
+	 */
+	private static DoubleList computeLinkDistances(Population population, Function<Coord, LinkIndex.Match> nearest, Predicate<Activity> f) {
+
+		double[] dist = population.getPersons().values().parallelStream()
+				.flatMap(p -> PopulationUtils.getActivities(p.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities).stream())
+				.filter(f)
+				.mapToDouble(act -> nearest.apply(act.getCoord()).getDistance())
+				.toArray();
 
-		return dist;
+		return DoubleArrayList.wrap(dist);
 	}
 }
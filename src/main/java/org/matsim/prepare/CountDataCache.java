@@ -0,0 +1,289 @@
+package org.matsim.prepare;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Raw hourly count records stored in columns: station, hour and volume.
+ * <p>
+ * Hours are counted from 1970-01-01 in local time, so that {@code hour / 24} is the epoch day and {@code hour % 24} the hour of the day.
+ * The data can be persisted with {@link #write(Path)} and memory-mapped with {@link #read(Path)}, and aggregated with different filters
+ * without reading the original files again.
+ */
+public final class CountDataCache {
+
+	/**
+	 * Changed when the content of the cache changes, version 1 contained only mapped stations.
+	 */
+	private static final int MAGIC = 0x43444332;
+
+	private final List<String> stations;
+	private final IntBuffer station;
+	private final IntBuffer hour;
+	private final FloatBuffer volume;
+
+	private CountDataCache(List<String> stations, IntBuffer station, IntBuffer hour, FloatBuffer volume) {
+		this.stations = stations;
+		this.station = station;
+		this.hour = hour;
+		this.volume = volume;
+	}
+
+	/**
+	 * Aggregation of the values of one station and hour.
+	 */
+	public enum Aggregation {
+		mean, median
+	}
+
+	/**
+	 * Memory-map a cache written by {@link #write(Path)}.
+	 */
+	public static CountDataCache read(Path path) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+
+			if (in.readInt() != MAGIC)
+				throw new IllegalArgumentException("Not a count data cache or written by an older version: " + path);
+
+			int n = in.readInt();
+			List<String> stations = new ArrayList<>(n);
+			for (int i = 0; i < n; i++)
+				stations.add(in.readUTF());
+
+			int offset = in.readInt();
+			int rows = in.readInt();
+
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) rows * 3 * Integer.BYTES);
+
+			IntBuffer station = data.slice().limit(rows * Integer.BYTES).asIntBuffer();
+			IntBuffer hour = data.position(rows * Integer.BYTES).slice().limit(rows * Integer.BYTES).asIntBuffer();
+			FloatBuffer volume = data.position(2 * rows * Integer.BYTES).slice().asFloatBuffer();
+
+			return new CountDataCache(stations, station, hour, volume);
+		}
+	}
+
+	/**
+	 * Write the cache to a file, which can be memory-mapped with {@link #read(Path)}.
+	 */
+	public void write(Path path) throws IOException {
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(header)) {
+			out.writeInt(MAGIC);
+			out.writeInt(stations.size());
+			for (String s : stations)
+				out.writeUTF(s);
+		}
+
+		int rows = size();
+		// header, offset and number of rows
+		int offset = header.size() + 2 * Integer.BYTES;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			ByteBuffer head = ByteBuffer.allocate(offset);
+			head.put(header.toByteArray()).putInt(offset).putInt(rows).flip();
+			channel.write(head);
+
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			for (int column = 0; column < 3; column++) {
+				for (int i = 0; i < rows; i++) {
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						channel.write(buffer);
+						buffer.clear();
+					}
+
+					if (column == 0)
+						buffer.putInt(station.get(i));
+					else if (column == 1)
+						buffer.putInt(hour.get(i));
+					else
+						buffer.putFloat(volume.get(i));
+				}
+			}
+
+			buffer.flip();
+			channel.write(buffer);
+		}
+	}
+
+	public List<String> getStations() {
+		return Collections.unmodifiableList(stations);
+	}
+
+	/**
+	 * Number of records.
+	 */
+	public int size() {
+		return station.limit();
+	}
+
+	/**
+	 * Hourly mean or median of each station, for the days accepted by the filter.
+	 *
+	 * @param days filter on the epoch day, see {@link LocalDate#toEpochDay()}
+	 * @return 24 values for each station with data, NaN for hours without data
+	 */
+	public Map<String, double[]> aggregate(IntPredicate days, Aggregation aggregation) {
+
+		int rows = size();
+		int groups = stations.size() * 24;
+
+		// evaluate the filter once per day
+		int minDay = Integer.MAX_VALUE;
+		int maxDay = Integer.MIN_VALUE;
+		for (int i = 0; i < rows; i++) {
+			int d = Math.floorDiv(hour.get(i), 24);
+			minDay = Math.min(minDay, d);
+			maxDay = Math.max(maxDay, d);
+		}
+
+		boolean[] accepted = new boolean[rows > 0 ? maxDay - minDay + 1 : 0];
+		for (int d = 0; d < accepted.length; d++)
+			accepted[d] = days.test(minDay + d);
+
+		double[] result = new double[groups];
+
+		if (aggregation == Aggregation.mean) {
+			double[] sum = new double[groups];
+			int[] count = new int[groups];
+
+			for (int i = 0; i < rows; i++) {
+				int h = hour.get(i);
+				if (!accepted[Math.floorDiv(h, 24) - minDay])
+					continue;
+
+				int g = station.get(i) * 24 + Math.floorMod(h, 24);
+				sum[g] += volume.get(i);
+				count[g]++;
+			}
+
+			for (int g = 0; g < groups; g++)
+				result[g] = count[g] > 0 ? sum[g] / count[g] : Double.NaN;
+
+		} else {
+			// values are sorted into one segment per group
+			int[] offsets = new int[groups + 1];
+			for (int i = 0; i < rows; i++) {
+				int h = hour.get(i);
+				if (accepted[Math.floorDiv(h, 24) - minDay])
+					offsets[station.get(i) * 24 + Math.floorMod(h, 24) + 1]++;
+			}
+
+			for (int g = 0; g < groups; g++)
+				offsets[g + 1] += offsets[g];
+
+			float[] values = new float[offsets[groups]];
+			int[] pos = Arrays.copyOf(offsets, groups);
+
+			for (int i = 0; i < rows; i++) {
+				int h = hour.get(i);
+				if (accepted[Math.floorDiv(h, 24) - minDay])
+					values[pos[station.get(i) * 24 + Math.floorMod(h, 24)]++] = volume.get(i);
+			}
+
+			for (int g = 0; g < groups; g++) {
+				int from = offsets[g];
+				int n = offsets[g + 1] - from;
+				if (n == 0) {
+					result[g] = Double.NaN;
+					continue;
+				}
+
+				Arrays.sort(values, from, from + n);
+				result[g] = n % 2 == 1 ? values[from + n / 2] : (values[from + n / 2 - 1] + values[from + n / 2]) / 2.0;
+			}
+		}
+
+		Map<String, double[]> stationValues = new LinkedHashMap<>();
+		for (int s = 0; s < stations.size(); s++) {
+			double[] v = Arrays.copyOfRange(result, s * 24, s * 24 + 24);
+			if (Arrays.stream(v).anyMatch(x -> !Double.isNaN(x)))
+				stationValues.put(stations.get(s), v);
+		}
+
+		return stationValues;
+	}
+
+	/**
+	 * Collects records in memory. Not thread-safe, but builders can be merged.
+	 */
+	public static final class Builder {
+
+		private final List<String> stations = new ArrayList<>();
+		private final Object2IntMap<String> index = new Object2IntOpenHashMap<>();
+
+		private final IntArrayList station = new IntArrayList();
+		private final IntArrayList hour = new IntArrayList();
+		private final FloatArrayList volume = new FloatArrayList();
+
+		public Builder() {
+			index.defaultReturnValue(-1);
+		}
+
+		/**
+		 * Code of a station, which can be used for {@link #add(int, LocalDate, int, float)}.
+		 */
+		public int station(String name) {
+			int idx = index.getInt(name);
+			if (idx == -1) {
+				idx = stations.size();
+				stations.add(name);
+				index.put(name, idx);
+			}
+			return idx;
+		}
+
+		public void add(int station, LocalDate date, int hourOfDay, float volume) {
+			this.station.add(station);
+			this.hour.add((int) (date.toEpochDay() * 24 + hourOfDay));
+			this.volume.add(volume);
+		}
+
+		/**
+		 * Append all records of another builder.
+		 */
+		public void addAll(Builder other) {
+			int[] codes = new int[other.stations.size()];
+			for (int i = 0; i < codes.length; i++)
+				codes[i] = station(other.stations.get(i));
+
+			for (int i = 0; i < other.station.size(); i++) {
+				station.add(codes[other.station.getInt(i)]);
+				hour.add(other.hour.getInt(i));
+				volume.add(other.volume.getFloat(i));
+			}
+		}
+
+		/**
+		 * Number of records.
+		 */
+		public int size() {
+			return station.size();
+		}
+
+		public CountDataCache build() {
+			return new CountDataCache(new ArrayList<>(stations), IntBuffer.wrap(station.toIntArray()),
+					IntBuffer.wrap(hour.toIntArray()), FloatBuffer.wrap(volume.toFloatArray()));
+		}
+	}
+}
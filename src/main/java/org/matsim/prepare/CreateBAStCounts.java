@@ -1,6 +1,5 @@
 package org.matsim.prepare;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
@@ -70,10 +69,9 @@ public class CreateBAStCounts implements MATSimAppCommand {
 
 			var count = counts.createAndAddCount(Id.createLinkId(value.getLinkId()), data.getValue().getStationId());
 
-			for (var hour : data.getValue().getResult().keySet()) {
-
-				count.createVolume(Integer.parseInt(StringUtils.stripStart(hour, "0")), data.getValue().getResult().get(hour));
-
+			for (int hour = 1; hour <= 24; hour++) {
+				if (value.hasValues(hour))
+					count.createVolume(hour, value.averageForHour(hour));
 			}
 			logger.info("Create new count object! Station ID: " + value.getStationId() + "  Link ID: " + value.getLinkId() + "  Counts: " + value.getResult());
 		}
@@ -16,17 +16,25 @@ import picocli.CommandLine;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+/**
+ * Creates counts from the monthly zip files of the city count stations.
+ * <p>
+ * Only Tuesdays to Thursdays that are not holidays are used. For each station the mean or median volume per hour over all these days is computed,
+ * stations mapped to the same link are summed up. The raw records of all stations can be stored in a {@link CountDataCache}, which is used instead of
+ * the zip files when it exists. The cache does not depend on the mapping, which is applied during aggregation.
+ */
 @CommandLine.Command(
 		name = "createCityCounts",
 		description = "Aggregate and convert counts from inner city"
@@ -35,7 +43,20 @@ public class CreateCityCounts implements MATSimAppCommand {
 
 	private static final Logger log = LogManager.getLogger(CreateCityCounts.class);
 
-	private final Set<String> allStations = new HashSet<>();
+	private static final int YEAR = 2019;
+
+	private static final Set<LocalDate> HOLIDAYS = Set.of(
+			LocalDate.of(YEAR, 1, 1), LocalDate.of(YEAR, 4, 19), LocalDate.of(YEAR, 4, 22), LocalDate.of(YEAR, 5, 1),
+			LocalDate.of(YEAR, 5, 30), LocalDate.of(YEAR, 6, 10), LocalDate.of(YEAR, 6, 20), LocalDate.of(YEAR, 10, 3),
+			LocalDate.of(YEAR, 11, 1), LocalDate.of(YEAR, 12, 25), LocalDate.of(YEAR, 12, 26)
+	);
+
+	/**
+	 * Days of the year that are used.
+	 */
+	private static final BitSet VALID_DAYS = validDays();
+
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd.MM.yyyy");
 
 	/**
 	 * Map station name to link id.
@@ -53,6 +74,12 @@ public class CreateCityCounts implements MATSimAppCommand {
 			defaultValue = "../public-svn/matsim/scenarios/countries/de/duesseldorf/duesseldorf-v1.0/matsim-input-files/counts-city.xml.gz")
 	private String output;
 
+	@CommandLine.Option(names = {"--cache"}, description = "Columnar cache of the raw records, created if it does not exist")
+	private Path cache;
+
+	@CommandLine.Option(names = {"--aggregation"}, description = "Aggregation of the hourly values: ${COMPLETION-CANDIDATES}", defaultValue = "mean")
+	private CountDataCache.Aggregation aggregation;
+
 	public static void main(String[] args) throws IOException {
 		System.exit(new CommandLine(new CreateCityCounts()).execute(args));
 	}
@@ -60,11 +87,6 @@ public class CreateCityCounts implements MATSimAppCommand {
 	@Override
 	public Integer call() throws Exception {
 
-		if (!Files.exists(input)) {
-			log.error("Input {} does not exist.", input);
-			return 1;
-		}
-
 		if (!Files.exists(mappingInput)) {
 			log.error("Mapping {} does not exist.", mappingInput);
 			return 1;
@@ -72,30 +94,27 @@ public class CreateCityCounts implements MATSimAppCommand {
 
 		readMapping(mappingInput);
 
-		// map of month to counts
-		Map<String, Counts<Link>> collect = Files.list(input)
-				.filter(f -> f.getFileName().toString().endsWith(".zip"))
-				.collect(Collectors.toList()) // need to collect first
-				.parallelStream()
-				.map(this::readCounts)
-				.collect(Collectors.toMap(Counts::getName, Function.identity()));
-
-		for (var counts : collect.entrySet()) {
-			log.info("**********************************************************************************************************************************");
-			log.info("* Month: " + counts.getKey());
-
-			for (Count<Link> value : counts.getValue().getCounts().values()) {
-				log.info("LinkId : {}", value.getId());
-				log.info("* Counts per hour: {}", value.getVolumes());
+		CountDataCache data;
+		if (cache != null && Files.exists(cache)) {
+			log.info("Using cached records from {}", cache);
+			data = CountDataCache.read(cache);
+		} else {
+			if (!Files.exists(input)) {
+				log.error("Input {} does not exist.", input);
+				return 1;
 			}
 
-			log.info("**********************************************************************************************************************************");
+			data = readRecords();
+			if (cache != null) {
+				data.write(cache);
+				log.info("Written {} records to {}", data.size(), cache);
+			}
 		}
 
-		//TODO: Delete empty counts
+		Map<String, double[]> stations = new TreeMap<>(data.aggregate(CreateCityCounts::isValidDay, aggregation));
 
-		Counts<Link> finalCounts = aggregateCounts(collect);
-		finalCounts.setYear(2019);
+		Counts<Link> finalCounts = aggregateCounts(stations);
+		finalCounts.setYear(YEAR);
 		new CountsWriter(finalCounts).write(output);
 
 		return 0;
@@ -116,14 +135,37 @@ public class CreateCityCounts implements MATSimAppCommand {
 	}
 
 	/**
-	 * Read one month of count data from for all sensors for zip file.
+	 * Read the records of all zip files.
 	 */
-	private Counts<Link> readCounts(Path zip) {
+	private CountDataCache readRecords() throws IOException {
 
-		Counts<Link> counts = new Counts<>();
-		counts.setYear(2019);
-		String monthNumber = zip.getFileName().toString().split("-")[0];
-		counts.setName(monthNumber);
+		List<Path> zips;
+		try (var files = Files.list(input)) {
+			zips = files.filter(f -> f.getFileName().toString().endsWith(".zip"))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+
+		// months are read in parallel, the order of the results is the order of the files
+		List<CountDataCache.Builder> months = zips.parallelStream()
+				.map(CreateCityCounts::readCounts)
+				.collect(Collectors.toList());
+
+		CountDataCache.Builder builder = new CountDataCache.Builder();
+		months.forEach(builder::addAll);
+
+		return builder.build();
+	}
+
+	/**
+	 * Read one month of count data for all sensors of a zip file.
+	 */
+	private static CountDataCache.Builder readCounts(Path zip) {
+
+		CountDataCache.Builder builder = new CountDataCache.Builder();
+
+		// dates are repeated for every hour of every station and are parsed only once
+		Map<String, LocalDate> days = new HashMap<>();
 
 		try (ZipInputStream in = new ZipInputStream(Files.newInputStream(zip))) {
 
@@ -132,127 +174,107 @@ public class CreateCityCounts implements MATSimAppCommand {
 				if (entry.isDirectory())
 					continue;
 
-				// TODO: catch exception
-				String stationId = entry.getName().split("_")[2];
-				stationId = stationId.substring(0, stationId.length() - 4);
-
-				allStations.add(stationId);
-
-				if (!mapping.containsKey(stationId))
-					log.warn("No mapping for station {}", stationId);
-
-				else {
-					Id<Link> linkId = Id.createLinkId(stationId);
-					Count<Link> count;
-					if (counts.getCounts().containsKey(linkId)) {
-						count = counts.getCount(linkId);
-					} else {
-						count = counts.createAndAddCount(linkId, stationId);
-					}
-
-					readCsvCounts(in, count);
-					log.info("Finished reading {}", entry.getName());
+				String[] parts = entry.getName().split("_");
+				if (parts.length < 3) {
+					log.warn("Unexpected entry {} in {}", entry.getName(), zip);
+					continue;
 				}
 
+				// all stations are kept, the mapping is only applied during aggregation
+				String stationId = parts[2].substring(0, parts[2].length() - 4);
+
+				readCsvCounts(in, builder, builder.station(stationId), days);
+				log.debug("Finished reading {}", entry.getName());
 			}
 		} catch (IOException e) {
-			log.error("Could not read zip file {}", zip, e);
+			throw new UncheckedIOException("Could not read zip file " + zip, e);
 		}
 
-		return counts;
+		log.info("Read {} records from {}", builder.size(), zip);
+
+		return builder;
 	}
 
 	/**
-	 * Read counts from CSV data for one station and aggregate whole month into one count object.
-	 *
-	 * @param count count object of the link that must be populated with count data
+	 * Read counts from CSV data for one station and add them to the builder.
 	 */
-	private void readCsvCounts(InputStream in, Count<Link> count) throws IOException {
-
-		Map<Integer, List<Double>> tempCountSum = new HashMap<>();
-		Map<String, Count<Link>> result = new HashMap<>();
-		List<String> holidays2019 = Arrays.asList("01.01.2019", "19.04.2019", "22.04.2019", "01.05.2019",
-				"30.05.2019", "10.06.2019", "20.06.2019", "03.10.2019", "01.11.2019", "25.12.2019",
-				"26.12.2019");
-		DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd.MM.yyyy");
-		List<Integer> weekendDaysList = Arrays.asList(1, 5, 6, 7);
-		Double countMean;
-		double sum = 0D;
-
-		InputStreamReader reader = new InputStreamReader(in);
-		CSVParser parser = new CSVParser(reader, CSVFormat.DEFAULT
+	private static void readCsvCounts(InputStream in, CountDataCache.Builder builder, int station, Map<String, LocalDate> days) throws IOException {
+
+		// the parser must not be closed, because this would close the zip stream
+		CSVParser parser = new CSVParser(new InputStreamReader(in), CSVFormat.DEFAULT
 				.withDelimiter(';')
 				.withFirstRecordAsHeader()
 		);
 
 		for (CSVRecord record : parser) {
-			if (!isWeekend(LocalDate.parse(record.get("Time").split(" ")[0], formatter), weekendDaysList) || !holidays2019.contains(record.get("Time").split(" ")[0])) {
-
-				Integer hour = Integer.parseInt(record.get("Time").split(" ")[1].split(":")[0]);
-				double value = Double.parseDouble(record.get("processed_all_vol").replaceAll(",", "."));
-				tempCountSum.computeIfAbsent(hour, k -> new ArrayList<>()).add(value);
-				sum += value;
-			}
-		}
-
-		if (sum == 0) {
 
-			allStations.remove(count.getId().toString());
+			String time = record.get("Time");
+			int space = time.indexOf(' ');
+			LocalDate date = days.computeIfAbsent(time.substring(0, space), d -> LocalDate.parse(d, FORMATTER));
 
-		} else {
-
-			for (Map.Entry<Integer, List<Double>> meanCounts : tempCountSum.entrySet()) {
-				countMean = 0.0;
-				for (Double value : meanCounts.getValue()) {
-					countMean += value;
-				}
-				countMean = countMean / (meanCounts.getValue().size());
+			int hour = Integer.parseInt(time.substring(space + 1, time.indexOf(':', space)));
+			float value = Float.parseFloat(record.get("processed_all_vol").replace(',', '.'));
 
-				// TODO: add volumes if already existing
-				int key = meanCounts.getKey() + 1;
-				if (count.getVolumes().containsKey(key))
-					count.createVolume(key, count.getVolume(key).getValue() + countMean);
-				else
-					count.createVolume(key, countMean);
-			}
+			builder.add(station, date, hour, value);
+		}
+	}
 
+	private static BitSet validDays() {
+		BitSet days = new BitSet();
+		for (LocalDate d = LocalDate.of(YEAR, 1, 1); d.getYear() == YEAR; d = d.plusDays(1)) {
+			DayOfWeek dow = d.getDayOfWeek();
+			if ((dow == DayOfWeek.TUESDAY || dow == DayOfWeek.WEDNESDAY || dow == DayOfWeek.THURSDAY) && !HOLIDAYS.contains(d))
+				days.set(d.getDayOfYear());
 		}
+		return days;
 	}
 
-	private boolean isWeekend(LocalDate date, List<Integer> weekendDaysList) {
-		return weekendDaysList.contains(date.getDayOfWeek().getValue());
+	private static boolean isValidDay(int epochDay) {
+		LocalDate d = LocalDate.ofEpochDay(epochDay);
+		return d.getYear() == YEAR && VALID_DAYS.get(d.getDayOfYear());
 	}
 
-	private Counts<Link> aggregateCounts(Map<String, Counts<Link>> collect) {
+	/**
+	 * Create counts with the hourly values of each station, sorted by station id.
+	 */
+	private Counts<Link> aggregateCounts(Map<String, double[]> stations) {
 
 		Counts<Link> counts = new Counts<>();
-		double[] averageCounts;
-
-		// all stations
-		for (String id : allStations) {
-
-			averageCounts = new double[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
 
-			// each month
-			for (Map.Entry<String, Counts<Link>> countMap : collect.entrySet()) {
+		for (Map.Entry<String, double[]> e : stations.entrySet()) {
 
-				for (int i = 0; i < 24; i++) {
-
-					averageCounts[i] = averageCounts[i] + countMap.getValue().getCount(Id.createLinkId(id)).getVolume(i + 1).getValue();
-
-				}
+			double[] values = e.getValue();
+			if (Arrays.stream(values).filter(v -> !Double.isNaN(v)).sum() == 0) {
+				log.warn("Station {} has no counts", e.getKey());
+				continue;
 			}
 
-			for (int i = 0; i < 24; i++) {
-				averageCounts[i] = averageCounts[i] / 12;
+			if (!mapping.containsKey(e.getKey())) {
+				log.warn("No mapping for station {}", e.getKey());
+				continue;
 			}
 
-			System.out.println("ID: " + id + "\t" + Arrays.toString(averageCounts));
+			Id<Link> linkId = mapping.get(e.getKey());
+			Count<Link> count = counts.getCount(linkId);
+			if (count == null)
+				count = counts.createAndAddCount(linkId, e.getKey());
+			else
+				log.info("Adding station {} to count of link {}", e.getKey(), linkId);
 
+			for (int h = 0; h < 24; h++) {
+				if (Double.isNaN(values[h]))
+					continue;
+
+				int key = h + 1;
+				if (count.getVolume(key) != null)
+					count.createVolume(key, count.getVolume(key).getValue() + values[h]);
+				else
+					count.createVolume(key, values[h]);
+			}
 		}
 
-		return counts;
+		log.info("Created {} counts from {} stations", counts.getCounts().size(), stations.size());
 
+		return counts;
 	}
-
 }
@@ -0,0 +1,177 @@
+package org.matsim.prepare;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.contrib.emissions.EmissionUtils;
+import org.matsim.contrib.emissions.VspHbefaRoadTypeMapping;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.utils.io.IOUtils;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+
+import static org.matsim.run.RunDuesseldorfScenario.VERSION;
+
+/**
+ * Exports the emission factor table used by {@link org.matsim.analysis.OnlineEmissions} from the average HBEFA tables of the emissions contrib.
+ * <p>
+ * Warm factors of a link are looked up by its HBEFA road type, as assigned by {@link VspHbefaRoadTypeMapping}, and one fixed traffic situation.
+ * Cold start factors are taken for one ambient condition pattern. HBEFA components are written with the names of the contrib's pollutants, so
+ * that the columns match the offline air pollution analysis.
+ */
+@CommandLine.Command(
+		name = "export-emission-factors",
+		description = "Export warm and cold emission factors per link and vehicle type from HBEFA tables",
+		showDefaultValues = true
+)
+public class ExportEmissionFactors implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(ExportEmissionFactors.class);
+
+	@CommandLine.Option(names = "--network", description = "Network xml", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-network.xml.gz")
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--warm", description = "HBEFA average warm emission factors", required = true)
+	private Path warmFile;
+
+	@CommandLine.Option(names = "--cold", description = "HBEFA average cold start emission factors", required = true)
+	private Path coldFile;
+
+	@CommandLine.Option(names = "--traffic-situation", description = "HBEFA traffic situation used for all links", defaultValue = "Freeflow")
+	private String trafficSituation;
+
+	@CommandLine.Option(names = "--cold-pattern", description = "End of the HBEFA ambient condition pattern for cold starts, parking time and distance", defaultValue = ">12h,1-2km")
+	private String coldPattern;
+
+	@CommandLine.Option(names = "--category", description = "HBEFA vehicle category of each vehicle type", split = ",", defaultValue = "car=pass. car,freight=HGV")
+	private Map<String, String> categories;
+
+	@CommandLine.Option(names = "--pollutant", description = "Pollutant name of each HBEFA component", split = ",",
+			defaultValue = "CO2(total)=CO2_TOTAL,NOx=NOx,NO2=NO2,PM=PM,PM (non-exhaust)=PM_non_exhaust")
+	private Map<String, String> pollutants;
+
+	@CommandLine.Option(names = "--output", description = "Output csv", required = true)
+	private Path output;
+
+	public static void main(String[] args) {
+		new ExportEmissionFactors().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		Network network = NetworkUtils.readNetwork(networkPath.toString());
+
+		if (network.getLinks().values().stream().anyMatch(l -> EmissionUtils.getHbefaRoadType(l) == null)) {
+			log.info("Adding HBEFA road types to the network");
+			new VspHbefaRoadTypeMapping().addHbefaMappings(network);
+		}
+
+		List<String> components = new ArrayList<>(pollutants.keySet());
+
+		// factors per traffic situation and category, and per category for cold starts
+		Map<String, Map<String, double[]>> warm = readFactors(warmFile, "TrafficSit", s -> s);
+		Map<String, Map<String, double[]>> cold = readFactors(coldFile, "AmbientCondPattern", s -> s.endsWith(coldPattern) ? "" : null);
+
+		int missing = 0;
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(output.toString()), CSVFormat.DEFAULT.withDelimiter(';'))) {
+
+			printer.print("link");
+			printer.print("category");
+			for (String c : components)
+				printer.print(pollutants.get(c));
+			printer.println();
+
+			for (Link link : network.getLinks().values()) {
+
+				Map<String, double[]> factors = warm.get(EmissionUtils.getHbefaRoadType(link) + "/" + trafficSituation);
+				if (factors == null) {
+					missing++;
+					continue;
+				}
+
+				print(printer, link.getId().toString(), factors, components);
+			}
+
+			print(printer, "", cold.getOrDefault("", Map.of()), components);
+		}
+
+		if (missing > 0)
+			log.warn("{} links have no warm emission factors for traffic situation {}", missing, trafficSituation);
+
+		return 0;
+	}
+
+	private void print(CSVPrinter printer, String link, Map<String, double[]> factors, List<String> components) throws IOException {
+
+		for (Map.Entry<String, String> e : categories.entrySet()) {
+			double[] values = factors.get(e.getValue());
+			if (values == null)
+				continue;
+
+			printer.print(link);
+			printer.print(e.getKey());
+			for (int i = 0; i < components.size(); i++)
+				printer.print(values[i]);
+			printer.println();
+		}
+	}
+
+	/**
+	 * Read mean factors of the selected components, grouped by the key column and the vehicle category.
+	 *
+	 * @param key maps the value of the key column to the group, or null to skip the row
+	 */
+	private Map<String, Map<String, double[]>> readFactors(Path file, String keyColumn, Function<String, String> key) throws IOException {
+
+		List<String> components = new ArrayList<>(pollutants.keySet());
+		Map<String, Map<String, double[]>> sums = new HashMap<>();
+
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(file.toString()), CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader())) {
+			for (CSVRecord record : parser) {
+
+				int c = components.indexOf(record.get("Component"));
+				if (c == -1)
+					continue;
+
+				String group = key.apply(record.get(keyColumn));
+				if (group == null)
+					continue;
+
+				// sum and count of each component
+				double[] v = sums.computeIfAbsent(group, k -> new HashMap<>())
+						.computeIfAbsent(record.get("VehCat"), k -> new double[components.size() * 2]);
+
+				v[c] += Double.parseDouble(record.get("EFA_weighted"));
+				v[components.size() + c]++;
+			}
+		}
+
+		Map<String, Map<String, double[]>> result = new HashMap<>();
+		for (Map.Entry<String, Map<String, double[]>> e : sums.entrySet()) {
+			for (Map.Entry<String, double[]> f : e.getValue().entrySet()) {
+				double[] v = f.getValue();
+				double[] mean = new double[components.size()];
+				for (int c = 0; c < mean.length; c++)
+					mean[c] = v[mean.length + c] > 0 ? v[c] / v[mean.length + c] : 0;
+
+				result.computeIfAbsent(e.getKey(), k -> new HashMap<>()).put(f.getKey(), mean);
+			}
+		}
+
+		log.info("Read factors of {} groups from {}", result.size(), file);
+
+		return result;
+	}
+}
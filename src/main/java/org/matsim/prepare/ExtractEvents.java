@@ -8,28 +8,35 @@ import org.matsim.api.core.v01.events.LinkEnterEvent;
 import org.matsim.api.core.v01.events.LinkLeaveEvent;
 import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
 import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.analysis.events.BinaryEventsReader;
 import org.matsim.application.MATSimAppCommand;
-import org.matsim.contrib.sumo.SumoNetworkConverter;
-import org.matsim.contrib.sumo.SumoNetworkHandler;
 import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.api.experimental.events.GenericEvent;
 import org.matsim.core.api.experimental.events.LaneEnterEvent;
 import org.matsim.core.api.experimental.events.LaneLeaveEvent;
 import org.matsim.core.api.experimental.events.handler.LaneEnterEventHandler;
 import org.matsim.core.api.experimental.events.handler.LaneLeaveEventHandler;
 import org.matsim.core.events.EventsManagerImpl;
 import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.events.ParallelEventsManager;
 import org.matsim.core.events.algorithms.EventWriterXML;
 import org.matsim.core.utils.io.IOUtils;
 import org.matsim.lanes.Lane;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
 import picocli.CommandLine;
 
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.BitSet;
 
 /**
  * Executable class to extract events.
+ * <p>
+ * Events are streamed from input to output, membership of links and lanes is checked via their {@link Id#index()}.
  */
 @CommandLine.Command(
         name = "extractEvents",
@@ -52,8 +59,17 @@ public class ExtractEvents implements MATSimAppCommand, LinkEnterEventHandler, L
     @CommandLine.Option(names = "--no-lanes", description = "Don't parse lane events", defaultValue = "false")
     private boolean noLanes;
 
-    private SumoNetworkHandler sumo;
-    private List<Event> events;
+    @CommandLine.Option(names = "--async", description = "Parse and filter events on separate threads", defaultValue = "false")
+    private boolean async;
+
+    /**
+     * Indices of the contained link and lane ids.
+     */
+    private final BitSet links = new BitSet();
+    private final BitSet lanes = new BitSet();
+
+    private EventWriterXML writer;
+    private long n;
 
     public static void main(String[] args) {
         System.exit(new CommandLine(new ExtractEvents()).execute(args));
@@ -62,76 +78,124 @@ public class ExtractEvents implements MATSimAppCommand, LinkEnterEventHandler, L
     @Override
     public Integer call() throws Exception {
 
-        sumo = SumoNetworkConverter.readNetwork(network.toFile());
-        events = new ArrayList<>();
+        readIds(network);
+
+        log.info("Read {} edges and {} lanes from {}", links.cardinality(), lanes.cardinality(), network);
+
+        if (output.getParent() != null)
+            Files.createDirectories(output.getParent());
+
+        writer = new EventWriterXML(IOUtils.getOutputStream(IOUtils.getFileUrl(output.toString()), false));
 
-        EventsManager manager = new EventsManagerImpl();
+        EventsManager manager = async ? new ParallelEventsManager(false) : new EventsManagerImpl();
         manager.addHandler(this);
         manager.initProcessing();
 
-        MatsimEventsReader reader = new MatsimEventsReader(manager);
-
-        if (!noLanes) {
-            reader.addCustomEventMapper(LaneLeaveEvent.EVENT_TYPE, event ->
-                    new LaneLeaveEvent(
-                            event.getTime(),
-                            Id.createVehicleId(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_VEHICLE)),
-                            Id.createLinkId(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_LINK)),
-                            Id.create(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_LANE), Lane.class)
-                    )
-            );
-
-            reader.addCustomEventMapper(LaneEnterEvent.EVENT_TYPE, event ->
-                    new LaneEnterEvent(
-                            event.getTime(),
-                            Id.createVehicleId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_VEHICLE)),
-                            Id.createLinkId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LINK)),
-                            Id.create(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LANE), Lane.class)
-                    )
-            );
-        }
+        if (BinaryEventsReader.isBinary(input.toString())) {
+            BinaryEventsReader reader = new BinaryEventsReader(manager);
 
-        reader.readFile(input.toString());
-        manager.finishProcessing();
+            // only blocks containing extracted links are decoded
+            reader.setLinkFilter(id -> links.get(Id.createLinkId(id).index()));
 
-        log.info("Filtered {} events", events.size());
+            if (!noLanes) {
+                reader.addCustomEventMapper(LaneLeaveEvent.EVENT_TYPE, ExtractEvents::mapLaneLeave);
+                reader.addCustomEventMapper(LaneEnterEvent.EVENT_TYPE, ExtractEvents::mapLaneEnter);
+            }
 
-        manager = new EventsManagerImpl();
+            reader.readFile(input.toString());
 
-        if (output.getParent() != null)
-            Files.createDirectories(output.getParent());
+        } else {
+            MatsimEventsReader reader = new MatsimEventsReader(manager);
+
+            if (!noLanes) {
+                reader.addCustomEventMapper(LaneLeaveEvent.EVENT_TYPE, ExtractEvents::mapLaneLeave);
+                reader.addCustomEventMapper(LaneEnterEvent.EVENT_TYPE, ExtractEvents::mapLaneEnter);
+            }
 
-        EventWriterXML writer = new EventWriterXML(IOUtils.getOutputStream(IOUtils.getFileUrl(output.toString()), false));
-        manager.addHandler(writer);
+            reader.readFile(input.toString());
+        }
 
-        events.forEach(manager::processEvent);
+        manager.finishProcessing();
 
         writer.closeFile();
 
+        log.info("Filtered {} events", n);
+
         return 0;
     }
 
+    private static LaneLeaveEvent mapLaneLeave(GenericEvent event) {
+        return new LaneLeaveEvent(
+                event.getTime(),
+                Id.createVehicleId(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_VEHICLE)),
+                Id.createLinkId(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_LINK)),
+                Id.create(event.getAttributes().get(LaneLeaveEvent.ATTRIBUTE_LANE), Lane.class)
+        );
+    }
+
+    private static LaneEnterEvent mapLaneEnter(GenericEvent event) {
+        return new LaneEnterEvent(
+                event.getTime(),
+                Id.createVehicleId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_VEHICLE)),
+                Id.createLinkId(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LINK)),
+                Id.create(event.getAttributes().get(LaneEnterEvent.ATTRIBUTE_LANE), Lane.class)
+        );
+    }
+
+    /**
+     * Collect the ids of all non-internal edges and their lanes, without building the full SUMO network.
+     */
+    private void readIds(Path path) throws Exception {
+
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setValidating(false);
+        SAXParser parser = factory.newSAXParser();
+
+        try (InputStream in = IOUtils.getInputStream(IOUtils.getFileUrl(path.toString()))) {
+            parser.parse(in, new DefaultHandler() {
+
+                private boolean internal;
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if ("edge".equals(qName)) {
+                        internal = "internal".equals(attributes.getValue("function"));
+                        if (!internal)
+                            links.set(Id.createLinkId(attributes.getValue("id")).index());
+                    } else if ("lane".equals(qName) && !internal) {
+                        lanes.set(Id.create(attributes.getValue("id"), Lane.class).index());
+                    }
+                }
+            });
+        }
+    }
+
+    private void write(Event event) {
+        writer.handleEvent(event);
+        n++;
+    }
+
     @Override
     public void handleEvent(LinkEnterEvent event) {
-        if (sumo.getEdges().containsKey(event.getLinkId().toString()))
-            events.add(event);
+        if (links.get(event.getLinkId().index()))
+            write(event);
     }
 
     @Override
     public void handleEvent(LinkLeaveEvent event) {
-        if (sumo.getEdges().containsKey(event.getLinkId().toString()))
-            events.add(event);
+        if (links.get(event.getLinkId().index()))
+            write(event);
     }
 
     @Override
     public void handleEvent(LaneEnterEvent event) {
-        if (sumo.getEdges().containsKey(event.getLinkId().toString()) || sumo.getLanes().containsKey(event.getLaneId().toString()))
-            events.add(event);
+        if (links.get(event.getLinkId().index()) || lanes.get(event.getLaneId().index()))
+            write(event);
     }
 
     @Override
     public void handleEvent(LaneLeaveEvent event) {
-        if (sumo.getEdges().containsKey(event.getLinkId().toString()) || sumo.getLanes().containsKey(event.getLaneId().toString()))
-            events.add(event);
+        if (links.get(event.getLinkId().index()) || lanes.get(event.getLaneId().index()))
+            write(event);
     }
 }
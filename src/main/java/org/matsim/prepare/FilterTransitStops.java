@@ -1,24 +1,66 @@
 package org.matsim.prepare;
 
 import com.conveyal.gtfs.model.Stop;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.core.utils.geometry.CoordinateTransformation;
 import org.matsim.core.utils.geometry.transformations.TransformationFactory;
 import org.matsim.run.RunDuesseldorfScenario;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Predicate;
 
 /**
  * Filter transit stops.
+ * <p>
+ * Instead of transforming every stop into the target crs, the extent is transformed once into WGS84 and stops are tested against this
+ * polygon directly. The edges of the extent are sampled, so the polygon follows the extent within a few meters.
+ * Feeds are converted separately and joined by {@link MergeTransitSchedules}.
  */
 public class FilterTransitStops implements Predicate<Stop> {
 
-	private static final CoordinateTransformation CT =  TransformationFactory.getCoordinateTransformation(TransformationFactory.WGS84, RunDuesseldorfScenario.COORDINATE_SYSTEM);
+	/**
+	 * Number of segments per edge of the extent.
+	 */
+	private static final int SEGMENTS = 10;
+
+	private static final PreparedGeometry WGS84_EXTENT = wgs84Extent();
+
+	private static PreparedGeometry wgs84Extent() {
+
+		CoordinateTransformation ct = TransformationFactory.getCoordinateTransformation(RunDuesseldorfScenario.COORDINATE_SYSTEM, TransformationFactory.WGS84);
+
+		double[] x = RunDuesseldorfScenario.X_EXTENT;
+		double[] y = RunDuesseldorfScenario.Y_EXTENT;
+
+		// counterclockwise along the edges, the projected rectangle is not a rectangle in WGS84
+		List<Coordinate> ring = new ArrayList<>();
+		for (int i = 0; i < SEGMENTS; i++)
+			ring.add(transform(ct, x[0] + i * (x[1] - x[0]) / SEGMENTS, y[0]));
+		for (int i = 0; i < SEGMENTS; i++)
+			ring.add(transform(ct, x[1], y[0] + i * (y[1] - y[0]) / SEGMENTS));
+		for (int i = 0; i < SEGMENTS; i++)
+			ring.add(transform(ct, x[1] - i * (x[1] - x[0]) / SEGMENTS, y[1]));
+		for (int i = 0; i < SEGMENTS; i++)
+			ring.add(transform(ct, x[0], y[1] - i * (y[1] - y[0]) / SEGMENTS));
+
+		ring.add(ring.get(0));
+
+		GeometryFactory gf = new GeometryFactory();
+		return PreparedGeometryFactory.prepare(gf.createPolygon(ring.toArray(new Coordinate[0])));
+	}
+
+	private static Coordinate transform(CoordinateTransformation ct, double x, double y) {
+		Coord c = ct.transform(new Coord(x, y));
+		return new Coordinate(c.getX(), c.getY());
+	}
 
 	@Override
 	public boolean test(Stop stop) {
-		Coord coord = CT.transform(new Coord(stop.stop_lon, stop.stop_lat));
-		return coord.getX() >= RunDuesseldorfScenario.X_EXTENT[0] && coord.getX() <= RunDuesseldorfScenario.X_EXTENT[1] &&
-				coord.getY() >= RunDuesseldorfScenario.Y_EXTENT[0] && coord.getY() <= RunDuesseldorfScenario.Y_EXTENT[1];
+		return WGS84_EXTENT.covers(WGS84_EXTENT.getGeometry().getFactory().createPoint(new Coordinate(stop.stop_lon, stop.stop_lat)));
 	}
 }
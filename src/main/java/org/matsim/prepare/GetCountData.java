@@ -1,5 +1,7 @@
 package org.matsim.prepare;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.log4j.Logger;
@@ -13,9 +15,7 @@ import org.matsim.core.scenario.ScenarioUtils;
 
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class GetCountData {
@@ -28,10 +28,11 @@ public class GetCountData {
 		MatsimNetworkReader reader = new MatsimNetworkReader(network);
 
 		reader.readFile(networkFile);
-		var result1 = readData(filePath1, nodeMatcher, network);
-		var result2 = readData(filePath2, nodeMatcher, network);
 
-		System.out.println(network.getNodes().values().size());
+		Map<String, Link> links = resolveLinks(nodeMatcher, network);
+
+		var result1 = readData(filePath1, nodeMatcher, links);
+		var result2 = readData(filePath2, nodeMatcher, links);
 
 		for (var entry : result1.entrySet()) {
 			result2.put(entry.getKey(), entry.getValue());
@@ -46,114 +47,98 @@ public class GetCountData {
 		return result2;
 	}
 
-	private Map<String, CountingData> readData(String filePath, Map<String, NodeMatcher.MatchedLinkID> nodeMatcher, Network network) throws IOException {
-
-		Map<String, CountingData> data = new HashMap<>();
-
-		try (var reader = new FileReader(filePath)) {
-			try (var parser = CSVFormat.newFormat(';').withAllowMissingColumnNames().withFirstRecordAsHeader().parse(reader)) {
-
-				for (var record : parser) {
-
-					var idR1 = record.get("Zst") + "_R1";
-					var idR2 = record.get("Zst") + "_R2";
-					if (containsNode(nodeMatcher, idR1, idR2) && isIntresstingWeekday(record)) {
-
-						if (isValid(record, "PLZ_R1")) {
+	/**
+	 * Find the link between the matched nodes for all stations at once.
+	 */
+	private Map<String, Link> resolveLinks(Map<String, NodeMatcher.MatchedLinkID> nodeMatcher, Network network) {
 
-							Id<Node> fromId1 = Id.createNodeId(nodeMatcher.get(idR1).getFromID());
-							Id<Node> toId1 = Id.createNodeId(nodeMatcher.get(idR1).getToID());
+		Long2ObjectMap<Link> byNodes = new Long2ObjectOpenHashMap<>(network.getLinks().size());
+		for (Link link : network.getLinks().values()) {
+			byNodes.put(key(link.getFromNode().getId(), link.getToNode().getId()), link);
+		}
 
-							Id<Link> linkId1 = getLinkId(fromId1, toId1, network);
-							// Id<Link> linkId1 = Id.createLinkId(nodeMatcher.get(idR1).getLinkID());
+		Map<String, Link> result = new HashMap<>();
+		for (Map.Entry<String, NodeMatcher.MatchedLinkID> e : nodeMatcher.entrySet()) {
 
-							var countData1 = data.computeIfAbsent(idR1, key -> new CountingData(key, linkId1, fromId1, toId1));
+			Link link = byNodes.get(key(Id.createNodeId(e.getValue().getFromID()), Id.createNodeId(e.getValue().getToID())));
+			if (link != null)
+				result.put(e.getKey(), link);
+			else
+				logger.warn("No link between nodes " + e.getValue().getFromID() + " and " + e.getValue().getToID() + " for station " + e.getKey());
+		}
 
-							var hour = record.get("Stunde");
-							var value1 = Integer.parseInt(record.get("PLZ_R1").trim());
+		logger.info("Resolved links for " + result.size() + " of " + nodeMatcher.size() + " stations");
 
-							countData1.addValue(hour, value1);
+		return result;
+	}
 
-						}
+	private static long key(Id<Node> from, Id<Node> to) {
+		return ((long) from.index() << 32) | ((long) to.index() & 0xFFFF_FFFFL);
+	}
 
-						if (isValid(record, "PLZ_R2")) {
+	private Map<String, CountingData> readData(String filePath, Map<String, NodeMatcher.MatchedLinkID> nodeMatcher, Map<String, Link> links) throws IOException {
 
-							Id<Node> fromId2 = Id.createNodeId(nodeMatcher.get(idR2).getFromID());
-							Id<Node> toId2 = Id.createNodeId(nodeMatcher.get(idR2).getToID());
+		Map<String, CountingData> data = new HashMap<>();
 
-							Id<Link> linkId2 = getLinkId(fromId2, toId2, network);
-							/// Id<Link> linkId2 = Id.createLinkId(nodeMatcher.get(idR2).getLinkID());
+		try (var reader = new FileReader(filePath)) {
+			try (var parser = CSVFormat.newFormat(';').withAllowMissingColumnNames().withFirstRecordAsHeader().parse(reader)) {
 
-							var countData2 = data.computeIfAbsent(idR2, key -> new CountingData(key, linkId2, fromId2, toId2));
+				for (var record : parser) {
 
-							var hour = record.get("Stunde");
-							var value2 = Integer.parseInt(record.get("PLZ_R2").trim());
+					var idR1 = record.get("Zst") + "_R1";
+					var idR2 = record.get("Zst") + "_R2";
+					if (containsNode(nodeMatcher, idR1, idR2) && isIntresstingWeekday(record)) {
 
-							countData2.addValue(hour, value2);
+						int hour = Integer.parseInt(record.get("Stunde").trim());
 
-						}
+						addValue(data, links, nodeMatcher, idR1, record, "PLZ_R1", hour);
+						addValue(data, links, nodeMatcher, idR2, record, "PLZ_R2", hour);
 					}
 				}
 			}
 		}
 
-		for (Map.Entry<String, CountingData> value : data.entrySet()) {
+		return data;
 
-			for (Map.Entry<String, List<Integer>> count : value.getValue().values.entrySet()) {
+	}
 
-				value.getValue().result.put(count.getKey(), value.getValue().averageForHour(count.getKey()));
+	private void addValue(Map<String, CountingData> data, Map<String, Link> links, Map<String, NodeMatcher.MatchedLinkID> nodeMatcher,
+						  String id, CSVRecord record, String column, int hour) {
 
-			}
-		}
+		Link link = links.get(id);
+		if (link == null)
+			return;
 
-		return data;
+		String value = record.get(column).trim();
+		if (value.equals("-1") || value.equals("0"))
+			return;
 
+		data.computeIfAbsent(id, key -> new CountingData(key, link.getId(),
+				Id.createNodeId(nodeMatcher.get(key).getFromID()), Id.createNodeId(nodeMatcher.get(key).getToID())))
+				.addValue(hour, Integer.parseInt(value));
 	}
 
 	private boolean isIntresstingWeekday(CSVRecord record) {
-		return record.get("Wotag").trim().equals("2") || record.get("Wotag").trim().equals("3") || record.get("Wotag").trim().equals("4");
+		String day = record.get("Wotag").trim();
+		return day.equals("2") || day.equals("3") || day.equals("4");
 	}
 
 	private boolean containsNode(Map<String, NodeMatcher.MatchedLinkID> nodeMatcher, String idR1, String idR2) {
 		return nodeMatcher.containsKey(idR1) && nodeMatcher.containsKey(idR2);
 	}
 
-	private boolean isValid(CSVRecord record, String plz_r2) {
-		return !record.get(plz_r2).trim().equals("-1") && !record.get(plz_r2).trim().equals("0");
-	}
-
-	private Id<Link> getLinkId(Id<Node> fromNodeId, Id<Node> toNodeId, Network network) {
-		Id<Link> linkId = null;
-
-		Node fromNode = network.getNodes().get(fromNodeId);
-		System.out.println(fromNode);
-		System.out.println(fromNode.getOutLinks());
-
-		for (Node node : network.getNodes().values()) {
-			System.out.println(node.getId().toString() + "\t" + fromNodeId.toString() + "\t" + toNodeId.toString());
-			if (node.getId().equals(fromNodeId)) {
-				System.out.println("Found Node!  " + fromNodeId.toString() + "\t" + node.toString());
-				for (Link link : node.getOutLinks().values()) {
-					System.out.println(link.getToNode().toString() + "\t" + link.getFromNode().toString());
-					if (link.getToNode().equals(toNodeId)) {
-						System.out.println("Link: " + link);
-					}
-				}
-			}
-		}
-
-		return linkId;
-
-	}
-
 	static class CountingData {
 
 		private final String stationId;
 		private final Id<Link> linkId;
 		private final Id<Node> fromId;
 		private final Id<Node> toId;
-		private final Map<String, List<Integer>> values = new HashMap<>();
-		private final Map<String, Integer> result = new HashMap<>();
+
+		/**
+		 * Sum and number of values for the hours 1 to 24.
+		 */
+		private final long[] sum = new long[25];
+		private final int[] count = new int[25];
 
 		public CountingData(String stationId, Id<Link> linkId, Id<Node> fromId, Id<Node> toId) {
 			this.stationId = stationId;
@@ -162,19 +147,17 @@ public class GetCountData {
 			this.toId = toId;
 		}
 
-		void addValue(String hour, int value) {
-			values.computeIfAbsent(hour, k -> new ArrayList<>()).add(value);
+		void addValue(int hour, int value) {
+			sum[hour] += value;
+			count[hour]++;
 		}
 
-		public int averageForHour(String hour) {
-
-			int sum = 0;
-
-			for (var value : values.get(hour)) {
-				sum += value;
-			}
+		public boolean hasValues(int hour) {
+			return count[hour] > 0;
+		}
 
-			return sum / values.get(hour).size();
+		public int averageForHour(int hour) {
+			return (int) (sum[hour] / count[hour]);
 		}
 
 		public String getStationId() {
@@ -193,16 +176,20 @@ public class GetCountData {
 			return this.toId;
 		}
 
-		public Map<String, List<Integer>> getValues() {
-			return this.values;
-		}
-
-		public Map<String, Integer> getResult() {
-			return this.result;
+		/**
+		 * Average per hour, for the hours with values.
+		 */
+		public Map<Integer, Integer> getResult() {
+			Map<Integer, Integer> result = new HashMap<>();
+			for (int h = 1; h < sum.length; h++) {
+				if (hasValues(h))
+					result.put(h, averageForHour(h));
+			}
+			return result;
 		}
 
 		public String toString() {
-			return "GetCountData.CountingData(stationId=" + this.getStationId() + ", linkId=" + this.getLinkId() + ", fromId=" + this.getFromId() + ", toId=" + this.getToId() + ", values=" + this.getValues() + ", result=" + this.getResult() + ")";
+			return "GetCountData.CountingData(stationId=" + this.getStationId() + ", linkId=" + this.getLinkId() + ", fromId=" + this.getFromId() + ", toId=" + this.getToId() + ", result=" + this.getResult() + ")";
 		}
 	}
 }
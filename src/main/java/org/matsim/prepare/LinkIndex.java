@@ -0,0 +1,187 @@
+package org.matsim.prepare;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Spatial index over the straight line segments of network links.
+ * <p>
+ * Answers nearest segment queries exactly, i.e. it yields the same links as {@link org.matsim.core.network.NetworkUtils#getNearestLinkExactly(Network, Coord)},
+ * but without scanning all links. The index is immutable after construction and can be queried from multiple threads.
+ */
+public final class LinkIndex {
+
+	private final STRtree tree = new STRtree();
+
+	/**
+	 * Index all links of the network.
+	 */
+	public LinkIndex(Network network) {
+		this(network, link -> true);
+	}
+
+	/**
+	 * Index all links of the network that match the filter.
+	 */
+	public LinkIndex(Network network, Predicate<Link> filter) {
+
+		for (Link link : network.getLinks().values()) {
+			if (!filter.test(link))
+				continue;
+
+			Segment s = new Segment(link);
+			tree.insert(new Envelope(s.x0, s.x1, s.y0, s.y1), s);
+		}
+
+		tree.build();
+	}
+
+	/**
+	 * Number of indexed links.
+	 */
+	public int size() {
+		return tree.size();
+	}
+
+	/**
+	 * Find the nearest link and the projection of the coordinate onto it.
+	 *
+	 * @return nearest match or null if the index is empty
+	 */
+	public Match nearest(Coord coord) {
+
+		if (tree.isEmpty())
+			return null;
+
+		Coordinate c = new Coordinate(coord.getX(), coord.getY());
+		Segment s = (Segment) tree.nearestNeighbour(new Envelope(c), c, LinkIndex::distance);
+
+		return s.project(coord.getX(), coord.getY());
+	}
+
+	/**
+	 * Return all links whose segment lies within {@code radius} of the coordinate, sorted by distance.
+	 */
+	public List<Match> query(Coord coord, double radius) {
+
+		Envelope env = new Envelope(coord.getX() - radius, coord.getX() + radius, coord.getY() - radius, coord.getY() + radius);
+
+		List<Match> result = new ArrayList<>();
+		for (Object o : tree.query(env)) {
+			Match m = ((Segment) o).project(coord.getX(), coord.getY());
+			if (m.distance <= radius)
+				result.add(m);
+		}
+
+		result.sort((a, b) -> Double.compare(a.distance, b.distance));
+		return result;
+	}
+
+	/**
+	 * Item distance between a query coordinate and a segment. Arguments may come in either order.
+	 */
+	private static double distance(ItemBoundable a, ItemBoundable b) {
+
+		Object i1 = a.getItem();
+		Object i2 = b.getItem();
+
+		if (i1 instanceof Segment && i2 instanceof Coordinate)
+			return ((Segment) i1).distance((Coordinate) i2);
+		if (i2 instanceof Segment && i1 instanceof Coordinate)
+			return ((Segment) i2).distance((Coordinate) i1);
+
+		throw new IllegalStateException("Unexpected items in link index: " + i1 + ", " + i2);
+	}
+
+	/**
+	 * Result of a nearest link query.
+	 */
+	public static final class Match {
+
+		private final Link link;
+		private final Coord point;
+		private final double distance;
+
+		private Match(Link link, Coord point, double distance) {
+			this.link = link;
+			this.point = point;
+			this.distance = distance;
+		}
+
+		/**
+		 * The matched link.
+		 */
+		public Link getLink() {
+			return link;
+		}
+
+		/**
+		 * Projection of the query coordinate onto the link.
+		 */
+		public Coord getPoint() {
+			return point;
+		}
+
+		/**
+		 * Euclidean distance between query coordinate and link.
+		 */
+		public double getDistance() {
+			return distance;
+		}
+	}
+
+	/**
+	 * Straight line between from and to node of a link.
+	 */
+	private static final class Segment {
+
+		private final Link link;
+		private final double x0, y0, x1, y1;
+
+		private Segment(Link link) {
+			this.link = link;
+			this.x0 = link.getFromNode().getCoord().getX();
+			this.y0 = link.getFromNode().getCoord().getY();
+			this.x1 = link.getToNode().getCoord().getX();
+			this.y1 = link.getToNode().getCoord().getY();
+		}
+
+		/**
+		 * Relative position of the projected point on the segment, clamped to [0, 1].
+		 */
+		private double position(double x, double y) {
+			double dx = x1 - x0;
+			double dy = y1 - y0;
+			double len = dx * dx + dy * dy;
+
+			if (len == 0)
+				return 0;
+
+			double r = ((x - x0) * dx + (y - y0) * dy) / len;
+			return Math.max(0, Math.min(1, r));
+		}
+
+		private double distance(Coordinate c) {
+			double r = position(c.x, c.y);
+			double px = x0 + r * (x1 - x0);
+			double py = y0 + r * (y1 - y0);
+			return Math.hypot(c.x - px, c.y - py);
+		}
+
+		private Match project(double x, double y) {
+			double r = position(x, y);
+			double px = x0 + r * (x1 - x0);
+			double py = y0 + r * (y1 - y0);
+			return new Match(link, new Coord(px, py), Math.hypot(x - px, y - py));
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package org.matsim.prepare;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.matsim.core.utils.geometry.transformations.TransformationFactory;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.run.RunDuesseldorfScenario;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.matsim.run.RunDuesseldorfScenario.VERSION;
+
+/**
+ * Matches count stations to links of the car network.
+ * <p>
+ * Candidates within a radius are taken from a {@link LinkIndex} and scored by distance, difference to the driving direction of the station
+ * and whether the road type matches. The output can be used as mapping for {@link CreateCityCounts} or, grouped by direction, for {@link CreateBAStCounts}.
+ */
+@CommandLine.Command(
+		name = "match-count-stations",
+		description = "Match count stations to network links",
+		showDefaultValues = true
+)
+public class MatchCountStations implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(MatchCountStations.class);
+
+	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Input csv with the columns station, x, y and optionally bearing (degrees clockwise from north) and road_class")
+	private Path input;
+
+	@CommandLine.Option(names = "--network", description = "Network xml", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-network.xml.gz")
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--input-crs", description = "Coordinate system of the stations", defaultValue = RunDuesseldorfScenario.COORDINATE_SYSTEM)
+	private String inputCRS;
+
+	@CommandLine.Option(names = "--delimiter", description = "Delimiter of input and output csv", defaultValue = ";")
+	private char delimiter;
+
+	@CommandLine.Option(names = "--radius", description = "Search radius for candidate links in meters", defaultValue = "50")
+	private double radius;
+
+	@CommandLine.Option(names = "--bearing-weight", description = "Score weight of 90 degrees bearing difference, relative to a distance of the full radius", defaultValue = "1")
+	private double bearingWeight;
+
+	@CommandLine.Option(names = "--road-class-weight", description = "Score penalty if the road class does not match", defaultValue = "0.5")
+	private double roadClassWeight;
+
+	@CommandLine.Option(names = "--format", description = "Output format: ${COMPLETION-CANDIDATES}", defaultValue = "city")
+	private Format format;
+
+	@CommandLine.Option(names = "--output", description = "Output mapping csv", required = true)
+	private Path output;
+
+	public static void main(String[] args) {
+		new MatchCountStations().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		Network network = NetworkUtils.readNetwork(networkPath.toString());
+		LinkIndex index = new LinkIndex(network, l -> l.getAllowedModes().contains(TransportMode.car));
+
+		List<Station> stations = readStations();
+		log.info("Matching {} stations to {} links", stations.size(), index.size());
+
+		ThreadLocal<CoordinateTransformation> ct = ThreadLocal.withInitial(() ->
+				TransformationFactory.getCoordinateTransformation(inputCRS, RunDuesseldorfScenario.COORDINATE_SYSTEM));
+
+		long start = System.currentTimeMillis();
+
+		List<Result> results = stations.parallelStream()
+				.map(s -> match(index, s, ct.get().transform(s.coord)))
+				.collect(Collectors.toList());
+
+		long unmatched = results.stream().filter(r -> r.link == null).count();
+		log.info("Matched {} stations in {} ms, {} without candidate", results.size() - unmatched, System.currentTimeMillis() - start, unmatched);
+
+		if (format == Format.city)
+			writeCity(results);
+		else
+			writeBASt(results);
+
+		return 0;
+	}
+
+	private List<Station> readStations() throws IOException {
+
+		List<Station> stations = new ArrayList<>();
+
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(input.toString()), CSVFormat.DEFAULT.withDelimiter(delimiter).withFirstRecordAsHeader())) {
+
+			boolean hasBearing = parser.getHeaderMap().containsKey("bearing");
+			boolean hasClass = parser.getHeaderMap().containsKey("road_class");
+
+			for (CSVRecord record : parser) {
+				String bearing = hasBearing ? record.get("bearing") : "";
+				String roadClass = hasClass ? record.get("road_class") : "";
+
+				stations.add(new Station(record.get("station"),
+						new Coord(Double.parseDouble(record.get("x")), Double.parseDouble(record.get("y"))),
+						bearing.isBlank() ? Double.NaN : Double.parseDouble(bearing),
+						roadClass.isBlank() ? null : roadClass));
+			}
+		}
+
+		return stations;
+	}
+
+	private Result match(LinkIndex index, Station station, Coord coord) {
+
+		Link best = null;
+		double bestScore = Double.POSITIVE_INFINITY;
+		double bestDistance = Double.NaN;
+
+		for (LinkIndex.Match m : index.query(coord, radius)) {
+
+			double score = m.getDistance() / radius;
+
+			if (!Double.isNaN(station.bearing))
+				score += bearingWeight * angleDifference(station.bearing, bearing(m.getLink())) / 90;
+
+			if (station.roadClass != null) {
+				String type = NetworkUtils.getType(m.getLink());
+				if (type == null || !type.contains(station.roadClass))
+					score += roadClassWeight;
+			}
+
+			if (score < bestScore) {
+				best = m.getLink();
+				bestScore = score;
+				bestDistance = m.getDistance();
+			}
+		}
+
+		return new Result(station, best, bestDistance, bestScore);
+	}
+
+	/**
+	 * Direction of the link in degrees clockwise from north.
+	 */
+	private static double bearing(Link link) {
+		Coord from = link.getFromNode().getCoord();
+		Coord to = link.getToNode().getCoord();
+		double deg = Math.toDegrees(Math.atan2(to.getX() - from.getX(), to.getY() - from.getY()));
+		return deg < 0 ? deg + 360 : deg;
+	}
+
+	/**
+	 * Absolute difference of two bearings in [0, 180].
+	 */
+	static double angleDifference(double a, double b) {
+		double d = Math.abs(a - b) % 360;
+		return d > 180 ? 360 - d : d;
+	}
+
+	/**
+	 * Mapping with one station per row, as read by {@link CreateCityCounts}.
+	 */
+	private void writeCity(List<Result> results) throws IOException {
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(output.toString()), CSVFormat.DEFAULT.withDelimiter(delimiter))) {
+
+			printer.printRecord("Station", "Link-Id", "Distance", "Score");
+			for (Result r : results) {
+				if (r.link != null)
+					printer.printRecord(r.station.id, r.link.getId(), r.distance, r.score);
+			}
+		}
+	}
+
+	/**
+	 * Mapping with both directions of a station per row, as read by {@link NodeMatcher}. Station ids must end with _R1 or _R2.
+	 * Values are written without quotes, because the matcher does not use a quote character.
+	 */
+	private void writeBASt(List<Result> results) throws IOException {
+
+		Map<String, Result[]> byStation = new TreeMap<>();
+		for (Result r : results) {
+			String id = r.station.id;
+			if (!id.endsWith("_R1") && !id.endsWith("_R2")) {
+				log.warn("Station {} has no direction suffix", id);
+				continue;
+			}
+
+			byStation.computeIfAbsent(id.substring(0, id.length() - 3), k -> new Result[2])[id.endsWith("_R1") ? 0 : 1] = r;
+		}
+
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(output.toString()), CSVFormat.newFormat(delimiter).withRecordSeparator('\n'))) {
+
+			printer.printRecord("DZ_Nr", "Node_from_R1", "Node_to_R1", "Link_ID_R1", "Node_from_R2", "Node_to_R2", "Link_ID_R2");
+			for (Map.Entry<String, Result[]> e : byStation.entrySet()) {
+				Link r1 = e.getValue()[0] != null ? e.getValue()[0].link : null;
+				Link r2 = e.getValue()[1] != null ? e.getValue()[1].link : null;
+
+				// both directions are required
+				if (r1 == null || r2 == null)
+					continue;
+
+				printer.printRecord(e.getKey(), r1.getFromNode().getId(), r1.getToNode().getId(), r1.getId(),
+						r2.getFromNode().getId(), r2.getToNode().getId(), r2.getId());
+			}
+		}
+	}
+
+	enum Format {
+		city, bast
+	}
+
+	private static final class Station {
+
+		private final String id;
+		private final Coord coord;
+		private final double bearing;
+		private final String roadClass;
+
+		private Station(String id, Coord coord, double bearing, String roadClass) {
+			this.id = id;
+			this.coord = coord;
+			this.bearing = bearing;
+			this.roadClass = roadClass;
+		}
+	}
+
+	private static final class Result {
+
+		private final Station station;
+		private final Link link;
+		private final double distance;
+		private final double score;
+
+		private Result(Station station, Link link, double distance, double score) {
+			this.station = station;
+			this.link = link;
+			this.distance = distance;
+			this.score = score;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.pt.utils.CreatePseudoNetwork;
+import org.matsim.vehicles.*;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.matsim.run.RunDuesseldorfScenario.VERSION;
+
+/**
+ * Joins transit schedules that were converted separately from each GTFS feed.
+ * <p>
+ * The feeds are converted independently by {@code transit-from-gtfs}, so they can run in parallel. This command reads the schedules
+ * concurrently and merges them in the given order. Stops with the same id are only kept once, which joins the lines of different feeds at
+ * shared stops. Lines and vehicles whose id already exists in an earlier feed are prefixed with the name of the feed.
+ * Afterwards the pt network is created on the base network.
+ */
+@CommandLine.Command(
+		name = "merge-transit-schedules",
+		description = "Merge transit schedules of several feeds and create the pt network",
+		showDefaultValues = true
+)
+public class MergeTransitSchedules implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(MergeTransitSchedules.class);
+
+	/**
+	 * Distance in meters above which stops with the same id are reported.
+	 */
+	private static final double MAX_STOP_DISTANCE = 50;
+
+	@CommandLine.Parameters(arity = "1..*", paramLabel = "INPUT", description = "Transit schedules, vehicles are read from the corresponding *-transitVehicles file")
+	private List<Path> schedules;
+
+	@CommandLine.Option(names = "--network", description = "Base network without pt", required = true)
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--output-schedule", description = "Output transit schedule", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-transitSchedule.xml.gz")
+	private Path outputSchedule;
+
+	@CommandLine.Option(names = "--output-vehicles", description = "Output transit vehicles", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-transitVehicles.xml.gz")
+	private Path outputVehicles;
+
+	@CommandLine.Option(names = "--output-network", description = "Output network", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-network-with-pt.xml.gz")
+	private Path outputNetwork;
+
+	public static void main(String[] args) {
+		new MergeTransitSchedules().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		List<Scenario> feeds = schedules.parallelStream()
+				.map(MergeTransitSchedules::read)
+				.collect(Collectors.toList());
+
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		NetworkUtils.readNetwork(scenario.getNetwork(), networkPath.toString());
+
+		for (int i = 0; i < feeds.size(); i++)
+			merge(scenario, feeds.get(i), feedName(schedules.get(i)));
+
+		log.info("Merged {} stops, {} lines and {} vehicles", scenario.getTransitSchedule().getFacilities().size(),
+				scenario.getTransitSchedule().getTransitLines().size(), scenario.getTransitVehicles().getVehicles().size());
+
+		new CreatePseudoNetwork(scenario.getTransitSchedule(), scenario.getNetwork(), "pt_").createNetwork();
+		adjustFreespeed(scenario.getTransitSchedule(), scenario.getNetwork());
+
+		new TransitScheduleWriter(scenario.getTransitSchedule()).writeFile(outputSchedule.toString());
+		new MatsimVehicleWriter(scenario.getTransitVehicles()).writeFile(outputVehicles.toString());
+		NetworkUtils.writeNetwork(scenario.getNetwork(), outputNetwork.toString());
+
+		return 0;
+	}
+
+	private static Scenario read(Path schedule) {
+
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		new TransitScheduleReader(scenario).readFile(schedule.toString());
+
+		Path vehicles = vehiclesPath(schedule);
+		new MatsimVehicleReader(scenario.getTransitVehicles()).readFile(vehicles.toString());
+
+		log.info("Read {} with {} stops and {} lines", schedule, scenario.getTransitSchedule().getFacilities().size(),
+				scenario.getTransitSchedule().getTransitLines().size());
+
+		return scenario;
+	}
+
+	static Path vehiclesPath(Path schedule) {
+		return schedule.resolveSibling(schedule.getFileName().toString().replace("transitSchedule", "transitVehicles"));
+	}
+
+	static String feedName(Path schedule) {
+		String name = schedule.getFileName().toString();
+		int idx = name.indexOf("-transitSchedule");
+		return idx > 0 ? name.substring(0, idx) : name;
+	}
+
+	/**
+	 * Add the stops, lines and vehicles of a feed. Stops are copied without link, routes without network route.
+	 */
+	static void merge(Scenario target, Scenario feed, String name) {
+
+		TransitSchedule schedule = target.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+
+		int shared = 0;
+		int moved = 0;
+		for (TransitStopFacility stop : feed.getTransitSchedule().getFacilities().values()) {
+
+			TransitStopFacility existing = schedule.getFacilities().get(stop.getId());
+			if (existing != null) {
+				shared++;
+				if (CoordUtils.calcEuclideanDistance(existing.getCoord(), stop.getCoord()) > MAX_STOP_DISTANCE)
+					moved++;
+				continue;
+			}
+
+			TransitStopFacility copy = f.createTransitStopFacility(stop.getId(), stop.getCoord(), stop.getIsBlockingLane());
+			copy.setName(stop.getName());
+			stop.getAttributes().getAsMap().forEach(copy.getAttributes()::putAttribute);
+			schedule.addStopFacility(copy);
+		}
+
+		if (shared > 0)
+			log.info("Feed {} shares {} stops with previous feeds, {} of them more than {}m apart", name, shared, moved, MAX_STOP_DISTANCE);
+
+		MinimalTransferTimes.MinimalTransferTimesIterator it = feed.getTransitSchedule().getMinimalTransferTimes().iterator();
+		while (it.hasNext()) {
+			it.next();
+			if (Double.isNaN(schedule.getMinimalTransferTimes().get(it.getFromStopId(), it.getToStopId())))
+				schedule.getMinimalTransferTimes().set(it.getFromStopId(), it.getToStopId(), it.getSeconds());
+		}
+
+		Map<Id<Vehicle>, Id<Vehicle>> vehicleIds = mergeVehicles(target.getTransitVehicles(), feed.getTransitVehicles(), name);
+
+		for (TransitLine line : feed.getTransitSchedule().getTransitLines().values()) {
+
+			Id<TransitLine> id = line.getId();
+			if (schedule.getTransitLines().containsKey(id))
+				id = Id.create(name + "_" + id, TransitLine.class);
+
+			TransitLine copy = f.createTransitLine(id);
+			copy.setName(line.getName());
+			line.getAttributes().getAsMap().forEach(copy.getAttributes()::putAttribute);
+
+			for (TransitRoute route : line.getRoutes().values()) {
+
+				List<TransitRouteStop> stops = new ArrayList<>(route.getStops().size());
+				for (TransitRouteStop s : route.getStops()) {
+					TransitStopFacility stop = schedule.getFacilities().get(s.getStopFacility().getId());
+					TransitRouteStop c = f.createTransitRouteStop(stop, arrivalOffset(s), departureOffset(s));
+					c.setAwaitDepartureTime(s.isAwaitDepartureTime());
+					stops.add(c);
+				}
+
+				TransitRoute r = f.createTransitRoute(route.getId(), null, stops, route.getTransportMode());
+				r.setDescription(route.getDescription());
+				route.getAttributes().getAsMap().forEach(r.getAttributes()::putAttribute);
+
+				for (Departure d : route.getDepartures().values()) {
+					Departure dc = f.createDeparture(d.getId(), d.getDepartureTime());
+					dc.setVehicleId(vehicleIds.getOrDefault(d.getVehicleId(), d.getVehicleId()));
+					r.addDeparture(dc);
+				}
+
+				copy.addRoute(r);
+			}
+
+			schedule.addTransitLine(copy);
+		}
+	}
+
+	/**
+	 * Copy vehicles and their types.
+	 *
+	 * @return renamed vehicle ids
+	 */
+	private static Map<Id<Vehicle>, Id<Vehicle>> mergeVehicles(Vehicles target, Vehicles feed, String name) {
+
+		for (VehicleType type : feed.getVehicleTypes().values()) {
+			if (!target.getVehicleTypes().containsKey(type.getId()))
+				target.addVehicleType(type);
+		}
+
+		Map<Id<Vehicle>, Id<Vehicle>> renamed = new HashMap<>();
+		for (Vehicle vehicle : feed.getVehicles().values()) {
+
+			Id<Vehicle> id = vehicle.getId();
+			if (target.getVehicles().containsKey(id)) {
+				id = Id.createVehicleId(name + "_" + id);
+				renamed.put(vehicle.getId(), id);
+			}
+
+			VehicleType type = target.getVehicleTypes().get(vehicle.getType().getId());
+			target.addVehicle(target.getFactory().createVehicle(id, type));
+		}
+
+		return renamed;
+	}
+
+	/**
+	 * Raise the freespeed of pt links so that vehicles can keep the schedule.
+	 */
+	static void adjustFreespeed(TransitSchedule schedule, Network network) {
+
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+
+				List<Id<Link>> links = new ArrayList<>();
+				links.add(route.getRoute().getStartLinkId());
+				links.addAll(route.getRoute().getLinkIds());
+				links.add(route.getRoute().getEndLinkId());
+
+				// the pseudo network has one link leading to each stop
+				List<TransitRouteStop> stops = route.getStops();
+				for (int i = 1; i < stops.size() && i < links.size(); i++) {
+
+					double departure = departureOffset(stops.get(i - 1));
+					double arrival = arrivalOffset(stops.get(i));
+
+					Link link = network.getLinks().get(links.get(i));
+					double speed = link.getLength() / Math.max(1, arrival - departure);
+					if (speed > link.getFreespeed())
+						link.setFreespeed(speed);
+				}
+			}
+		}
+	}
+
+	private static double arrivalOffset(TransitRouteStop stop) {
+		return stop.getArrivalOffset().isDefined() ? stop.getArrivalOffset().seconds() : stop.getDepartureOffset().seconds();
+	}
+
+	private static double departureOffset(TransitRouteStop stop) {
+		return stop.getDepartureOffset().isDefined() ? stop.getDepartureOffset().seconds() : stop.getArrivalOffset().seconds();
+	}
+}
@@ -0,0 +1,44 @@
+package org.matsim.prepare;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+/**
+ * Deterministic sampling of persons based on a stable hash of their id.
+ * <p>
+ * Each person is assigned a fixed rank in [0, 1). A person is contained in a sample of fraction {@code f} if its rank is below {@code f}.
+ * Samples are therefore reproducible and nested, e.g. every person of the 1pct sample is also contained in the 10pct sample.
+ */
+public final class PopulationSampling {
+
+	private PopulationSampling() {
+	}
+
+	/**
+	 * Stable rank of a person in [0, 1), independent of JVM, platform and processing order.
+	 */
+	public static double rank(Id<Person> id) {
+
+		String s = id.toString();
+
+		// FNV-1a over the characters of the id
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		// finalize to spread the bits, use upper 53 bits for the double
+		return (HashCommon.murmurHash3(h) >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Whether the person is contained in the sample of given fraction.
+	 *
+	 * @param fraction fraction of persons to keep, in [0, 1]
+	 */
+	public static boolean keep(Id<Person> id, double fraction) {
+		return rank(id) < fraction;
+	}
+}
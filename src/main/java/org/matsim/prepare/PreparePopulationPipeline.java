@@ -0,0 +1,195 @@
+package org.matsim.prepare;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.application.options.ShpOptions;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.run.RunDuesseldorfScenario;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.matsim.run.RunDuesseldorfScenario.VERSION;
+
+/**
+ * Runs the last stages of the population preparation in one process, without writing intermediate plans files.
+ * <p>
+ * This replaces the sequence of {@code adjust-population}, {@code merge-populations}, {@code downsample-population} and
+ * {@code extract-home-coordinates}. The population is parsed once, all per-person work is done in parallel and only the final
+ * outputs are written, for all sample sizes at once. Smaller samples are drawn with {@link PopulationSampling} and are
+ * therefore nested within the larger ones.
+ */
+@CommandLine.Command(
+		name = "population-pipeline",
+		description = "Adjust, merge and down-sample the population and extract home coordinates in one pass",
+		showDefaultValues = true
+)
+public class PreparePopulationPipeline implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(PreparePopulationPipeline.class);
+
+	@CommandLine.Parameters(arity = "1", paramLabel = "INPUT", description = "Input population xml with short distance trips",
+			defaultValue = "scenarios/input/prepare-25pct.plans-with-trips.xml.gz")
+	private Path input;
+
+	@CommandLine.Option(names = "--freight", description = "Freight population to merge into the result", defaultValue = "scenarios/input/freight-trips.xml.gz")
+	private Path freight;
+
+	@CommandLine.Option(names = "--network", description = "Network xml", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-network.xml.gz")
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--output", description = "Output population xml of the full sample. Name must contain the sample size, e.g. 25pct",
+			defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-25pct.plans.xml.gz")
+	private Path output;
+
+	@CommandLine.Option(names = "--csv", description = "Output csv with home coordinates", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-homes.csv")
+	private Path csv;
+
+	@CommandLine.Option(names = "--scale", description = "Additional scale for the length when adjusting activities", defaultValue = "1.15")
+	private double scale;
+
+	@CommandLine.Option(names = "--sample-size", description = "Sample size of the input population in percent", defaultValue = "25")
+	private double sampleSize;
+
+	@CommandLine.Option(names = "--samples", description = "Additional sample sizes to create in percent", split = ",", defaultValue = "10,1")
+	private List<Double> samples;
+
+	@CommandLine.Option(names = "--home-activity", description = "Prefix of the home activity type", defaultValue = "home")
+	private String homeActivity;
+
+	@CommandLine.Mixin
+	private ShpOptions shp = new ShpOptions();
+
+	public static void main(String[] args) {
+		new PreparePopulationPipeline().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		if (shp.getShapeFile() == null) {
+			log.error("Shp file is required as input");
+			return 2;
+		}
+
+		String name = output.getFileName().toString();
+		if (!name.contains(format(sampleSize) + "pct")) {
+			log.error("Output name {} must contain the sample size {}pct", name, format(sampleSize));
+			return 2;
+		}
+
+		// Inputs are independent of each other and are parsed concurrently
+		CompletableFuture<Population> population = CompletableFuture.supplyAsync(() -> PopulationUtils.readPopulation(input.toString()));
+		CompletableFuture<Population> freightPopulation = CompletableFuture.supplyAsync(() -> PopulationUtils.readPopulation(freight.toString()));
+		CompletableFuture<Network> network = CompletableFuture.supplyAsync(() -> NetworkUtils.readNetwork(networkPath.toString()));
+
+		ShpOptions.Index index = shp.createIndex(RunDuesseldorfScenario.COORDINATE_SYSTEM, "_");
+		LinkIndex linkIndex = new LinkIndex(network.join());
+
+		Population result = population.join();
+
+		log.info("Adjusting {} persons outside the shape", result.getPersons().size());
+		AdjustPopulationForCutout.adjustPopulation(result, index, linkIndex, scale);
+
+		Population other = freightPopulation.join();
+		log.info("Merging {} persons from {}", other.getPersons().size(), freight);
+
+		for (Person person : other.getPersons().values()) {
+			result.addPerson(person);
+		}
+
+		extractHomeCoordinates(result);
+
+		List<Double> sizes = new ArrayList<>();
+		sizes.add(sampleSize);
+		sizes.addAll(samples);
+
+		// gzip compression dominates the run time, therefore samples are written concurrently
+		sizes.parallelStream().forEach(size -> writeSample(result, size));
+
+		return 0;
+	}
+
+	/**
+	 * Store the home coordinates as person attributes and write them to csv.
+	 */
+	private void extractHomeCoordinates(Population population) throws IOException {
+
+		population.getPersons().values().parallelStream().forEach(person -> {
+			Optional<Coord> home = TripStructureUtils.getActivities(person.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities)
+					.stream()
+					.filter(act -> act.getType().startsWith(homeActivity))
+					.map(Activity::getCoord)
+					.findFirst();
+
+			home.ifPresent(coord -> {
+				person.getAttributes().putAttribute("home_x", coord.getX());
+				person.getAttributes().putAttribute("home_y", coord.getY());
+			});
+		});
+
+		int n = 0;
+		try (CSVPrinter printer = new CSVPrinter(IOUtils.getBufferedWriter(csv.toString()), CSVFormat.DEFAULT)) {
+			printer.printRecord("person", "home_x", "home_y");
+
+			for (Person person : population.getPersons().values()) {
+				Object x = person.getAttributes().getAttribute("home_x");
+				Object y = person.getAttributes().getAttribute("home_y");
+				if (x != null && y != null) {
+					printer.printRecord(person.getId(), x, y);
+					n++;
+				}
+			}
+		}
+
+		log.info("Extracted home coordinates for {} out of {} persons", n, population.getPersons().size());
+	}
+
+	/**
+	 * Write the sample of given size, which is a subset of the full population.
+	 */
+	private void writeSample(Population population, double size) {
+
+		Population sample = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+		population.getAttributes().getAsMap().forEach(sample.getAttributes()::putAttribute);
+
+		double fraction = size / sampleSize;
+		for (Person person : population.getPersons().values()) {
+			if (PopulationSampling.keep(person.getId(), fraction))
+				sample.addPerson(person);
+		}
+
+		String path = output.toString().replace(format(sampleSize) + "pct", format(size) + "pct");
+
+		log.info("Writing {}pct sample with {} persons to {}", format(size), sample.getPersons().size(), path);
+
+		PopulationUtils.writePopulation(sample, path);
+	}
+
+	/**
+	 * Format sample size the same way as in file names.
+	 */
+	private static String format(double size) {
+		if (size == Math.rint(size))
+			return String.valueOf((long) size);
+
+		return String.valueOf(size);
+	}
+}
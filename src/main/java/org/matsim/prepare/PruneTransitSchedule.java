@@ -0,0 +1,378 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.application.options.ShpOptions;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.MatsimVehicleReader;
+import org.matsim.vehicles.MatsimVehicleWriter;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.matsim.run.RunDuesseldorfScenario.VERSION;
+
+/**
+ * Prunes the transit schedule to the study area and the simulated period.
+ * <p>
+ * Routes are trimmed to the part between the first and last stop within the area plus a buffer, and departures that are not in service
+ * during the time window are removed. Afterwards, unused stops, lines, pt links and transit vehicles are dropped.
+ * The time window is either given or derived from the activity end times of a population.
+ */
+@CommandLine.Command(
+		name = "prune-transit-schedule",
+		description = "Trim transit schedule, pt network and vehicles to the study area",
+		showDefaultValues = true
+)
+public class PruneTransitSchedule implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(PruneTransitSchedule.class);
+
+	@CommandLine.Option(names = "--schedule", description = "Input transit schedule", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-transitSchedule.xml.gz")
+	private Path schedulePath;
+
+	@CommandLine.Option(names = "--vehicles", description = "Input transit vehicles", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-transitVehicles.xml.gz")
+	private Path vehiclesPath;
+
+	@CommandLine.Option(names = "--network", description = "Input network with pt links", defaultValue = "scenarios/input/duesseldorf-" + VERSION + "-network-with-pt.xml.gz")
+	private Path networkPath;
+
+	@CommandLine.Option(names = "--population", description = "Population to derive the time window from")
+	private Path populationPath;
+
+	@CommandLine.Option(names = "--time-window", description = "Start and end of the simulated period in seconds, if no population is given", split = ",", defaultValue = "0,108000")
+	private List<Double> timeWindow;
+
+	@CommandLine.Option(names = "--max-travel-time", description = "Travel time in seconds added to the last activity end time", defaultValue = "10800")
+	private double maxTravelTime;
+
+	@CommandLine.Option(names = "--buffer", description = "Buffer around the shape in meters", defaultValue = "2000")
+	private double buffer;
+
+	@CommandLine.Option(names = "--output-schedule", description = "Output transit schedule", required = true)
+	private Path outputSchedule;
+
+	@CommandLine.Option(names = "--output-vehicles", description = "Output transit vehicles", required = true)
+	private Path outputVehicles;
+
+	@CommandLine.Option(names = "--output-network", description = "Output network", required = true)
+	private Path outputNetwork;
+
+	@CommandLine.Mixin
+	private ShpOptions shp = new ShpOptions();
+
+	public static void main(String[] args) {
+		new PruneTransitSchedule().execute(args);
+	}
+
+	@Override
+	public Integer call() throws Exception {
+
+		if (shp.getShapeFile() == null) {
+			log.error("Shp file is required as input");
+			return 2;
+		}
+
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		new MatsimNetworkReader(scenario.getNetwork()).readFile(networkPath.toString());
+		new TransitScheduleReader(scenario).readFile(schedulePath.toString());
+		new MatsimVehicleReader(scenario.getTransitVehicles()).readFile(vehiclesPath.toString());
+
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		Network network = scenario.getNetwork();
+
+		double[] window = populationPath != null ? readTimeWindow() : new double[]{timeWindow.get(0), timeWindow.get(1)};
+		log.info("Keeping departures in service between {} and {}", window[0], window[1]);
+
+		Stats before = new Stats(scenario);
+
+		Geometry area = shp.getGeometry().buffer(buffer);
+		PreparedGeometry prepared = PreparedGeometryFactory.prepare(area);
+
+		Set<Id<TransitStopFacility>> inside = new HashSet<>();
+		for (TransitStopFacility stop : schedule.getFacilities().values()) {
+			if (prepared.contains(MGC.coord2Point(stop.getCoord())))
+				inside.add(stop.getId());
+		}
+
+		log.info("{} of {} stops are within the area", inside.size(), schedule.getFacilities().size());
+
+		TransitScheduleFactory f = schedule.getFactory();
+
+		for (TransitLine line : new ArrayList<>(schedule.getTransitLines().values())) {
+			for (TransitRoute route : new ArrayList<>(line.getRoutes().values())) {
+
+				line.removeRoute(route);
+
+				TransitRoute pruned = prune(f, route, inside, window);
+				if (pruned != null)
+					line.addRoute(pruned);
+			}
+
+			if (line.getRoutes().isEmpty())
+				schedule.removeTransitLine(line);
+		}
+
+		removeUnused(scenario);
+
+		Stats after = new Stats(scenario);
+		after.log(before);
+
+		new TransitScheduleWriter(schedule).writeFile(outputSchedule.toString());
+		new MatsimVehicleWriter(scenario.getTransitVehicles()).writeFile(outputVehicles.toString());
+		NetworkUtils.writeNetwork(network, outputNetwork.toString());
+
+		return 0;
+	}
+
+	/**
+	 * Time window from the first activity end until the last activity end plus the maximum travel time.
+	 */
+	private double[] readTimeWindow() {
+
+		double[] window = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+		StreamingPopulationReader reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+		reader.addAlgorithm(person -> {
+			for (Activity act : TripStructureUtils.getActivities(person.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities)) {
+				act.getEndTime().ifDefined(t -> {
+					window[0] = Math.min(window[0], t);
+					window[1] = Math.max(window[1], t);
+				});
+			}
+		});
+		reader.readFile(populationPath.toString());
+
+		window[1] += maxTravelTime;
+		return window;
+	}
+
+	/**
+	 * Create a copy of the route between the first and last stop within the area, with departures during the time window.
+	 *
+	 * @return null if the route has no use
+	 */
+	private static TransitRoute prune(TransitScheduleFactory f, TransitRoute route, Set<Id<TransitStopFacility>> inside, double[] window) {
+
+		List<TransitRouteStop> stops = route.getStops();
+
+		int first = -1;
+		int last = -1;
+		for (int i = 0; i < stops.size(); i++) {
+			if (inside.contains(stops.get(i).getStopFacility().getId())) {
+				if (first == -1)
+					first = i;
+				last = i;
+			}
+		}
+
+		// at least two stops are needed to travel within the area
+		if (first == -1 || first == last)
+			return null;
+
+		double offset = departureOffset(stops.get(first));
+		double duration = arrivalOffset(stops.get(last)) - offset;
+
+		List<TransitRouteStop> kept = new ArrayList<>(last - first + 1);
+		for (int i = first; i <= last; i++) {
+			TransitRouteStop s = stops.get(i);
+			double arrival = i == first ? 0 : arrivalOffset(s) - offset;
+			double departure = i == last ? arrival : departureOffset(s) - offset;
+
+			TransitRouteStop copy = f.createTransitRouteStop(s.getStopFacility(), arrival, departure);
+			copy.setAwaitDepartureTime(s.isAwaitDepartureTime());
+			kept.add(copy);
+		}
+
+		NetworkRoute networkRoute = trim(route.getRoute(), stops.get(first).getStopFacility().getLinkId(), stops.get(last).getStopFacility().getLinkId());
+		if (networkRoute == null) {
+			log.warn("Stops of route {} are not on its network route", route.getId());
+			return null;
+		}
+
+		TransitRoute pruned = f.createTransitRoute(route.getId(), networkRoute, kept, route.getTransportMode());
+		pruned.setDescription(route.getDescription());
+
+		for (Departure d : route.getDepartures().values()) {
+			double start = d.getDepartureTime() + offset;
+			if (start > window[1] || start + duration < window[0])
+				continue;
+
+			Departure copy = f.createDeparture(d.getId(), start);
+			copy.setVehicleId(d.getVehicleId());
+			pruned.addDeparture(copy);
+		}
+
+		return pruned.getDepartures().isEmpty() ? null : pruned;
+	}
+
+	private static double arrivalOffset(TransitRouteStop stop) {
+		return stop.getArrivalOffset().isDefined() ? stop.getArrivalOffset().seconds() : stop.getDepartureOffset().seconds();
+	}
+
+	private static double departureOffset(TransitRouteStop stop) {
+		return stop.getDepartureOffset().isDefined() ? stop.getDepartureOffset().seconds() : stop.getArrivalOffset().seconds();
+	}
+
+	/**
+	 * Part of the route between the two links, or null if they are not part of it.
+	 */
+	private static NetworkRoute trim(NetworkRoute route, Id<Link> from, Id<Link> to) {
+
+		List<Id<Link>> links = new ArrayList<>();
+		links.add(route.getStartLinkId());
+		links.addAll(route.getLinkIds());
+		links.add(route.getEndLinkId());
+
+		int start = links.indexOf(from);
+		if (start == -1)
+			return null;
+
+		int end = links.subList(start, links.size()).indexOf(to);
+		if (end == -1)
+			return null;
+
+		end += start;
+
+		return RouteUtils.createLinkNetworkRouteImpl(links.get(start), links.subList(start + 1, Math.max(start + 1, end)), links.get(end));
+	}
+
+	/**
+	 * Remove stops, transfer times, pt links and vehicles that are not used by any route anymore.
+	 */
+	private static void removeUnused(Scenario scenario) {
+
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		Network network = scenario.getNetwork();
+
+		Set<Id<TransitStopFacility>> usedStops = new HashSet<>();
+		Set<Id<Link>> usedLinks = new HashSet<>();
+		Set<Id<Vehicle>> usedVehicles = new HashSet<>();
+		Set<String> transitModes = new HashSet<>();
+
+		for (TransitLine line : schedule.getTransitLines().values()) {
+			for (TransitRoute route : line.getRoutes().values()) {
+				transitModes.add(route.getTransportMode());
+				route.getStops().forEach(s -> usedStops.add(s.getStopFacility().getId()));
+
+				usedLinks.add(route.getRoute().getStartLinkId());
+				usedLinks.addAll(route.getRoute().getLinkIds());
+				usedLinks.add(route.getRoute().getEndLinkId());
+
+				route.getDepartures().values().forEach(d -> usedVehicles.add(d.getVehicleId()));
+			}
+		}
+
+		for (TransitStopFacility stop : new ArrayList<>(schedule.getFacilities().values())) {
+			if (!usedStops.contains(stop.getId()))
+				schedule.removeStopFacility(stop);
+		}
+
+		List<Id<TransitStopFacility>> transferFrom = new ArrayList<>();
+		List<Id<TransitStopFacility>> transferTo = new ArrayList<>();
+		MinimalTransferTimes.MinimalTransferTimesIterator it = schedule.getMinimalTransferTimes().iterator();
+		while (it.hasNext()) {
+			it.next();
+			if (!usedStops.contains(it.getFromStopId()) || !usedStops.contains(it.getToStopId())) {
+				transferFrom.add(it.getFromStopId());
+				transferTo.add(it.getToStopId());
+			}
+		}
+
+		for (int i = 0; i < transferFrom.size(); i++)
+			schedule.getMinimalTransferTimes().remove(transferFrom.get(i), transferTo.get(i));
+
+		// pt links are the ones that only allow transit modes
+		transitModes.add("pt");
+		for (Link link : new ArrayList<>(network.getLinks().values())) {
+			if (!usedLinks.contains(link.getId()) && transitModes.containsAll(link.getAllowedModes()))
+				network.removeLink(link.getId());
+		}
+
+		for (Node node : new ArrayList<>(network.getNodes().values())) {
+			if (node.getInLinks().isEmpty() && node.getOutLinks().isEmpty())
+				network.removeNode(node.getId());
+		}
+
+		Set<Id<VehicleType>> usedTypes = new HashSet<>();
+		for (Vehicle vehicle : new ArrayList<>(scenario.getTransitVehicles().getVehicles().values())) {
+			if (usedVehicles.contains(vehicle.getId()))
+				usedTypes.add(vehicle.getType().getId());
+			else
+				scenario.getTransitVehicles().removeVehicle(vehicle.getId());
+		}
+
+		for (Id<VehicleType> type : new ArrayList<>(scenario.getTransitVehicles().getVehicleTypes().keySet())) {
+			if (!usedTypes.contains(type))
+				scenario.getTransitVehicles().removeVehicleType(type);
+		}
+	}
+
+	/**
+	 * Sizes that determine the memory of the raptor data and the number of pt vehicles in the QSim.
+	 */
+	private static final class Stats {
+
+		private final int lines;
+		private final int routes;
+		private final int routeStops;
+		private final int departures;
+		private final int stops;
+		private final int links;
+		private final int vehicles;
+
+		private Stats(Scenario scenario) {
+			int routes = 0;
+			int routeStops = 0;
+			int departures = 0;
+
+			for (TransitLine line : scenario.getTransitSchedule().getTransitLines().values()) {
+				for (TransitRoute route : line.getRoutes().values()) {
+					routes++;
+					routeStops += route.getStops().size();
+					departures += route.getDepartures().size();
+				}
+			}
+
+			this.lines = scenario.getTransitSchedule().getTransitLines().size();
+			this.routes = routes;
+			this.routeStops = routeStops;
+			this.departures = departures;
+			this.stops = scenario.getTransitSchedule().getFacilities().size();
+			this.links = scenario.getNetwork().getLinks().size();
+			this.vehicles = scenario.getTransitVehicles().getVehicles().size();
+		}
+
+		private void log(Stats before) {
+			log.info("Lines: {} -> {}", before.lines, lines);
+			log.info("Routes: {} -> {}", before.routes, routes);
+			log.info("Route stops (raptor): {} -> {}", before.routeStops, routeStops);
+			log.info("Departures (raptor): {} -> {}", before.departures, departures);
+			log.info("Stop facilities (raptor): {} -> {}", before.stops, stops);
+			log.info("Network links: {} -> {}", before.links, links);
+			log.info("Transit vehicles (QSim): {} -> {}", before.vehicles, vehicles);
+		}
+	}
+}
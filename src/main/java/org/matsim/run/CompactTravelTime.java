@@ -0,0 +1,355 @@
+package org.matsim.run;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.events.handler.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
+import org.matsim.vehicles.Vehicle;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Link travel times that only store the time bins deviating from the free flow travel time.
+ * <p>
+ * Bins are stored per link in a sparse index of bin numbers and travel times. Instances are immutable and can be read by multiple threads.
+ */
+public final class CompactTravelTime implements TravelTime {
+
+	private static final Logger log = LogManager.getLogger(CompactTravelTime.class);
+
+	private final double binSize;
+	private final int bins;
+
+	/**
+	 * Start of the entries for each link index, the entries of a link end at the start of the next index.
+	 */
+	private final int[] offsets;
+	private final short[] bin;
+	private final float[] time;
+
+	private CompactTravelTime(double binSize, int bins, int[] offsets, short[] bin, float[] time) {
+		this.binSize = binSize;
+		this.bins = bins;
+		this.offsets = offsets;
+		this.bin = bin;
+		this.time = time;
+	}
+
+	/**
+	 * Travel times that are always free flow.
+	 */
+	public static CompactTravelTime freeFlow() {
+		return new CompactTravelTime(1, 1, new int[1], new short[0], new float[0]);
+	}
+
+	/**
+	 * Sample the travel times of all links at the start of each bin and keep those that deviate from free flow.
+	 *
+	 * @param threshold minimum absolute deviation in seconds
+	 */
+	public static CompactTravelTime of(Network network, TravelTime tt, double binSize, int bins, double threshold) {
+
+		if (bins > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Too many time bins: " + bins);
+
+		int max = network.getLinks().keySet().stream().mapToInt(Id::index).max().orElse(-1);
+
+		// offsets[idx + 1] holds the end of the entries of link idx
+		int[] offsets = new int[max + 2];
+		short[] bin = new short[1024];
+		float[] time = new float[1024];
+		int n = 0;
+
+		Link[] links = new Link[max + 1];
+		for (Link link : network.getLinks().values())
+			links[link.getId().index()] = link;
+
+		for (int idx = 0; idx <= max; idx++) {
+			Link link = links[idx];
+			if (link != null) {
+				for (int b = 0; b < bins; b++) {
+					double t = b * binSize;
+					double v = tt.getLinkTravelTime(link, t, null, null);
+					if (Math.abs(v - freeFlow(link, t)) > threshold) {
+						if (n == bin.length) {
+							bin = Arrays.copyOf(bin, n * 2);
+							time = Arrays.copyOf(time, n * 2);
+						}
+						bin[n] = (short) b;
+						time[n] = (float) v;
+						n++;
+					}
+				}
+			}
+
+			offsets[idx + 1] = n;
+		}
+
+		return new CompactTravelTime(binSize, bins, offsets, Arrays.copyOf(bin, n), Arrays.copyOf(time, n));
+	}
+
+	private static double freeFlow(Link link, double time) {
+		return link.getLength() / link.getFreespeed(time);
+	}
+
+	/**
+	 * Number of stored bins.
+	 */
+	public int size() {
+		return bin.length;
+	}
+
+	@Override
+	public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+
+		int idx = link.getId().index();
+		if (idx + 1 < offsets.length) {
+			int from = offsets[idx];
+			int to = offsets[idx + 1];
+
+			if (from < to) {
+				int b = Math.min(bins - 1, Math.max(0, (int) (time / binSize)));
+				int i = Arrays.binarySearch(bin, from, to, (short) b);
+				if (i >= 0)
+					return this.time[i];
+			}
+		}
+
+		return freeFlow(link, time);
+	}
+
+	/**
+	 * Collects link travel times from events and provides those of the last iteration as {@link CompactTravelTime}.
+	 * <p>
+	 * This replaces the link travel times of the {@link TravelTimeCalculator}, which keeps dense arrays for every traversed link and should
+	 * be configured with {@code calculateLinkTravelTimes=false}. Travel times are measured and aggregated the same way: from link enter to link
+	 * leave, averaged per bin of the entry time, and consolidated so that departing later never arrives earlier. During an iteration only
+	 * observed bins are kept in a hash map.
+	 */
+	@Singleton
+	public static final class Collector implements TravelTime, IterationEndsListener, LinkEnterEventHandler, LinkLeaveEventHandler,
+			VehicleEntersTrafficEventHandler, VehicleLeavesTrafficEventHandler, VehicleAbortsEventHandler {
+
+		/**
+		 * Deviations below this value in seconds are not stored.
+		 */
+		private static final double THRESHOLD = 1;
+
+		private final Network network;
+		private final double binSize;
+		private final int bins;
+		private final double threshold;
+
+		/**
+		 * Modes whose vehicles are considered, null if all are.
+		 */
+		@Nullable
+		private final Set<String> analyzedModes;
+
+		/**
+		 * Entry of observed link and bin, keyed by link index and bin.
+		 */
+		private final Long2IntMap entries = new Long2IntOpenHashMap();
+		private double[] sum = new double[1024];
+		private int[] count = new int[1024];
+
+		/**
+		 * Link index and enter time of each vehicle index, -1 if not on a link.
+		 */
+		private int[] enterLink = new int[0];
+		private double[] enterTime = new double[0];
+
+		private final BitSet filtered = new BitSet();
+
+		private volatile CompactTravelTime current = CompactTravelTime.freeFlow();
+
+		@Inject
+		public Collector(Scenario scenario) {
+			this(scenario.getNetwork(), scenario.getConfig().travelTimeCalculator(), THRESHOLD);
+		}
+
+		Collector(Network network, TravelTimeCalculatorConfigGroup config, double threshold) {
+			this.network = network;
+			this.binSize = config.getTraveltimeBinSize();
+			this.bins = (int) (config.getMaxTime() / binSize) + 1;
+			if (bins > Short.MAX_VALUE)
+				throw new IllegalArgumentException("Too many time bins: " + bins);
+
+			this.threshold = threshold;
+			this.analyzedModes = config.isFilterModes() ? new HashSet<>(config.getAnalyzedModes()) : null;
+
+			entries.defaultReturnValue(-1);
+		}
+
+		@Override
+		public void reset(int iteration) {
+			entries.clear();
+			Arrays.fill(enterLink, -1);
+			filtered.clear();
+		}
+
+		@Override
+		public void handleEvent(VehicleEntersTrafficEvent event) {
+			if (analyzedModes != null)
+				filtered.set(event.getVehicleId().index(), !analyzedModes.contains(event.getNetworkMode()));
+		}
+
+		@Override
+		public void handleEvent(LinkEnterEvent event) {
+
+			int v = event.getVehicleId().index();
+			if (filtered.get(v))
+				return;
+
+			if (v >= enterLink.length) {
+				int size = Math.max(v + 1, enterLink.length * 2);
+				int old = enterLink.length;
+				enterLink = Arrays.copyOf(enterLink, size);
+				enterTime = Arrays.copyOf(enterTime, size);
+				Arrays.fill(enterLink, old, size, -1);
+			}
+
+			enterLink[v] = event.getLinkId().index();
+			enterTime[v] = event.getTime();
+		}
+
+		@Override
+		public void handleEvent(LinkLeaveEvent event) {
+
+			int v = event.getVehicleId().index();
+			if (v >= enterLink.length || enterLink[v] == -1)
+				return;
+
+			double enter = enterTime[v];
+			enterLink[v] = -1;
+
+			int b = Math.min(bins - 1, (int) (enter / binSize));
+			long key = ((long) event.getLinkId().index() << 32) | b;
+
+			int i = entries.get(key);
+			if (i == -1) {
+				i = entries.size();
+				entries.put(key, i);
+				if (i == sum.length) {
+					sum = Arrays.copyOf(sum, i * 2);
+					count = Arrays.copyOf(count, i * 2);
+				}
+				sum[i] = 0;
+				count[i] = 0;
+			}
+
+			sum[i] += event.getTime() - enter;
+			count[i]++;
+		}
+
+		@Override
+		public void handleEvent(VehicleLeavesTrafficEvent event) {
+			// vehicle arrived on the link, the time is not a link travel time
+			clear(event.getVehicleId().index());
+		}
+
+		@Override
+		public void handleEvent(VehicleAbortsEvent event) {
+			clear(event.getVehicleId().index());
+		}
+
+		private void clear(int v) {
+			if (v < enterLink.length)
+				enterLink[v] = -1;
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent event) {
+
+			long start = System.nanoTime();
+			current = build();
+
+			log.info("Stored {} of {} link travel time bins ({} %), {} bins observed, in {} ms", current.size(), (long) network.getLinks().size() * bins,
+					String.format("%.1f", 100.0 * current.size() / ((long) network.getLinks().size() * bins)), entries.size(), (System.nanoTime() - start) / 1_000_000);
+		}
+
+		/**
+		 * Create travel times from the events of the current iteration.
+		 */
+		CompactTravelTime build() {
+
+			long[] keys = entries.keySet().toLongArray();
+			Arrays.sort(keys);
+
+			int max = network.getLinks().keySet().stream().mapToInt(Id::index).max().orElse(-1);
+			int[] offsets = new int[max + 2];
+			short[] bin = new short[Math.max(16, keys.length)];
+			float[] time = new float[bin.length];
+			int n = 0;
+
+			double[] tt = new double[bins];
+			int k = 0;
+
+			for (int idx = 0; idx <= max; idx++) {
+
+				// links without observations are free flow
+				if (k < keys.length && (int) (keys[k] >>> 32) == idx) {
+
+					Link link = network.getLinks().get(Id.get(idx, Link.class));
+					Arrays.fill(tt, Double.NaN);
+
+					while (k < keys.length && (int) (keys[k] >>> 32) == idx) {
+						int i = entries.get(keys[k]);
+						tt[(int) keys[k]] = sum[i] / count[i];
+						k++;
+					}
+
+					if (link != null) {
+						// same consolidation as the travel time calculator
+						double prev = Double.NaN;
+						for (int b = 0; b < bins; b++) {
+							double t = b * binSize;
+							double v = Double.isNaN(tt[b]) ? freeFlow(link, t) : tt[b];
+							if (b > 0 && v < prev - binSize)
+								v = prev - binSize;
+
+							prev = v;
+
+							if (Math.abs(v - freeFlow(link, t)) > threshold) {
+								if (n == bin.length) {
+									bin = Arrays.copyOf(bin, n * 2);
+									time = Arrays.copyOf(time, n * 2);
+								}
+								bin[n] = (short) b;
+								time[n] = (float) v;
+								n++;
+							}
+						}
+					}
+				}
+
+				offsets[idx + 1] = n;
+			}
+
+			return new CompactTravelTime(binSize, bins, offsets, Arrays.copyOf(bin, n), Arrays.copyOf(time, n));
+		}
+
+		@Override
+		public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+			return current.getLinkTravelTime(link, time, person, vehicle);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.matsim.run;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.mobsim.framework.Mobsim;
+import org.matsim.core.mobsim.qsim.QSimProvider;
+import org.matsim.core.mobsim.qsim.components.QSimComponentsConfig;
+import org.matsim.pt.TransitEngineModule;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simulates transit vehicles in the mobsim only from the iteration on where innovation is disabled.
+ * <p>
+ * Before that, the transit engine is not part of the qsim, so pt legs are teleported with the travel time of their raptor route, which is
+ * based on the schedule, and buses do not occupy road links. The qsim components are decided when the mobsim of each iteration is created,
+ * the config is not changed.
+ */
+@Singleton
+public final class PseudoTransitSwitch implements IterationStartsListener, Provider<Mobsim> {
+
+	private static final Logger log = LogManager.getLogger(PseudoTransitSwitch.class);
+
+	@Inject
+	private Config config;
+	@Inject
+	private QSimComponentsConfig components;
+	@Inject
+	private QSimProvider qsimProvider;
+
+	/**
+	 * Components with the transit engine, in their original order.
+	 */
+	private List<Object> all;
+	private boolean simulate;
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+		simulate = isSimulated(config, event.getIteration(), event.isLastIteration());
+	}
+
+	/**
+	 * Whether transit vehicles are simulated in this iteration.
+	 */
+	static boolean isSimulated(Config config, int iteration, boolean lastIteration) {
+
+		int first = config.controler().getFirstIteration();
+		int last = config.controler().getLastIteration();
+		int switchIteration = (int) (first + (last - first) * config.strategy().getFractionOfIterationsToDisableInnovation());
+
+		return iteration >= switchIteration || lastIteration;
+	}
+
+	@Override
+	public synchronized Mobsim get() {
+
+		if (all == null) {
+			if (!components.hasNamedComponent(TransitEngineModule.TRANSIT_ENGINE_NAME))
+				throw new IllegalStateException("Transit engine is not configured, pt needs to be simulated in the mobsim.");
+
+			all = new ArrayList<>(components.getActiveComponents());
+		}
+
+		boolean active = components.hasNamedComponent(TransitEngineModule.TRANSIT_ENGINE_NAME);
+		if (simulate && !active) {
+			// restore the original order of all components
+			components.clear();
+			for (Object c : all)
+				addComponent(c);
+
+		} else if (!simulate && active)
+			components.removeNamedComponent(TransitEngineModule.TRANSIT_ENGINE_NAME);
+
+		if (simulate != active)
+			log.info("{} transit vehicles in the mobsim", simulate ? "Simulating" : "Not simulating");
+
+		return qsimProvider.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addComponent(Object c) {
+		if (c instanceof Annotation)
+			components.addComponent((Annotation) c);
+		else
+			components.addComponent((Class<? extends Annotation>) c);
+	}
+}
@@ -0,0 +1,252 @@
+package org.matsim.run;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.routing.pt.raptor.*;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.pt.transitSchedule.api.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reuses {@link SwissRailRaptorData} within the same JVM, as long as schedule, network and raptor config have the same content.
+ * <p>
+ * The data is identified by a hash over the schedule, the network links and the static raptor config, which is much cheaper to compute than the data itself.
+ * Only the last created data is kept, and it can be reclaimed by the garbage collector if memory is needed.
+ * Hash and build times are written to {@value #METRICS_FILE} in the output directory.
+ */
+public final class RaptorDataCache {
+
+	private static final Logger log = LogManager.getLogger(RaptorDataCache.class);
+
+	static final String METRICS_FILE = "raptor_data.csv";
+
+	private static String cachedHash;
+	private static SoftReference<SwissRailRaptorData> cached = new SoftReference<>(null);
+
+	private RaptorDataCache() {
+	}
+
+	/**
+	 * Return the cached raptor data for this scenario or create it.
+	 */
+	public static synchronized Entry get(Scenario scenario, RaptorStaticConfig config, OccupancyData occupancy) {
+
+		long start = System.nanoTime();
+		String hash = hash(scenario, config);
+		long hashed = System.nanoTime();
+
+		SwissRailRaptorData data = cached.get();
+		if (data != null && hash.equals(cachedHash)) {
+			log.info("Reusing raptor data {}, validated in {} ms", hash, (hashed - start) / 1_000_000);
+			return new Entry(data, hash, true, hashed - start, 0);
+		}
+
+		data = SwissRailRaptorData.create(scenario.getTransitSchedule(), scenario.getTransitVehicles(), config, scenario.getNetwork(), occupancy);
+		long built = System.nanoTime();
+
+		log.info("Created raptor data {} in {} ms, hashing took {} ms", hash, (built - hashed) / 1_000_000, (hashed - start) / 1_000_000);
+
+		cachedHash = hash;
+		cached = new SoftReference<>(data);
+
+		return new Entry(data, hash, false, hashed - start, built - hashed);
+	}
+
+	/**
+	 * Raptor data together with how it was obtained.
+	 */
+	public static final class Entry {
+
+		private final SwissRailRaptorData data;
+		private final String hash;
+		private final boolean reused;
+		private final long hashNanos;
+		private final long buildNanos;
+
+		private Entry(SwissRailRaptorData data, String hash, boolean reused, long hashNanos, long buildNanos) {
+			this.data = data;
+			this.hash = hash;
+			this.reused = reused;
+			this.hashNanos = hashNanos;
+			this.buildNanos = buildNanos;
+		}
+
+		public SwissRailRaptorData getData() {
+			return data;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public boolean isReused() {
+			return reused;
+		}
+
+		public long getHashNanos() {
+			return hashNanos;
+		}
+
+		public long getBuildNanos() {
+			return buildNanos;
+		}
+	}
+
+	/**
+	 * Content hash of all inputs of the raptor data.
+	 */
+	static String hash(Scenario scenario, RaptorStaticConfig config) {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+
+			out.writeDouble(config.getBeelineWalkConnectionDistance());
+			out.writeDouble(config.getBeelineWalkSpeed());
+			out.writeDouble(config.getMinimalTransferTime());
+			out.writeUTF(config.getOptimization().name());
+			out.writeBoolean(config.isUseModeMappingForPassengers());
+
+			for (Link link : scenario.getNetwork().getLinks().values()) {
+				out.writeUTF(link.getId().toString());
+				out.writeDouble(link.getLength());
+			}
+
+			TransitSchedule schedule = scenario.getTransitSchedule();
+			for (TransitStopFacility stop : schedule.getFacilities().values()) {
+				out.writeUTF(stop.getId().toString());
+				out.writeDouble(stop.getCoord().getX());
+				out.writeDouble(stop.getCoord().getY());
+				out.writeUTF(String.valueOf(stop.getLinkId()));
+			}
+
+			for (TransitLine line : schedule.getTransitLines().values()) {
+				out.writeUTF(line.getId().toString());
+				for (TransitRoute route : line.getRoutes().values()) {
+					out.writeUTF(route.getId().toString());
+					out.writeUTF(route.getTransportMode());
+
+					for (TransitRouteStop stop : route.getStops()) {
+						out.writeUTF(stop.getStopFacility().getId().toString());
+						out.writeDouble(stop.getArrivalOffset().orElse(-1));
+						out.writeDouble(stop.getDepartureOffset().orElse(-1));
+					}
+
+					for (Departure departure : route.getDepartures().values()) {
+						out.writeDouble(departure.getDepartureTime());
+						out.writeUTF(String.valueOf(departure.getVehicleId()));
+					}
+				}
+			}
+
+			MinimalTransferTimes.MinimalTransferTimesIterator it = schedule.getMinimalTransferTimes().iterator();
+			while (it.hasNext()) {
+				it.next();
+				out.writeUTF(it.getFromStopId().toString());
+				out.writeUTF(it.getToStopId().toString());
+				out.writeDouble(it.getSeconds());
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		StringBuilder b = new StringBuilder();
+		for (byte x : digest.digest())
+			b.append(String.format("%02x", x));
+
+		return b.substring(0, 16);
+	}
+
+	/**
+	 * Creates raptor instances the same way as the default factory, but with cached data.
+	 */
+	@Singleton
+	public static final class RaptorProvider implements Provider<SwissRailRaptor> {
+
+		@Inject
+		private Scenario scenario;
+		@Inject
+		private Config config;
+		@Inject
+		private RaptorParametersForPerson parametersForPerson;
+		@Inject
+		private RaptorRouteSelector routeSelector;
+		@Inject
+		private Provider<RaptorStopFinder> stopFinder;
+		@Inject
+		private RaptorInVehicleCostCalculator inVehicleCostCalculator;
+		@Inject
+		private RaptorTransferCostCalculator transferCostCalculator;
+		@Inject
+		private OccupancyData occupancy;
+		@Inject
+		private OutputDirectoryHierarchy io;
+
+		private SwissRailRaptorData data;
+
+		@Override
+		public SwissRailRaptor get() {
+
+			synchronized (this) {
+				if (data == null) {
+					RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(config);
+					// occupancy dependent data can not be shared
+					if (ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class).isUseCapacityConstraints()) {
+						long start = System.nanoTime();
+						data = SwissRailRaptorData.create(scenario.getTransitSchedule(), scenario.getTransitVehicles(), raptorConfig, scenario.getNetwork(), occupancy);
+						writeMetrics("", "build", 0, System.nanoTime() - start);
+					} else {
+						Entry entry = RaptorDataCache.get(scenario, raptorConfig, occupancy);
+						data = entry.getData();
+						writeMetrics(entry.getHash(), entry.isReused() ? "reuse" : "build", entry.getHashNanos(), entry.getBuildNanos());
+					}
+				}
+			}
+
+			return new SwissRailRaptor.Builder(data, config)
+					.with(parametersForPerson)
+					.with(routeSelector)
+					.with(stopFinder.get())
+					.with(inVehicleCostCalculator)
+					.with(transferCostCalculator)
+					.build();
+		}
+
+		private void writeMetrics(String hash, String source, long hashNanos, long buildNanos) {
+
+			Path file = Path.of(io.getOutputFilename(METRICS_FILE));
+			try (CSVPrinter printer = new CSVPrinter(Files.newBufferedWriter(file), CSVFormat.DEFAULT.withDelimiter(';'))) {
+				printer.printRecord("hash", "source", "hash_ms", "build_ms");
+				printer.printRecord(hash, source, hashNanos / 1_000_000, buildNanos / 1_000_000);
+			} catch (IOException e) {
+				log.warn("Could not write {}", file, e);
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.matsim.run;
 
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptor;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorModule;
 import com.google.common.collect.Sets;
 import com.google.inject.Provides;
@@ -21,11 +22,20 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.matsim.analysis.ACVModel;
 import org.matsim.analysis.AVModel;
+import org.matsim.analysis.BatchRouting;
+import org.matsim.analysis.CountsComparison;
 import org.matsim.analysis.ModeChoiceCoverageControlerListener;
+import org.matsim.analysis.NoiseImmission;
+import org.matsim.analysis.OnlineEmissions;
+import org.matsim.analysis.OvertakeDetector;
+import org.matsim.analysis.events.BinaryEventsOutput;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
 import org.matsim.application.MATSimApplication;
 import org.matsim.application.analysis.CheckPopulation;
 import org.matsim.application.analysis.DefaultAnalysisMainModeIdentifier;
@@ -42,6 +52,7 @@ import org.matsim.application.prepare.pt.CreateTransitScheduleFromGtfs;
 import org.matsim.contrib.signals.otfvis.OTFVisWithSignalsLiveModule;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
 import org.matsim.core.config.groups.*;
 import org.matsim.core.config.groups.PlanCalcScoreConfigGroup.ActivityParams;
 import org.matsim.core.controler.AbstractModule;
@@ -49,12 +60,23 @@ import org.matsim.core.controler.Controler;
 import org.matsim.core.mobsim.qsim.AbstractQSimModule;
 import org.matsim.core.mobsim.qsim.qnetsimengine.ConfigurableQNetworkFactory;
 import org.matsim.core.mobsim.qsim.qnetsimengine.QNetworkFactory;
+import org.matsim.core.population.io.StreamingPopulationReader;
 import org.matsim.core.replanning.strategies.DefaultPlanStrategiesModule;
 import org.matsim.core.router.AnalysisMainModeIdentifier;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.router.util.LeastCostPathCalculatorFactory;
+import org.matsim.core.scenario.ProjectionUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.matsim.core.utils.geometry.transformations.IdentityTransformation;
+import org.matsim.core.utils.geometry.transformations.TransformationFactory;
+import org.matsim.counts.Counts;
+import org.matsim.counts.MatsimCountsReader;
 import org.matsim.prepare.*;
 import picocli.CommandLine;
 
 import java.io.IOException;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -65,11 +87,14 @@ import java.util.stream.Collectors;
 	CreateNetwork.class, CreateTransitScheduleFromGtfs.class, CreateCityCounts.class, CleanPopulation.class,
 	ExtractEvents.class, CreateBAStCounts.class, TrajectoryToPlans.class, ExtractRelevantFreightTrips.class,
 	GenerateShortDistanceTrips.class, MergePopulations.class, DownSamplePopulation.class, ResolveGridCoordinates.class,
-	ExtractHomeCoordinates.class, ExtractMinimalConnectedNetwork.class, AdjustPopulationForCutout.class
+	ExtractHomeCoordinates.class, ExtractMinimalConnectedNetwork.class, AdjustPopulationForCutout.class,
+	PreparePopulationPipeline.class, PruneTransitSchedule.class, MatchCountStations.class, MergeTransitSchedules.class,
+	ExportEmissionFactors.class
 })
 @MATSimApplication.Analysis({
 	CheckPopulation.class, AirPollutionByVehicleCategory.class, AirPollutionSpatialAggregation.class,
-	LinkStats.class, NoiseAnalysis.class, TravelTimeAnalysis.class, TravelTimePatterns.class
+	LinkStats.class, NoiseAnalysis.class, TravelTimeAnalysis.class, TravelTimePatterns.class, BatchRouting.class,
+	NoiseImmission.class
 })
 public class RunDuesseldorfScenario extends MATSimApplication {
 
@@ -79,6 +104,11 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 	public static final double[] Y_EXTENT = new double[]{5_610_000.00, 5_722_000.00};
 	private static final Logger log = LogManager.getLogger(RunDuesseldorfScenario.class);
 
+	/**
+	 * Sample size of the largest available population, which is used for sampling at load time.
+	 */
+	private static final int FULL_SAMPLE_SIZE = 25;
+
 	@CommandLine.ArgGroup(exclusive = false, heading = "Flow capacity models\n")
 	private final VehicleShare vehicleShare = new VehicleShare();
 
@@ -112,6 +142,46 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 	@CommandLine.Option(names = "--no-mc", defaultValue = "false", description = "Disable mode choice as replanning strategy.")
 	private boolean noModeChoice;
 
+	@CommandLine.Option(names = "--overtakes", defaultValue = "false", description = "Detect overtakes and lane usage during the simulation.")
+	private boolean overtakes;
+
+	@CommandLine.Option(names = "--binary-events", defaultValue = "false", description = "Additionally write events in the compact binary format.")
+	private boolean binaryEvents;
+
+	@CommandLine.Option(names = "--sample-at-load", defaultValue = "false", description = "Draw the sample from the 25pct population while reading it, instead of using separate plans files.")
+	private boolean sampleAtLoad;
+
+	@CommandLine.Option(names = "--turn-aware-routing", defaultValue = "false", description = "Consider the delays of turn efficiencies in car routing, requires capacity reduction.")
+	private boolean turnAwareRouting;
+
+	@CommandLine.Option(names = "--turn-travel-times", defaultValue = "false", description = "Collect travel times of turns at junctions, used by --turn-aware-routing.")
+	private boolean turnTravelTimes;
+
+	@CommandLine.Option(names = "--compact-travel-times", defaultValue = "false", description = "Route with a compact copy of the link travel times that only stores deviations from free flow.")
+	private boolean compactTravelTimes;
+
+	@CommandLine.Option(names = "--raptor-cache", defaultValue = "false", description = "Reuse the raptor data within the JVM if schedule and network did not change, build times are written to raptor_data.csv.")
+	private boolean raptorCache;
+
+	@CommandLine.Option(names = "--pseudo-pt", defaultValue = "false", description = "Teleport pt legs with their scheduled travel time until innovation is disabled.")
+	private boolean pseudoPt;
+
+	@CommandLine.Option(names = "--counts-comparison", description = "Counts file to compare hourly link volumes with after each iteration.")
+	private Path countsComparison;
+
+	@CommandLine.Option(names = "--online-emissions", description = "Emission factor csv, as written by export-emission-factors, to compute emissions per link and hour during the last iteration.")
+	private Path onlineEmissions;
+
+	/**
+	 * Full population to sample from, only set if {@link #sampleAtLoad} is enabled.
+	 */
+	private URL fullSamplePlans;
+
+	/**
+	 * Plans file of the config, restored after the sample has been read so that it is part of the output config.
+	 */
+	private String samplePlans;
+
 	public RunDuesseldorfScenario() {
 		super("scenarios/input/duesseldorf-v1.0-1pct.config.xml");
 	}
@@ -146,17 +216,34 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 			config.qsim().setStorageCapFactor(sample.getSize() / (100.0 * demandCorrection));
 		}
 
+		if (sampleAtLoad) {
+			String plans = config.plans().getInputFile().replaceAll("\\d+pct", FULL_SAMPLE_SIZE + "pct");
+			fullSamplePlans = ConfigGroup.getInputFileURL(config.getContext(), plans);
+			samplePlans = config.plans().getInputFile();
+
+			// persons are read in prepareScenario
+			config.plans().setInputFile(null);
+		}
+
 		if (demandCorrection != 1.0)
 			addRunOption(config, "dc", demandCorrection);
 
 		config.controler().setLinkToLinkRoutingEnabled(false);
 		config.network().setLaneDefinitionsFile(null);
 		config.travelTimeCalculator().setCalculateLinkToLinkTravelTimes(false);
+
+		// link travel times are collected by CompactTravelTime instead
+		if (compactTravelTimes)
+			config.travelTimeCalculator().setCalculateLinkTravelTimes(false);
 		config.controler().setRoutingAlgorithmType(ControlerConfigGroup.RoutingAlgorithmType.SpeedyALT);
 
 		if (withLanes)
 			throw new IllegalArgumentException("The argument --no-lanes/--lanes is deprecated, please remove it.");
 
+		// turn efficiencies are only known if capacities are reduced
+		if (turnAwareRouting && noCapacityReduction)
+			throw new IllegalArgumentException("The argument --turn-aware-routing can not be combined with --no-capacity-reduction.");
+
 		if (capacityFactor != 1.0)
 			addRunOption(config, "cap", capacityFactor);
 
@@ -188,6 +275,10 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 		if (noCapacityReduction)
 			addRunOption(config, "no-cap-red");
 
+		// transit vehicles are removed from the mobsim by the PseudoTransitSwitch
+		if (pseudoPt)
+			addRunOption(config, "pseudo-pt");
+
 		config.planCalcScore().addActivityParams(new ActivityParams("car interaction").setTypicalDuration(60));
 		config.planCalcScore().addActivityParams(new ActivityParams("other").setTypicalDuration(600 * 3));
 		config.planCalcScore().addActivityParams(new ActivityParams("freight_start").setTypicalDuration(60 * 15));
@@ -203,6 +294,11 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 
 	@Override
 	protected void prepareScenario(Scenario scenario) {
+		if (fullSamplePlans != null) {
+			readSampledPopulation(scenario);
+			scenario.getConfig().plans().setInputFile(samplePlans);
+		}
+
 		// Call network modification before existing setup
 		modifyNetwork(scenario.getNetwork());
 
@@ -316,6 +412,62 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 		}
 	}
 
+	/**
+	 * Read the full population and keep persons according to {@link PopulationSampling}, so that samples of different sizes are nested.
+	 * Persons are only held in memory if they belong to the sample. Like the regular loader, coordinates are transformed from the input crs
+	 * of the plans, or the crs given in the file, into the global crs.
+	 */
+	private void readSampledPopulation(Scenario scenario) {
+
+		double fraction = sample.getSize() / (double) FULL_SAMPLE_SIZE;
+		Population population = scenario.getPopulation();
+		Config config = scenario.getConfig();
+
+		Scenario input = ScenarioUtils.createScenario(config);
+		CoordinateTransformation[] ct = new CoordinateTransformation[1];
+
+		StreamingPopulationReader reader = new StreamingPopulationReader(input);
+		reader.addAlgorithm(person -> {
+			if (!PopulationSampling.keep(person.getId(), fraction))
+				return;
+
+			// population attributes are read before the first person
+			if (ct[0] == null)
+				ct[0] = inputTransformation(config, input.getPopulation());
+
+			for (Plan plan : person.getPlans()) {
+				for (Activity act : TripStructureUtils.getActivities(plan, TripStructureUtils.StageActivityHandling.StagesAsNormalActivities)) {
+					if (act.getCoord() != null)
+						act.setCoord(ct[0].transform(act.getCoord()));
+				}
+			}
+
+			population.addPerson(person);
+		});
+
+		reader.readURL(fullSamplePlans);
+
+		input.getPopulation().getAttributes().getAsMap().forEach(population.getAttributes()::putAttribute);
+		if (config.global().getCoordinateSystem() != null)
+			ProjectionUtils.putCRS(population, config.global().getCoordinateSystem());
+
+		log.info("Sampled {} persons with fraction {} from {}", population.getPersons().size(), fraction, fullSamplePlans);
+	}
+
+	private static CoordinateTransformation inputTransformation(Config config, Population input) {
+
+		String inputCRS = config.plans().getInputCRS();
+		if (inputCRS == null)
+			inputCRS = ProjectionUtils.getCRS(input);
+
+		String targetCRS = config.global().getCoordinateSystem();
+		if (inputCRS == null || targetCRS == null || inputCRS.equals(targetCRS))
+			return new IdentityTransformation();
+
+		log.info("Transforming sampled population from {} to {}", inputCRS, targetCRS);
+		return TransformationFactory.getCoordinateTransformation(inputCRS, targetCRS);
+	}
+
 	private void modifyNetwork(Network network) {
 		Set<Id<Link>> eligibleLinks = new HashSet<>();
 
@@ -355,6 +507,50 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 
 				addControlerListenerBinding().to(StrategyWeightFadeout.class).in(Singleton.class);
 
+				if (binaryEvents)
+					addControlerListenerBinding().to(BinaryEventsOutput.class).in(Singleton.class);
+
+				if (pseudoPt) {
+					addControlerListenerBinding().to(PseudoTransitSwitch.class);
+					bindMobsim().toProvider(PseudoTransitSwitch.class);
+				}
+
+				if (compactTravelTimes) {
+					addEventHandlerBinding().to(CompactTravelTime.Collector.class);
+					addControlerListenerBinding().to(CompactTravelTime.Collector.class);
+					for (String mode : getConfig().plansCalcRoute().getNetworkModes())
+						addTravelTimeBinding(mode).to(CompactTravelTime.Collector.class);
+				}
+
+				if (turnTravelTimes) {
+					bind(TurnTravelTimes.class).in(Singleton.class);
+					addEventHandlerBinding().to(TurnTravelTimes.class);
+				}
+
+				if (turnAwareRouting)
+					bind(LeastCostPathCalculatorFactory.class).to(TurnAwareRoutingFactory.class).in(Singleton.class);
+
+				if (countsComparison != null) {
+					Counts<Link> counts = new Counts<>();
+					new MatsimCountsReader(counts).readFile(countsComparison.toString());
+
+					bind(CountsComparison.class).toInstance(new CountsComparison(counts, CountsComparison.scale(sample.getSize(), demandCorrection)));
+					addEventHandlerBinding().to(CountsComparison.class);
+					addControlerListenerBinding().to(CountsComparison.class);
+				}
+
+				if (onlineEmissions != null) {
+					bind(OnlineEmissions.class).toInstance(new OnlineEmissions(onlineEmissions, 100));
+					addEventHandlerBinding().to(OnlineEmissions.class);
+					addControlerListenerBinding().to(OnlineEmissions.class);
+				}
+
+				if (overtakes) {
+					bind(OvertakeDetector.class).in(Singleton.class);
+					addEventHandlerBinding().to(OvertakeDetector.class);
+					addControlerListenerBinding().to(OvertakeDetector.class);
+				}
+
 				Multibinder<StrategyWeightFadeout.Schedule> schedules = Multibinder.newSetBinder(binder(), StrategyWeightFadeout.Schedule.class);
 
 				if (noModeChoice) {
@@ -366,6 +562,16 @@ public class RunDuesseldorfScenario extends MATSimApplication {
 			}
 		});
 
+		// overrides the binding of the raptor module
+		if (raptorCache) {
+			controler.addOverridingModule(new AbstractModule() {
+				@Override
+				public void install() {
+					bind(SwissRailRaptor.class).toProvider(RaptorDataCache.RaptorProvider.class);
+				}
+			});
+		}
+
 		controler.addOverridingQSimModule(new AbstractQSimModule() {
 			@Override
 			protected void configureQSim() {
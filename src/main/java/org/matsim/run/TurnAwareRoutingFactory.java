@@ -0,0 +1,423 @@
+package org.matsim.run;
+
+import com.google.inject.Binding;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.speedy.SpeedyALTFactory;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.LeastCostPathCalculatorFactory;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.lanes.Lane;
+import org.matsim.lanes.Lanes;
+import org.matsim.lanes.LanesToLinkAssignment;
+import org.matsim.vehicles.Vehicle;
+
+import javax.annotation.Nullable;
+
+import java.util.*;
+
+/**
+ * Routing that takes the turn efficiencies of {@link TurnDependentFlowEfficiencyCalculator} into account.
+ * <p>
+ * The network is expanded only at junctions, i.e. the to nodes of links with turn efficiencies. There, the node is split into one node per
+ * incoming and one per outgoing link, connected by one link per turn. Each turn has a static delay derived from the turn efficiency and the
+ * capacity of the incoming link, which is the additional time gap the flow efficiency causes in the mobsim.
+ * All other nodes are routed as usual. Routing on the expanded network is done with {@link SpeedyALTFactory}, paths are translated back to
+ * the original network.
+ * <p>
+ * If {@link TurnTravelTimes} are available, the observed extra travel time of a turn compared to the link travel time is used instead.
+ * <p>
+ * If lanes are given, turns that no lane of the incoming link leads to are banned, and the best turn efficiency of the lanes leading to
+ * a link is used. Turns with an efficiency of zero are banned as well.
+ * <p>
+ * Because routes are requested from node to node, the turn from the departure link onto the first link of the route is not penalized.
+ */
+public final class TurnAwareRoutingFactory implements LeastCostPathCalculatorFactory {
+
+	private static final Logger log = LogManager.getLogger(TurnAwareRoutingFactory.class);
+
+	private final SpeedyALTFactory delegate = new SpeedyALTFactory();
+
+	/**
+	 * Expanded networks, there is usually one per routed mode.
+	 */
+	private final Map<Network, ExpandedNetwork> cache = new IdentityHashMap<>();
+
+	@Nullable
+	private final TurnTravelTimes turnTravelTimes;
+
+	@Nullable
+	private final Lanes lanes;
+
+	public TurnAwareRoutingFactory() {
+		this((Lanes) null);
+	}
+
+	/**
+	 * Considers turn restrictions and efficiencies of the lanes.
+	 */
+	public TurnAwareRoutingFactory(@Nullable Lanes lanes) {
+		this.turnTravelTimes = null;
+		this.lanes = lanes;
+	}
+
+	/**
+	 * Uses the lanes of the scenario and the turn travel times, if they are bound explicitly.
+	 */
+	@Inject
+	public TurnAwareRoutingFactory(Injector injector) {
+		Binding<TurnTravelTimes> binding = injector.getExistingBinding(Key.get(TurnTravelTimes.class));
+		this.turnTravelTimes = binding != null ? binding.getProvider().get() : null;
+		this.lanes = injector.getInstance(Scenario.class).getLanes();
+	}
+
+	@Override
+	public LeastCostPathCalculator createPathCalculator(Network network, TravelDisutility travelCosts, TravelTime travelTimes) {
+
+		ExpandedNetwork expanded;
+		synchronized (cache) {
+			expanded = cache.computeIfAbsent(network, n -> new ExpandedNetwork(n, lanes));
+		}
+
+		if (expanded.junctions == 0)
+			return delegate.createPathCalculator(network, travelCosts, travelTimes);
+
+		ExpandedTravelTime tt = new ExpandedTravelTime(expanded, travelTimes, turnTravelTimes);
+		TravelDisutility td = new ExpandedTravelDisutility(expanded, travelCosts, tt);
+
+		return new Calculator(expanded, delegate.createPathCalculator(expanded.network, td, tt));
+	}
+
+	/**
+	 * Additional time per vehicle caused by a turn efficiency below one.
+	 */
+	static double turnDelay(double efficiency, double capacity, double capacityPeriod) {
+		if (efficiency <= 0 || efficiency >= 1 || capacity <= 0)
+			return 0;
+
+		return (1 / efficiency - 1) * capacityPeriod / capacity;
+	}
+
+	/**
+	 * Efficiency of the turn from one link to another, 0 if the turn is not allowed.
+	 */
+	static double turnEfficiency(Link in, Link out, @Nullable LanesToLinkAssignment l2l) {
+
+		String to = out.getId().toString();
+
+		if (l2l != null) {
+			boolean restricted = false;
+			double best = 0;
+
+			for (Lane lane : l2l.getLanes().values()) {
+				// lanes that only lead to other lanes
+				if (lane.getToLinkIds() == null || lane.getToLinkIds().isEmpty())
+					continue;
+
+				restricted = true;
+				if (!lane.getToLinkIds().contains(out.getId()))
+					continue;
+
+				best = Math.max(best, parseEfficiency(lane.getAttributes().getAttribute(TurnDependentFlowEfficiencyCalculator.ATTR_TURN_EFFICIENCY), to));
+			}
+
+			if (restricted)
+				return best;
+		}
+
+		return parseEfficiency(in.getAttributes().getAttribute(TurnDependentFlowEfficiencyCalculator.ATTR_TURN_EFFICIENCY), to);
+	}
+
+	private static double parseEfficiency(Object attribute, String toLink) {
+		@SuppressWarnings("unchecked")
+		Map<String, String> efficiencies = (Map<String, String>) attribute;
+		if (efficiencies == null || !efficiencies.containsKey(toLink))
+			return 1;
+
+		return Double.parseDouble(efficiencies.get(toLink));
+	}
+
+	/**
+	 * Network where junctions are split into turns.
+	 */
+	private static final class ExpandedNetwork {
+
+		private final Network network = NetworkUtils.createNetwork();
+
+		/**
+		 * Original link for each expanded link index, null for turn and connector links.
+		 */
+		private final Link[] original;
+
+		/**
+		 * Incoming and outgoing original link and static delay for each turn link index.
+		 */
+		private final Link[] turnFrom;
+		private final Link[] turnTo;
+		private final double[] delay;
+
+		/**
+		 * Start and end node in the expanded network for each original node index.
+		 */
+		private final Node[] source;
+		private final Node[] target;
+
+		private int junctions;
+
+		private ExpandedNetwork(Network network, @Nullable Lanes lanes) {
+
+			NetworkFactory f = this.network.getFactory();
+			this.network.setCapacityPeriod(network.getCapacityPeriod());
+
+			Map<Id<Link>, LanesToLinkAssignment> l2ls = lanes != null ? lanes.getLanesToLinkAssignments() : Map.of();
+
+			Set<Node> junctionNodes = new HashSet<>();
+			for (Link link : network.getLinks().values()) {
+				if (link.getAttributes().getAttribute(TurnDependentFlowEfficiencyCalculator.ATTR_TURN_EFFICIENCY) != null || l2ls.containsKey(link.getId()))
+					junctionNodes.add(link.getToNode());
+			}
+
+			junctions = junctionNodes.size();
+
+			// node where each link starts and ends in the expanded network
+			Map<Link, Node> startNode = new IdentityHashMap<>();
+			Map<Link, Node> endNode = new IdentityHashMap<>();
+			Map<Node, Node> sources = new IdentityHashMap<>();
+			Map<Node, Node> targets = new IdentityHashMap<>();
+
+			for (Node node : network.getNodes().values()) {
+				if (junctionNodes.contains(node)) {
+					Node in = f.createNode(Id.createNodeId(node.getId() + "#in"), node.getCoord());
+					Node out = f.createNode(Id.createNodeId(node.getId() + "#out"), node.getCoord());
+					this.network.addNode(in);
+					this.network.addNode(out);
+					targets.put(node, in);
+					sources.put(node, out);
+
+					for (Link link : node.getInLinks().values()) {
+						Node n = f.createNode(Id.createNodeId(node.getId() + "#" + link.getId()), node.getCoord());
+						this.network.addNode(n);
+						endNode.put(link, n);
+					}
+
+					for (Link link : node.getOutLinks().values()) {
+						Node n = f.createNode(Id.createNodeId(node.getId() + ">" + link.getId()), node.getCoord());
+						this.network.addNode(n);
+						startNode.put(link, n);
+					}
+
+				} else {
+					Node n = f.createNode(node.getId(), node.getCoord());
+					this.network.addNode(n);
+					sources.put(node, n);
+					targets.put(node, n);
+				}
+			}
+
+			Map<Link, Link> originals = new IdentityHashMap<>();
+			Map<Link, Link> turns = new IdentityHashMap<>();
+			Map<Link, Link> turnsTo = new IdentityHashMap<>();
+			Map<Link, Double> delays = new IdentityHashMap<>();
+
+			for (Link link : network.getLinks().values()) {
+				Node from = startNode.getOrDefault(link, sources.get(link.getFromNode()));
+				Node to = endNode.getOrDefault(link, targets.get(link.getToNode()));
+
+				Link l = f.createLink(link.getId(), from, to);
+				l.setLength(link.getLength());
+				l.setFreespeed(link.getFreespeed());
+				l.setCapacity(link.getCapacity());
+				l.setNumberOfLanes(link.getNumberOfLanes());
+				l.setAllowedModes(link.getAllowedModes());
+				this.network.addLink(l);
+				originals.put(l, link);
+			}
+
+			for (Node node : junctionNodes) {
+				for (Link in : node.getInLinks().values()) {
+
+					LanesToLinkAssignment l2l = l2ls.get(in.getId());
+
+					for (Link out : node.getOutLinks().values()) {
+
+						double eff = turnEfficiency(in, out, l2l);
+						// banned turns are not connected
+						if (eff <= 0)
+							continue;
+
+						Link turn = connect(f, in.getId() + ">" + out.getId(), endNode.get(in), startNode.get(out), in);
+						turns.put(turn, in);
+						turnsTo.put(turn, out);
+						delays.put(turn, turnDelay(eff, in.getCapacity(), network.getCapacityPeriod()));
+					}
+
+					connect(f, in.getId() + ">" + node.getId() + "#in", endNode.get(in), targets.get(node), in);
+				}
+
+				for (Link out : node.getOutLinks().values())
+					connect(f, node.getId() + "#out>" + out.getId(), sources.get(node), startNode.get(out), out);
+			}
+
+			int links = Id.getNumberOfIds(Link.class);
+			original = new Link[links];
+			turnFrom = new Link[links];
+			turnTo = new Link[links];
+			delay = new double[links];
+
+			originals.forEach((k, v) -> original[k.getId().index()] = v);
+			turns.forEach((k, v) -> turnFrom[k.getId().index()] = v);
+			turnsTo.forEach((k, v) -> turnTo[k.getId().index()] = v);
+			delays.forEach((k, v) -> delay[k.getId().index()] = v);
+
+			int nodes = Id.getNumberOfIds(Node.class);
+			source = new Node[nodes];
+			target = new Node[nodes];
+
+			sources.forEach((k, v) -> source[k.getId().index()] = v);
+			targets.forEach((k, v) -> target[k.getId().index()] = v);
+
+			log.info("Expanded {} junctions, routing network has {} nodes and {} links (original {} and {})", junctions,
+					this.network.getNodes().size(), this.network.getLinks().size(), network.getNodes().size(), network.getLinks().size());
+		}
+
+		/**
+		 * Create a link without length, which takes the attributes of given original link.
+		 */
+		private Link connect(NetworkFactory f, String id, Node from, Node to, Link like) {
+			Link l = f.createLink(Id.createLinkId(id), from, to);
+			l.setLength(0);
+			l.setFreespeed(like.getFreespeed());
+			l.setCapacity(like.getCapacity());
+			l.setAllowedModes(like.getAllowedModes());
+			network.addLink(l);
+			return l;
+		}
+
+		private Link original(Link link) {
+			return original[link.getId().index()];
+		}
+	}
+
+	private static final class ExpandedTravelTime implements TravelTime {
+
+		private final ExpandedNetwork network;
+		private final TravelTime delegate;
+		private final TurnTravelTimes turnTravelTimes;
+
+		private ExpandedTravelTime(ExpandedNetwork network, TravelTime delegate, @Nullable TurnTravelTimes turnTravelTimes) {
+			this.network = network;
+			this.delegate = delegate;
+			this.turnTravelTimes = turnTravelTimes;
+		}
+
+		@Override
+		public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+			Link o = network.original(link);
+			if (o != null)
+				return delegate.getLinkTravelTime(o, time, person, vehicle);
+
+			int idx = link.getId().index();
+			Link from = network.turnFrom[idx];
+			if (turnTravelTimes != null && from != null) {
+				double tt = turnTravelTimes.getTurnTravelTime(from.getId(), network.turnTo[idx].getId(), time);
+				if (!Double.isNaN(tt))
+					return Math.max(0, tt - delegate.getLinkTravelTime(from, time, person, vehicle));
+			}
+
+			return network.delay[idx];
+		}
+	}
+
+	private static final class ExpandedTravelDisutility implements TravelDisutility {
+
+		private final ExpandedNetwork network;
+		private final TravelDisutility delegate;
+		private final ExpandedTravelTime travelTime;
+
+		private ExpandedTravelDisutility(ExpandedNetwork network, TravelDisutility delegate, ExpandedTravelTime travelTime) {
+			this.network = network;
+			this.delegate = delegate;
+			this.travelTime = travelTime;
+		}
+
+		@Override
+		public double getLinkTravelDisutility(Link link, double time, Person person, Vehicle vehicle) {
+			Link o = network.original(link);
+			if (o != null)
+				return delegate.getLinkTravelDisutility(o, time, person, vehicle);
+
+			Link from = network.turnFrom[link.getId().index()];
+			if (from == null)
+				return 0;
+
+			double d = travelTime.getLinkTravelTime(link, time, person, vehicle);
+			if (d == 0)
+				return 0;
+
+			// the delay is valued with the cost per time unit of the incoming link
+			double tt = travelTime.delegate.getLinkTravelTime(from, time, person, vehicle);
+			return tt > 0 ? d * delegate.getLinkTravelDisutility(from, time, person, vehicle) / tt : 0;
+		}
+
+		@Override
+		public double getLinkMinimumTravelDisutility(Link link) {
+			Link o = network.original(link);
+			return o != null ? delegate.getLinkMinimumTravelDisutility(o) : 0;
+		}
+	}
+
+	/**
+	 * Routes on the expanded network and translates the result back.
+	 */
+	private static final class Calculator implements LeastCostPathCalculator {
+
+		private final ExpandedNetwork network;
+		private final LeastCostPathCalculator delegate;
+
+		private Calculator(ExpandedNetwork network, LeastCostPathCalculator delegate) {
+			this.network = network;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Path calcLeastCostPath(Node fromNode, Node toNode, double starttime, Person person, Vehicle vehicle) {
+
+			// junctions are split into source and target, which would route a loop
+			if (fromNode == toNode)
+				return new Path(Collections.singletonList(fromNode), Collections.emptyList(), 0, 0);
+
+			Node from = network.source[fromNode.getId().index()];
+			Node to = network.target[toNode.getId().index()];
+
+			Path path = delegate.calcLeastCostPath(from, to, starttime, person, vehicle);
+			if (path == null)
+				return null;
+
+			List<Link> links = new ArrayList<>(path.links.size());
+			List<Node> nodes = new ArrayList<>(path.links.size() + 1);
+			nodes.add(fromNode);
+
+			for (Link link : path.links) {
+				Link o = network.original(link);
+				if (o != null) {
+					links.add(o);
+					nodes.add(o.getToNode());
+				}
+			}
+
+			return new Path(nodes, links, path.travelTime, path.travelCost);
+		}
+	}
+}
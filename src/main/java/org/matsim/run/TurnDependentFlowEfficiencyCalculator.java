@@ -100,6 +100,13 @@ public class TurnDependentFlowEfficiencyCalculator implements FlowEfficiencyCalc
 	 * 64bit compound key of two ids.
 	 */
 	private static long key(Id<?> a, Id<?> b) {
-		return ((long) a.index() << 32) | ((long) b.index() & 0xFFFF_FFFFL);
+		return key(a.index(), b.index());
+	}
+
+	/**
+	 * 64bit compound key of two id indices.
+	 */
+	static long key(int a, int b) {
+		return ((long) a << 32) | ((long) b & 0xFFFF_FFFFL);
 	}
 }
@@ -0,0 +1,179 @@
+package org.matsim.run;
+
+import com.google.inject.Inject;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.lanes.Lane;
+import org.matsim.lanes.LanesToLinkAssignment;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Collects travel times per turn, but only for the turns that have a turn efficiency, i.e. on junction links.
+ * <p>
+ * The travel time of a turn is the time from entering the from link until leaving it, when the vehicle continues on the to link.
+ * It is assigned to the time bin of the link entry. Other turns fall back to the given link travel time.
+ */
+public final class TurnTravelTimes implements LinkEnterEventHandler, LinkLeaveEventHandler, VehicleLeavesTrafficEventHandler {
+
+	private static final Logger log = LogManager.getLogger(TurnTravelTimes.class);
+
+	private final double binSize;
+	private final int bins;
+
+	/**
+	 * Slot for each turn key.
+	 */
+	private final Long2IntMap turns = new Long2IntOpenHashMap();
+
+	/**
+	 * Link indices where at least one turn starts.
+	 */
+	private final BitSet fromLinks = new BitSet();
+
+	private final float[] sum;
+	private final int[] count;
+
+	/**
+	 * Tracked link per vehicle index, -1 if none, and the times of entering and leaving it.
+	 */
+	private int[] link = new int[0];
+	private double[] enterTime = new double[0];
+	private double[] leaveTime = new double[0];
+
+	@Inject
+	public TurnTravelTimes(Scenario scenario) {
+
+		TravelTimeCalculatorConfigGroup config = scenario.getConfig().travelTimeCalculator();
+		this.binSize = config.getTraveltimeBinSize();
+		this.bins = (int) (config.getMaxTime() / binSize) + 1;
+
+		turns.defaultReturnValue(-1);
+
+		for (Link l : scenario.getNetwork().getLinks().values())
+			addTurns(l.getId(), l.getAttributes().getAttribute(TurnDependentFlowEfficiencyCalculator.ATTR_TURN_EFFICIENCY));
+
+		// turns of lanes are registered for the link they belong to
+		for (Map.Entry<Id<Link>, LanesToLinkAssignment> l2l : scenario.getLanes().getLanesToLinkAssignments().entrySet()) {
+			for (Lane lane : l2l.getValue().getLanes().values())
+				addTurns(l2l.getKey(), lane.getAttributes().getAttribute(TurnDependentFlowEfficiencyCalculator.ATTR_TURN_EFFICIENCY));
+		}
+
+		sum = new float[turns.size() * bins];
+		count = new int[turns.size() * bins];
+
+		log.info("Collecting travel times for {} turns on {} links", turns.size(), fromLinks.cardinality());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addTurns(Id<Link> from, Object attr) {
+		if (attr == null)
+			return;
+
+		for (String to : ((Map<String, String>) attr).keySet()) {
+			long key = TurnDependentFlowEfficiencyCalculator.key(from.index(), Id.createLinkId(to).index());
+			if (!turns.containsKey(key))
+				turns.put(key, turns.size());
+		}
+
+		fromLinks.set(from.index());
+	}
+
+	public boolean isTracked(Id<Link> from, Id<Link> to) {
+		return turns.containsKey(TurnDependentFlowEfficiencyCalculator.key(from.index(), to.index()));
+	}
+
+	/**
+	 * Observed mean travel time on the from link when turning to the to link, NaN if the turn is not tracked or was not observed.
+	 */
+	public double getTurnTravelTime(Id<Link> from, Id<Link> to, double time) {
+
+		int slot = turns.get(TurnDependentFlowEfficiencyCalculator.key(from.index(), to.index()));
+		if (slot == -1)
+			return Double.NaN;
+
+		int i = slot * bins + bin(time);
+		return count[i] > 0 ? sum[i] / count[i] : Double.NaN;
+	}
+
+	/**
+	 * Observed turn travel time, or the link travel time of the from link if there is none.
+	 */
+	public double getTurnTravelTime(Link from, Link to, double time, TravelTime fallback) {
+		double tt = getTurnTravelTime(from.getId(), to.getId(), time);
+		return Double.isNaN(tt) ? fallback.getLinkTravelTime(from, time, null, null) : tt;
+	}
+
+	@Override
+	public void reset(int iteration) {
+		Arrays.fill(sum, 0);
+		Arrays.fill(count, 0);
+		Arrays.fill(link, -1);
+	}
+
+	@Override
+	public void handleEvent(LinkEnterEvent event) {
+
+		int v = event.getVehicleId().index();
+		int to = event.getLinkId().index();
+
+		if (v >= link.length) {
+			int size = Math.max(v + 1, link.length * 2);
+			int old = link.length;
+			link = Arrays.copyOf(link, size);
+			enterTime = Arrays.copyOf(enterTime, size);
+			leaveTime = Arrays.copyOf(leaveTime, size);
+			Arrays.fill(link, old, size, -1);
+		}
+
+		int from = link[v];
+		if (from != -1 && !Double.isNaN(leaveTime[v])) {
+			int slot = turns.get(TurnDependentFlowEfficiencyCalculator.key(from, to));
+			if (slot != -1) {
+				int i = slot * bins + bin(enterTime[v]);
+				sum[i] += (float) (leaveTime[v] - enterTime[v]);
+				count[i]++;
+			}
+		}
+
+		if (fromLinks.get(to)) {
+			link[v] = to;
+			enterTime[v] = event.getTime();
+			leaveTime[v] = Double.NaN;
+		} else
+			link[v] = -1;
+	}
+
+	@Override
+	public void handleEvent(LinkLeaveEvent event) {
+		int v = event.getVehicleId().index();
+		if (v < link.length && link[v] == event.getLinkId().index())
+			leaveTime[v] = event.getTime();
+	}
+
+	@Override
+	public void handleEvent(VehicleLeavesTrafficEvent event) {
+		int v = event.getVehicleId().index();
+		if (v < link.length)
+			link[v] = -1;
+	}
+
+	private int bin(double time) {
+		return Math.min(bins - 1, Math.max(0, (int) (time / binSize)));
+	}
+}
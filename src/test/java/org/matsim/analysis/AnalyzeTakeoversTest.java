@@ -42,4 +42,21 @@ public class AnalyzeTakeoversTest {
         assert n == 1 : "There must be 1 takeovers";
 
     }
+
+    @Test
+    public void equalTimesAreNoTakeover() {
+
+        List<Event> events = List.of(
+                new LinkEnterEvent(100, Id.createVehicleId("a"), Id.createLinkId("l")),
+                new LinkEnterEvent(100, Id.createVehicleId("b"), Id.createLinkId("l")),
+                new LinkEnterEvent(105, Id.createVehicleId("c"), Id.createLinkId("l")),
+                new LinkLeaveEvent(120, Id.createVehicleId("c"), Id.createLinkId("l")),
+                new LinkLeaveEvent(120, Id.createVehicleId("a"), Id.createLinkId("l")),
+                new LinkLeaveEvent(130, Id.createVehicleId("b"), Id.createLinkId("l"))
+        );
+
+        int n = analyzer.analyze(events);
+
+        assert n == 1 : "There must be 1 takeover, but was " + n;
+    }
 }
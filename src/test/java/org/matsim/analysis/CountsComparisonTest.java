@@ -0,0 +1,152 @@
+package org.matsim.analysis;
+
+import com.google.inject.Guice;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.counts.Count;
+import org.matsim.counts.Counts;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CountsComparisonTest {
+
+	private static final Id<Link> A = Id.createLinkId("a");
+	private static final Id<Link> B = Id.createLinkId("b");
+	private static final Id<Link> UNCOUNTED = Id.createLinkId("uncounted");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void scale() {
+		Assert.assertEquals(4, CountsComparison.scale(25, 1), 1e-9);
+		Assert.assertEquals(4.8, CountsComparison.scale(25, 1.2), 1e-9);
+		Assert.assertEquals(10, CountsComparison.scale(10, 1), 1e-9);
+	}
+
+	@Test
+	public void geh() {
+		Assert.assertEquals(0, CountsComparison.geh(0, 0), 0);
+		Assert.assertEquals(0, CountsComparison.geh(100, 100), 0);
+		Assert.assertEquals(Math.sqrt(200.0 / 90), CountsComparison.geh(40, 50), 1e-9);
+		Assert.assertEquals(CountsComparison.geh(40, 50), CountsComparison.geh(50, 40), 0);
+	}
+
+	@Test
+	public void twoStations() throws Exception {
+
+		// volumes of counts are numbered from 1, hour 1 is from 00:00 to 01:00
+		Counts<Link> counts = new Counts<>();
+		Count<Link> a = counts.createAndAddCount(A, "A");
+		a.createVolume(1, 100);
+		a.createVolume(8, 50);
+		a.createVolume(24, 0);
+
+		Count<Link> b = counts.createAndAddCount(B, "B");
+		b.createVolume(9, 10);
+
+		Config config = ConfigUtils.createConfig();
+		config.controler().setOutputDirectory(tmp.getRoot().toPath().resolve("output").toString());
+		config.controler().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		Vehicles transit = scenario.getTransitVehicles();
+		VehicleType bus = transit.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+		transit.addVehicleType(bus);
+		transit.addVehicle(transit.getFactory().createVehicle(Id.createVehicleId("bus"), bus));
+
+		OutputDirectoryHierarchy io = new OutputDirectoryHierarchy(config);
+		io.createIterationDirectory(0);
+
+		// 25% sample
+		CountsComparison comparison = new CountsComparison(counts, CountsComparison.scale(25, 1));
+		Guice.createInjector(binder -> {
+			binder.bind(OutputDirectoryHierarchy.class).toInstance(io);
+			binder.bind(Scenario.class).toInstance(scenario);
+		}).injectMembers(comparison);
+
+		comparison.notifyStartup(new StartupEvent(null));
+		comparison.reset(0);
+
+		// 25 vehicles in the first hour
+		for (int i = 0; i < 25; i++)
+			leave(comparison, i * 100, A, "car" + i);
+
+		// not counted: transit, the start of the next hour, other links and after the last hour
+		leave(comparison, 10, A, "bus");
+		leave(comparison, 3600, A, "car");
+		leave(comparison, 100, UNCOUNTED, "car");
+		leave(comparison, 90000, A, "car");
+
+		// 10 vehicles from 07:00 to 08:00
+		for (int i = 0; i < 10; i++)
+			leave(comparison, 7 * 3600 + i, A, "car" + i);
+
+		// 5 vehicles from 08:00 to 09:00 on the second station, one in an hour without count
+		for (int i = 0; i < 5; i++)
+			leave(comparison, 8 * 3600 + i, B, "car" + i);
+		leave(comparison, 7 * 3600, B, "car");
+
+		comparison.notifyIterationEnds(new IterationEndsEvent(null, 0, false));
+
+		Map<String, CSVRecord> rows = new HashMap<>();
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(io.getIterationFilename(0, "counts_comparison.csv")), CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
+			for (CSVRecord r : parser)
+				rows.put(r.get("link") + "-" + r.get("hour"), r);
+		}
+
+		Assert.assertEquals(4, rows.size());
+
+		assertRow(rows.get("a-0"), "A", 100, 100, 0);
+		assertRow(rows.get("a-7"), "A", 50, 40, Math.sqrt(200.0 / 90));
+		assertRow(rows.get("a-23"), "A", 0, 0, 0);
+		assertRow(rows.get("b-8"), "B", 10, 20, Math.sqrt(200.0 / 30));
+
+		List<CSVRecord> summary = new ArrayList<>();
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(io.getOutputFilename("counts_geh.csv")), CSVFormat.DEFAULT.withFirstRecordAsHeader())) {
+			parser.forEach(summary::add);
+		}
+
+		Assert.assertEquals(1, summary.size());
+		CSVRecord s = summary.get(0);
+		Assert.assertEquals("4", s.get("station_hours"));
+		Assert.assertEquals((Math.sqrt(200.0 / 90) + Math.sqrt(200.0 / 30)) / 4, Double.parseDouble(s.get("mean_geh")), 1e-9);
+		Assert.assertEquals(1, Double.parseDouble(s.get("share_geh_below_5")), 1e-9);
+		// hours with a count of zero are not part of the relative errors
+		Assert.assertEquals((0 - 0.2 + 1) / 3, Double.parseDouble(s.get("mean_rel_error")), 1e-9);
+		Assert.assertEquals((0 + 0.2 + 1) / 3, Double.parseDouble(s.get("mean_abs_rel_error")), 1e-9);
+	}
+
+	private static void leave(CountsComparison comparison, double time, Id<Link> link, String vehicle) {
+		comparison.handleEvent(new LinkLeaveEvent(time, Id.createVehicleId(vehicle), link));
+	}
+
+	private static void assertRow(CSVRecord row, String station, double observed, double simulated, double geh) {
+		Assert.assertNotNull(row);
+		Assert.assertEquals(station, row.get("station"));
+		Assert.assertEquals(observed, Double.parseDouble(row.get("observed")), 1e-9);
+		Assert.assertEquals(simulated, Double.parseDouble(row.get("simulated")), 1e-9);
+		Assert.assertEquals(geh, Double.parseDouble(row.get("geh")), 1e-9);
+	}
+}
@@ -0,0 +1,142 @@
+package org.matsim.analysis;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Predicate;
+
+public class NoiseInfluenceIndexTest {
+
+	private static final Predicate<Link> ALL = l -> true;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final GeometryFactory gf = new GeometryFactory();
+
+	private Network network;
+	private List<Coord> receivers;
+
+	/**
+	 * Two parallel links south of the receivers.
+	 */
+	@Before
+	public void setUp() {
+
+		network = NetworkUtils.createNetwork();
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(200, 0));
+		Node c = NetworkUtils.createAndAddNode(network, Id.createNodeId("c"), new Coord(0, -100));
+		Node d = NetworkUtils.createAndAddNode(network, Id.createNodeId("d"), new Coord(200, -100));
+
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("near"), a, b, 200, 14, 1800, 1);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("far"), c, d, 200, 14, 1800, 1);
+
+		receivers = List.of(new Coord(100, 50), new Coord(20, 80), new Coord(1000, 1000));
+	}
+
+	private Geometry buffer(String link) {
+		Link l = network.getLinks().get(Id.createLinkId(link));
+		return gf.createLineString(new Coordinate[]{
+				new Coordinate(l.getFromNode().getCoord().getX(), l.getFromNode().getCoord().getY()),
+				new Coordinate(l.getToNode().getCoord().getX(), l.getToNode().getCoord().getY())
+		}).buffer(5);
+	}
+
+	private double[] immission(List<Geometry> barriers, double near, double far) {
+		NoiseInfluenceIndex index = NoiseInfluenceIndex.build(receivers, network, ALL, barriers, 500, -10);
+		double[] emission = new double[2];
+		emission[index.getLinks().indexOf(Id.createLinkId("near"))] = near;
+		emission[index.getLinks().indexOf(Id.createLinkId("far"))] = far;
+		return index.immission(emission);
+	}
+
+	@Test
+	public void ownBarrierDoesNotShield() {
+
+		double[] free = immission(List.of(), 60, Double.NEGATIVE_INFINITY);
+		double[] own = immission(List.of(buffer("near")), 60, Double.NEGATIVE_INFINITY);
+
+		Assert.assertArrayEquals(free, own, 1e-6);
+		Assert.assertTrue(free[0] > 0);
+	}
+
+	@Test
+	public void barrierBetween() {
+
+		double[] free = immission(List.of(), Double.NEGATIVE_INFINITY, 60);
+
+		// the buffer of the near link lies between the receivers and the far link
+		double[] shielded = immission(List.of(buffer("near")), Double.NEGATIVE_INFINITY, 60);
+		Assert.assertEquals(free[0] - 10, shielded[0], 1e-4);
+		Assert.assertEquals(free[1] - 10, shielded[1], 1e-4);
+
+		// a wall south of the receivers, but not around them
+		Geometry wall = gf.toGeometry(new Envelope(-50, 250, 20, 25));
+		Assert.assertEquals(free[0] - 10, immission(List.of(wall), Double.NEGATIVE_INFINITY, 60)[0], 1e-4);
+
+		// a barrier around the receiver does not shield
+		Geometry around = gf.toGeometry(new Envelope(90, 110, 40, 60));
+		Assert.assertEquals(free[0], immission(List.of(around), Double.NEGATIVE_INFINITY, 60)[0], 1e-6);
+	}
+
+	@Test
+	public void writeAndRead() throws Exception {
+
+		NoiseInfluenceIndex index = NoiseInfluenceIndex.build(receivers, network, ALL, List.of(buffer("near")), 500, -10);
+
+		Path file = tmp.newFile("index.bin").toPath();
+		index.write(file);
+
+		NoiseInfluenceIndex read = NoiseInfluenceIndex.read(file);
+
+		Assert.assertEquals(index.getLinks(), read.getLinks());
+		Assert.assertEquals(index.size(), read.size());
+		Assert.assertEquals(index.getNumberOfReceivers(), read.getNumberOfReceivers());
+		for (int r = 0; r < index.getNumberOfReceivers(); r++)
+			Assert.assertEquals(index.getReceiver(r), read.getReceiver(r));
+
+		double[] emission = {55, 65};
+		Assert.assertArrayEquals(index.immission(emission), read.immission(emission), 0);
+
+		// receiver out of range
+		Assert.assertEquals(0, read.immission(emission)[2], 0);
+	}
+
+	@Test
+	public void hash() {
+
+		byte[] barriers = "barriers".getBytes(StandardCharsets.UTF_8);
+		String hash = NoiseInfluenceIndex.hash(receivers, network, ALL, barriers, 500, -10);
+
+		// stable for the same inputs
+		Assert.assertEquals(hash, NoiseInfluenceIndex.hash(List.copyOf(receivers), network, ALL, barriers.clone(), 500, -10));
+		Assert.assertEquals(64, hash.length());
+
+		// any changed input changes the hash
+		Assert.assertNotEquals(hash, NoiseInfluenceIndex.hash(receivers.subList(0, 2), network, ALL, barriers, 500, -10));
+		Assert.assertNotEquals(hash, NoiseInfluenceIndex.hash(receivers, network, l -> l.getId().toString().equals("near"), barriers, 500, -10));
+		Assert.assertNotEquals(hash, NoiseInfluenceIndex.hash(receivers, network, ALL, new byte[0], 500, -10));
+		Assert.assertNotEquals(hash, NoiseInfluenceIndex.hash(receivers, network, ALL, barriers, 400, -10));
+		Assert.assertNotEquals(hash, NoiseInfluenceIndex.hash(receivers, network, ALL, barriers, 500, -5));
+
+		network.getNodes().get(Id.createNodeId("b")).setCoord(new Coord(200, 1));
+		Assert.assertNotEquals(hash, NoiseInfluenceIndex.hash(receivers, network, ALL, barriers, 500, -10));
+	}
+}
@@ -0,0 +1,146 @@
+package org.matsim.analysis;
+
+import com.google.inject.Guice;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+public class OnlineEmissionsTest {
+
+	private static final Id<Link> L1 = Id.createLinkId("l1");
+	private static final Id<Link> L2 = Id.createLinkId("l2");
+	private static final Id<Link> L3 = Id.createLinkId("l3");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void linksAndCategories() throws Exception {
+
+		Config config = ConfigUtils.createConfig();
+		config.controler().setOutputDirectory(tmp.getRoot().toPath().resolve("output").toString());
+		config.controler().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+
+		Network network = scenario.getNetwork();
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(1000, 0));
+		Node c = NetworkUtils.createAndAddNode(network, Id.createNodeId("c"), new Coord(1500, 0));
+		NetworkUtils.createAndAddLink(network, L1, a, b, 1000, 14, 1800, 1);
+		NetworkUtils.createAndAddLink(network, L2, b, c, 500, 14, 1800, 1);
+		NetworkUtils.createAndAddLink(network, L3, c, a, 1500, 14, 1800, 1);
+
+		Vehicles vehicles = scenario.getVehicles();
+		for (String type : new String[]{"car", "hgv", "bike"}) {
+			VehicleType t = VehicleUtils.createVehicleType(Id.create(type, VehicleType.class));
+			vehicles.addVehicleType(t);
+			vehicles.addVehicle(VehicleUtils.createVehicle(Id.createVehicleId(type), t));
+		}
+
+		// warm factors in g/km, cold starts in g per start; hgv has no warm factor on l2 and l3 has none at all
+		Path factors = tmp.newFile("factors.csv").toPath();
+		Files.writeString(factors, String.join("\n",
+				"link;category;CO2;NOx",
+				"l1;car;100;1",
+				"l1;hgv;500;5",
+				"l2;car;100;1",
+				";car;20;0.5",
+				";hgv;50;2",
+				""));
+
+		OutputDirectoryHierarchy io = new OutputDirectoryHierarchy(config);
+
+		OnlineEmissions emissions = new OnlineEmissions(factors, 1000);
+		Guice.createInjector(binder -> {
+			binder.bind(OutputDirectoryHierarchy.class).toInstance(io);
+			binder.bind(Scenario.class).toInstance(scenario);
+		}).injectMembers(emissions);
+
+		emissions.notifyIterationStarts(new IterationStartsEvent(null, 0, true));
+
+		// cold start on a link without warm factors
+		emissions.handleEvent(new VehicleEntersTrafficEvent(100, Id.createPersonId("p1"), L3, Id.createVehicleId("car"), "car", 1.0));
+		emissions.handleEvent(new LinkLeaveEvent(3700, Id.createVehicleId("car"), L1));
+		emissions.handleEvent(new LinkLeaveEvent(3800, Id.createVehicleId("car"), L2));
+
+		emissions.handleEvent(new VehicleEntersTrafficEvent(7200, Id.createPersonId("p2"), L1, Id.createVehicleId("hgv"), "freight", 1.0));
+		emissions.handleEvent(new LinkLeaveEvent(7300, Id.createVehicleId("hgv"), L1));
+		emissions.handleEvent(new LinkLeaveEvent(7400, Id.createVehicleId("hgv"), L2));
+
+		// no factors for the category
+		emissions.handleEvent(new LinkLeaveEvent(7500, Id.createVehicleId("bike"), L1));
+
+		// after midnight, counted in the last hour
+		emissions.handleEvent(new LinkLeaveEvent(100_000, Id.createVehicleId("car"), L1));
+
+		emissions.notifyIterationEnds(new IterationEndsEvent(null, 0, true));
+
+		Map<String, CSVRecord> links = read(io.getOutputFilename("emissions_per_link.csv"), "linkId");
+		Assert.assertEquals(3, links.size());
+		assertValues(links.get("l1"), 100 + 50 + 500 + 100, 1 + 2 + 5 + 1);
+		assertValues(links.get("l2"), 50, 0.5);
+		assertValues(links.get("l3"), 20, 0.5);
+
+		Map<String, CSVRecord> categories = read(io.getOutputFilename("emissions_per_vehicle_category.csv"), "category");
+		assertValues(categories.get("car"), 20 + 100 + 50 + 100, 0.5 + 1 + 0.5 + 1);
+		assertValues(categories.get("hgv"), 50 + 500, 2 + 5);
+
+		Map<String, CSVRecord> hours = new HashMap<>();
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(io.getOutputFilename("emissions_per_link_per_hour.csv.gz")),
+				CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader())) {
+			for (CSVRecord r : parser)
+				hours.put(r.get("linkId") + "-" + r.get("hour"), r);
+		}
+
+		Assert.assertEquals(5, hours.size());
+		assertValues(hours.get("l1-1"), 100, 1);
+		assertValues(hours.get("l1-2"), 550, 7);
+		assertValues(hours.get("l1-23"), 100, 1);
+		assertValues(hours.get("l2-1"), 50, 0.5);
+		assertValues(hours.get("l3-0"), 20, 0.5);
+	}
+
+	private static Map<String, CSVRecord> read(String file, String key) throws Exception {
+		Map<String, CSVRecord> rows = new HashMap<>();
+		try (CSVParser parser = new CSVParser(IOUtils.getBufferedReader(file), CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader())) {
+			for (CSVRecord r : parser)
+				rows.put(r.get(key), r);
+		}
+		return rows;
+	}
+
+	private static void assertValues(CSVRecord row, double co2, double nox) {
+		Assert.assertNotNull(row);
+		Assert.assertEquals(co2, Double.parseDouble(row.get("CO2")), 1e-4);
+		Assert.assertEquals(nox, Double.parseDouble(row.get("NOx")), 1e-4);
+	}
+}
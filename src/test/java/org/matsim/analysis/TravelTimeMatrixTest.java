@@ -0,0 +1,68 @@
+package org.matsim.analysis;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.nio.file.Path;
+
+public class TravelTimeMatrixTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void writeAndRead() throws Exception {
+
+		Network network = NetworkUtils.createNetwork();
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(1000, 0));
+
+		// ids with one, two and three byte characters and a supplementary character shift the data offset
+		String[] ids = {"ascii", "Königsallee", "Straße-ß", "道路", "🚗", "nul\u0000"};
+		for (String id : ids)
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(id), a, b, 1000, 10, 600, 1);
+
+		TravelTimeMatrix.Builder builder = new TravelTimeMatrix.Builder(network, 900, 4);
+
+		Id<Vehicle> vehicle = Id.createVehicleId("v");
+		for (int i = 0; i < ids.length; i++) {
+			Id<Link> link = Id.createLinkId(ids[i]);
+			for (int bin = 0; bin < 4; bin++) {
+				double enter = bin * 900 + 10;
+				builder.handleEvent(new LinkEnterEvent(enter, vehicle, link));
+				builder.handleEvent(new LinkLeaveEvent(enter + 100 + i * 10 + bin, vehicle, link));
+			}
+		}
+
+		TravelTimeMatrix matrix = builder.build();
+
+		Path file = tmp.newFile("tt.bin").toPath();
+		matrix.write(file);
+
+		TravelTimeMatrix read = TravelTimeMatrix.read(file);
+
+		Assert.assertEquals(900, read.getBinSize(), 0);
+		Assert.assertEquals(4, read.getBins());
+
+		for (int i = 0; i < ids.length; i++) {
+			for (int bin = 0; bin < 4; bin++) {
+				double time = bin * 900 + 10;
+				Assert.assertEquals(ids[i], 100 + i * 10 + bin, read.getObservedTravelTime(Id.createLinkId(ids[i]), time), 1e-6);
+				Assert.assertEquals(matrix.getObservedTravelTime(Id.createLinkId(ids[i]), time), read.getObservedTravelTime(Id.createLinkId(ids[i]), time), 0);
+			}
+		}
+
+		Assert.assertTrue(Double.isNaN(read.getObservedTravelTime(Id.createLinkId("unknown"), 0)));
+	}
+}
@@ -0,0 +1,156 @@
+package org.matsim.analysis.events;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class BinaryEventsTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws Exception {
+
+		List<Event> events = new ArrayList<>();
+
+		// more events than fit into one block
+		for (int i = 0; i < BinaryEventsFormat.BLOCK_EVENTS + 1000; i++) {
+
+			double time = i * 0.25;
+			Id<Person> person = Id.createPersonId("p" + (i % 100));
+			Id<Vehicle> vehicle = Id.createVehicleId("v" + (i % 100));
+			// non ascii ids are stored in the dictionary
+			Id<Link> link = Id.createLinkId(i % 3 == 0 ? "Königsallee-" + (i % 50) : "l" + (i % 50));
+
+			switch (i % 8) {
+				case 0:
+					events.add(new LinkEnterEvent(time, vehicle, link));
+					break;
+				case 1:
+					events.add(new LinkLeaveEvent(time, vehicle, link));
+					break;
+				case 2:
+					events.add(new VehicleEntersTrafficEvent(time, person, link, vehicle, "car", 1.0));
+					break;
+				case 3:
+					events.add(new VehicleLeavesTrafficEvent(time, person, link, vehicle, "car", 1.0));
+					break;
+				case 4:
+					events.add(new PersonEntersVehicleEvent(time, person, vehicle));
+					break;
+				case 5:
+					events.add(new PersonArrivalEvent(time, person, link, "walk"));
+					break;
+				case 6:
+					events.add(new TransitDriverStartsEvent(time, person, vehicle, Id.create("line", TransitLine.class),
+							Id.create("route", TransitRoute.class), Id.create("d" + i, Departure.class)));
+					break;
+				default:
+					// values of unknown attributes are stored literally
+					GenericEvent e = new GenericEvent("custom", time);
+					e.getAttributes().put("link", link.toString());
+					e.getAttributes().put("note", "Straße " + i);
+					e.getAttributes().put("empty", "");
+					events.add(e);
+			}
+		}
+
+		String file = tmp.newFile("events.bin").toString();
+		BinaryEventsWriter writer = new BinaryEventsWriter(file);
+		for (Event e : events)
+			writer.handleEvent(e);
+
+		writer.closeFile();
+
+		List<Map<String, String>> read = new ArrayList<>();
+		EventsManager manager = EventsUtils.createEventsManager();
+		manager.addHandler((BasicEventHandler) event -> read.add(event.getAttributes()));
+		manager.initProcessing();
+		new BinaryEventsReader(manager).readFile(file);
+		manager.finishProcessing();
+
+		Assert.assertEquals(events.size(), read.size());
+		for (int i = 0; i < events.size(); i++)
+			Assert.assertEquals("Event " + i, events.get(i).getAttributes(), read.get(i));
+	}
+
+	@Test
+	public void linkFilter() throws Exception {
+
+		String file = tmp.newFile("filtered.bin").toString();
+		BinaryEventsWriter writer = new BinaryEventsWriter(file);
+
+		for (int i = 0; i < 100; i++)
+			writer.handleEvent(new LinkEnterEvent(i, Id.createVehicleId("v"), Id.createLinkId(i % 2 == 0 ? "even" : "odd")));
+
+		writer.closeFile();
+
+		List<Event> read = new ArrayList<>();
+		EventsManager manager = EventsUtils.createEventsManager();
+		manager.addHandler((BasicEventHandler) read::add);
+		manager.initProcessing();
+
+		BinaryEventsReader reader = new BinaryEventsReader(manager);
+		reader.setLinkFilter("odd"::equals);
+		reader.setTimeWindow(10, 19);
+		reader.readFile(file);
+		manager.finishProcessing();
+
+		Assert.assertEquals(5, read.size());
+		for (Event e : read)
+			Assert.assertEquals("odd", e.getAttributes().get("link"));
+	}
+
+	@Test
+	public void skipBlocks() throws Exception {
+
+		String file = tmp.newFile("blocks.bin").toString();
+		BinaryEventsWriter writer = new BinaryEventsWriter(file);
+
+		// the rare link gets a code between the two others, but appears only in the first of four blocks
+		for (int i = 0; i < 4 * BinaryEventsFormat.BLOCK_EVENTS; i++) {
+			String link = i == 1 ? "rare" : i % BinaryEventsFormat.BLOCK_EVENTS == 0 ? "first" : "last";
+			writer.handleEvent(new LinkEnterEvent(i, Id.createVehicleId("v"), Id.createLinkId(link)));
+		}
+
+		writer.closeFile();
+
+		List<Event> read = new ArrayList<>();
+		EventsManager manager = EventsUtils.createEventsManager();
+		manager.addHandler((BasicEventHandler) read::add);
+		manager.initProcessing();
+
+		BinaryEventsReader reader = new BinaryEventsReader(manager);
+		reader.setLinkFilter("rare"::equals);
+		reader.readFile(file);
+
+		Assert.assertEquals(1, read.size());
+		Assert.assertEquals("rare", read.get(0).getAttributes().get("link"));
+		Assert.assertEquals(1, reader.getBlocksRead());
+
+		// the first link is in all blocks
+		reader.setLinkFilter("first"::equals);
+		reader.readFile(file);
+		manager.finishProcessing();
+
+		Assert.assertEquals(5, read.size());
+		Assert.assertEquals(4, reader.getBlocksRead());
+	}
+}
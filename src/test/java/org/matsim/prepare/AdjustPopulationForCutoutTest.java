@@ -0,0 +1,142 @@
+package org.matsim.prepare;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ProjectionUtils;
+import org.matsim.core.utils.geometry.geotools.MGC;
+import org.matsim.core.utils.gis.PolygonFeatureFactory;
+import org.matsim.core.utils.gis.ShapeFileWriter;
+import org.matsim.run.RunDuesseldorfScenario;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.List;
+
+public class AdjustPopulationForCutoutTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private Path network;
+	private Path population;
+	private Path shp;
+
+	/**
+	 * One long link, of which only the western part is within the shape.
+	 */
+	@Before
+	public void setUp() throws Exception {
+
+		Network net = NetworkUtils.createNetwork();
+		Node a = NetworkUtils.createAndAddNode(net, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(net, Id.createNodeId("b"), new Coord(3000, 0));
+		NetworkUtils.createAndAddLink(net, Id.createLinkId("l"), a, b, 3000, 14, 1800, 1);
+
+		network = tmp.getRoot().toPath().resolve("network.xml");
+		NetworkUtils.writeNetwork(net, network.toString());
+
+		Population pop = PopulationUtils.createPopulation(net);
+		addPerson(pop, "inside", new Coord(100, 50), new Coord(500, -120));
+		addPerson(pop, "mixed", new Coord(200, 300), new Coord(2500, 800));
+		addPerson(pop, "outside", new Coord(2000, -400), new Coord(2500, 800));
+		ProjectionUtils.putCRS(pop, RunDuesseldorfScenario.COORDINATE_SYSTEM);
+
+		population = tmp.getRoot().toPath().resolve("plans.xml.gz");
+		PopulationUtils.writePopulation(pop, population.toString());
+
+		PolygonFeatureFactory factory = new PolygonFeatureFactory.Builder()
+				.setCrs(MGC.getCRS(RunDuesseldorfScenario.COORDINATE_SYSTEM))
+				.setName("area")
+				.create();
+
+		shp = tmp.getRoot().toPath().resolve("area.shp");
+		ShapeFileWriter.writeGeometries(List.of(factory.createPolygon(new Coordinate[]{
+				new Coordinate(-10, -500), new Coordinate(1000, -500), new Coordinate(1000, 500), new Coordinate(-10, 500), new Coordinate(-10, -500)
+		})), shp.toString());
+	}
+
+	private static void addPerson(Population pop, String id, Coord home, Coord work) {
+
+		PopulationFactory f = pop.getFactory();
+		Person person = f.createPerson(Id.createPersonId(id));
+		Plan plan = f.createPlan();
+
+		Activity h = f.createActivityFromCoord("home", home);
+		h.setEndTime(8 * 3600);
+		plan.addActivity(h);
+		plan.addLeg(f.createLeg("car"));
+		plan.addActivity(f.createActivityFromCoord("work", work));
+
+		person.addPlan(plan);
+		pop.addPerson(person);
+	}
+
+	private Population run(String name, String... args) {
+
+		Path output = tmp.getRoot().toPath().resolve(name + ".xml.gz");
+
+		String[] all = new String[args.length + 7];
+		all[0] = population.toString();
+		all[1] = "--network";
+		all[2] = network.toString();
+		all[3] = "--shp";
+		all[4] = shp.toString();
+		all[5] = "--output";
+		all[6] = output.toString();
+		System.arraycopy(args, 0, all, 7, args.length);
+
+		Assert.assertEquals(0, new CommandLine(new AdjustPopulationForCutout()).execute(all));
+
+		return PopulationUtils.readPopulation(output.toString());
+	}
+
+	@Test
+	public void streamingIsEqual() {
+
+		Population memory = run("memory");
+		Population streaming = run("streaming", "--streaming");
+
+		Assert.assertEquals(RunDuesseldorfScenario.COORDINATE_SYSTEM, ProjectionUtils.getCRS(memory));
+		Assert.assertEquals(RunDuesseldorfScenario.COORDINATE_SYSTEM, ProjectionUtils.getCRS(streaming));
+
+		Assert.assertEquals(memory.getPersons().keySet(), streaming.getPersons().keySet());
+
+		for (Person p : memory.getPersons().values()) {
+
+			List<Activity> expected = TripStructureUtils.getActivities(p.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
+			List<Activity> actual = TripStructureUtils.getActivities(streaming.getPersons().get(p.getId()).getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
+
+			Assert.assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				Assert.assertEquals(expected.get(i).getCoord().getX(), actual.get(i).getCoord().getX(), 1e-6);
+				Assert.assertEquals(expected.get(i).getCoord().getY(), actual.get(i).getCoord().getY(), 1e-6);
+			}
+		}
+
+		// activities within the shape are not moved, the same coordinate outside is moved to the same position
+		Assert.assertEquals(new Coord(100, 50), firstActivity(streaming, "inside").getCoord());
+		Assert.assertEquals(lastActivity(streaming, "mixed").getCoord(), lastActivity(streaming, "outside").getCoord());
+		Assert.assertNotEquals(new Coord(2500, 800), lastActivity(streaming, "outside").getCoord());
+	}
+
+	private static Activity firstActivity(Population pop, String person) {
+		return (Activity) pop.getPersons().get(Id.createPersonId(person)).getSelectedPlan().getPlanElements().get(0);
+	}
+
+	private static Activity lastActivity(Population pop, String person) {
+		List<PlanElement> elements = pop.getPersons().get(Id.createPersonId(person)).getSelectedPlan().getPlanElements();
+		return (Activity) elements.get(elements.size() - 1);
+	}
+}
@@ -0,0 +1,108 @@
+package org.matsim.prepare;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+public class CountDataCacheTest {
+
+	private static final LocalDate TUE = LocalDate.of(2019, 1, 8);
+	private static final LocalDate WED = LocalDate.of(2019, 1, 9);
+	private static final LocalDate THU = LocalDate.of(2019, 1, 10);
+	private static final LocalDate SAT = LocalDate.of(2019, 1, 12);
+
+	private static final IntPredicate WEEKDAYS = d -> {
+		DayOfWeek dow = LocalDate.ofEpochDay(d).getDayOfWeek();
+		return dow == DayOfWeek.TUESDAY || dow == DayOfWeek.WEDNESDAY || dow == DayOfWeek.THURSDAY;
+	};
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static CountDataCache create() {
+
+		CountDataCache.Builder builder = new CountDataCache.Builder();
+
+		int a = builder.station("a");
+		builder.add(a, TUE, 7, 10);
+		builder.add(a, WED, 7, 20);
+		builder.add(a, THU, 7, 60);
+		builder.add(a, SAT, 7, 1000);
+		builder.add(a, TUE, 8, 5);
+		builder.add(a, WED, 8, 7);
+
+		// only data on excluded days
+		int b = builder.station("b");
+		builder.add(b, SAT, 0, 100);
+
+		// merged from another builder, with a different code for station a
+		CountDataCache.Builder other = new CountDataCache.Builder();
+		other.add(other.station("c"), THU, 23, 3);
+		other.add(other.station("a"), THU, 8, 9);
+		builder.addAll(other);
+
+		return builder.build();
+	}
+
+	@Test
+	public void mean() {
+
+		Map<String, double[]> result = create().aggregate(WEEKDAYS, CountDataCache.Aggregation.mean);
+
+		Assert.assertEquals(List.of("a", "c"), List.copyOf(result.keySet()));
+
+		double[] a = result.get("a");
+		Assert.assertEquals(30, a[7], 1e-6);
+		Assert.assertEquals(7, a[8], 1e-6);
+		Assert.assertTrue(Double.isNaN(a[0]));
+		Assert.assertEquals(3, result.get("c")[23], 1e-6);
+	}
+
+	@Test
+	public void median() {
+
+		Map<String, double[]> result = create().aggregate(WEEKDAYS, CountDataCache.Aggregation.median);
+
+		double[] a = result.get("a");
+		Assert.assertEquals(20, a[7], 1e-6);
+		Assert.assertEquals(7, a[8], 1e-6);
+		Assert.assertTrue(Double.isNaN(a[9]));
+
+		// without a filter the saturday is included
+		Map<String, double[]> all = create().aggregate(d -> true, CountDataCache.Aggregation.median);
+		Assert.assertEquals(40, all.get("a")[7], 1e-6);
+		Assert.assertEquals(100, all.get("b")[0], 1e-6);
+	}
+
+	@Test
+	public void writeAndRead() throws Exception {
+
+		CountDataCache data = create();
+
+		Path file = tmp.newFile("counts.bin").toPath();
+		data.write(file);
+
+		CountDataCache read = CountDataCache.read(file);
+
+		Assert.assertEquals(data.getStations(), read.getStations());
+		Assert.assertEquals(data.size(), read.size());
+
+		for (CountDataCache.Aggregation aggregation : CountDataCache.Aggregation.values()) {
+
+			Map<String, double[]> expected = data.aggregate(WEEKDAYS, aggregation);
+			Map<String, double[]> actual = read.aggregate(WEEKDAYS, aggregation);
+
+			Assert.assertEquals(expected.keySet(), actual.keySet());
+			for (String station : expected.keySet())
+				Assert.assertArrayEquals(station, expected.get(station), actual.get(station), 0);
+		}
+	}
+}
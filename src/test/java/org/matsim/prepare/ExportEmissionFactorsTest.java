@@ -0,0 +1,95 @@
+package org.matsim.prepare;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.contrib.emissions.EmissionUtils;
+import org.matsim.core.network.NetworkUtils;
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ExportEmissionFactorsTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void export() throws Exception {
+
+		Network net = NetworkUtils.createNetwork();
+		Node a = NetworkUtils.createAndAddNode(net, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(net, Id.createNodeId("b"), new Coord(1000, 0));
+		Link local = NetworkUtils.createAndAddLink(net, Id.createLinkId("local"), a, b, 1000, 14, 600, 1);
+		Link trunk = NetworkUtils.createAndAddLink(net, Id.createLinkId("trunk"), b, a, 1000, 28, 1800, 1);
+		Link unknown = NetworkUtils.createAndAddLink(net, Id.createLinkId("unknown"), a, b, 1000, 28, 1800, 1);
+		EmissionUtils.setHbefaRoadType(local, "URB/Local/50");
+		EmissionUtils.setHbefaRoadType(trunk, "URB/Trunk-City/70");
+		EmissionUtils.setHbefaRoadType(unknown, "RUR/MW/130");
+
+		Path network = tmp.getRoot().toPath().resolve("network.xml");
+		NetworkUtils.writeNetwork(net, network.toString());
+
+		Path warm = tmp.newFile("warm.csv").toPath();
+		Files.writeString(warm, String.join("\n",
+				"Case;VehCat;Year;TrafficScenario;Component;RoadCat;TrafficSit;Gradient;V_weighted;EFA_weighted",
+				"HBEFA;pass. car;2020;Average;CO2(total);Urban;URB/Local/50/Freeflow;0%;40;150",
+				"HBEFA;pass. car;2020;Average;NOx;Urban;URB/Local/50/Freeflow;0%;40;0.3",
+				"HBEFA;pass. car;2020;Average;CO2(total);Urban;URB/Local/50/Heavy;0%;20;250",
+				"HBEFA;HGV;2020;Average;CO2(total);Urban;URB/Local/50/Freeflow;-2%;40;600",
+				"HBEFA;HGV;2020;Average;CO2(total);Urban;URB/Local/50/Freeflow;2%;40;800",
+				"HBEFA;pass. car;2020;Average;CO2(total);Urban;URB/Trunk-City/70/Freeflow;0%;60;130",
+				"HBEFA;pass. car;2020;Average;FC;Urban;URB/Trunk-City/70/Freeflow;0%;60;40",
+				""));
+
+		Path cold = tmp.newFile("cold.csv").toPath();
+		Files.writeString(cold, String.join("\n",
+				"Case;VehCat;Year;TrafficScenario;Component;RoadCat;AmbientCondPattern;EFA_weighted",
+				"HBEFA;pass. car;2020;Average;CO2(total);Urban;T,0-1h,0-1km;5",
+				"HBEFA;pass. car;2020;Average;CO2(total);Urban;T,>12h,1-2km;20",
+				"HBEFA;pass. car;2020;Average;NOx;Urban;T,>12h,1-2km;0.5",
+				""));
+
+		Path output = tmp.getRoot().toPath().resolve("factors.csv");
+
+		int code = new CommandLine(new ExportEmissionFactors()).execute("--network", network.toString(),
+				"--warm", warm.toString(), "--cold", cold.toString(), "--pollutant", "CO2(total)=CO2_TOTAL,NOx=NOx", "--output", output.toString());
+
+		Assert.assertEquals(0, code);
+
+		Map<String, CSVRecord> rows = new HashMap<>();
+		try (CSVParser parser = new CSVParser(Files.newBufferedReader(output), CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader())) {
+			Assert.assertEquals(List.of("link", "category", "CO2_TOTAL", "NOx"), parser.getHeaderNames());
+			for (CSVRecord r : parser)
+				rows.put(r.get("link") + "-" + r.get("category"), r);
+		}
+
+		// no factors for the motorway
+		Assert.assertEquals(4, rows.size());
+
+		assertRow(rows.get("local-car"), 150, 0.3);
+		// mean over gradients
+		assertRow(rows.get("local-freight"), 700, 0);
+		assertRow(rows.get("trunk-car"), 130, 0);
+		assertRow(rows.get("-car"), 20, 0.5);
+	}
+
+	private static void assertRow(CSVRecord row, double co2, double nox) {
+		Assert.assertNotNull(row);
+		Assert.assertEquals(co2, Double.parseDouble(row.get("CO2_TOTAL")), 1e-6);
+		Assert.assertEquals(nox, Double.parseDouble(row.get("NOx")), 1e-6);
+	}
+}
@@ -0,0 +1,68 @@
+package org.matsim.prepare;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.utils.geometry.CoordUtils;
+
+import java.util.Random;
+
+public class LinkIndexTest {
+
+	@Test
+	public void nearest() {
+
+		Network network = NetworkUtils.createNetwork();
+		Random rnd = new Random(0);
+
+		Node[] nodes = new Node[200];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = NetworkUtils.createAndAddNode(network, Id.createNodeId("n" + i), new Coord(rnd.nextDouble() * 10_000, rnd.nextDouble() * 10_000));
+		}
+
+		for (int i = 0; i < 500; i++) {
+			Node from = nodes[rnd.nextInt(nodes.length)];
+			Node to = nodes[rnd.nextInt(nodes.length)];
+			NetworkUtils.createAndAddLink(network, Id.createLinkId("l" + i), from, to, 100, 10, 600, 1);
+		}
+
+		LinkIndex index = new LinkIndex(network);
+
+		for (int i = 0; i < 1000; i++) {
+
+			Coord coord = new Coord(rnd.nextDouble() * 12_000 - 1_000, rnd.nextDouble() * 12_000 - 1_000);
+
+			Link expected = NetworkUtils.getNearestLinkExactly(network, coord);
+			Coord point = NetworkUtils.findNearestPointOnLink(coord, expected);
+
+			LinkIndex.Match match = index.nearest(coord);
+
+			Assert.assertEquals(CoordUtils.calcEuclideanDistance(coord, point), match.getDistance(), 1e-6);
+			Assert.assertEquals(CoordUtils.calcEuclideanDistance(coord, match.getPoint()), match.getDistance(), 1e-6);
+		}
+	}
+
+	@Test
+	public void query() {
+
+		Network network = NetworkUtils.createNetwork();
+
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(100, 0));
+		Node c = NetworkUtils.createAndAddNode(network, Id.createNodeId("c"), new Coord(100, 100));
+
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("ab"), a, b, 100, 10, 600, 1);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("bc"), b, c, 100, 10, 600, 1);
+
+		LinkIndex index = new LinkIndex(network);
+
+		Assert.assertEquals(1, index.query(new Coord(50, 10), 20).size());
+		Assert.assertEquals(2, index.query(new Coord(90, 10), 20).size());
+		Assert.assertEquals(Id.createLinkId("bc"), index.query(new Coord(95, 10), 20).get(0).getLink().getId());
+	}
+}
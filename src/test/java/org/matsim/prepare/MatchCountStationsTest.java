@@ -0,0 +1,108 @@
+package org.matsim.prepare;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MatchCountStationsTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private Path network;
+	private Path stations;
+
+	/**
+	 * Two one-way links in opposite directions, the westbound link is closer to the stations.
+	 */
+	@Before
+	public void setUp() throws Exception {
+
+		Network net = NetworkUtils.createNetwork();
+		Node w1 = NetworkUtils.createAndAddNode(net, Id.createNodeId("w1"), new Coord(-100, 10));
+		Node e1 = NetworkUtils.createAndAddNode(net, Id.createNodeId("e1"), new Coord(100, 10));
+		Node e2 = NetworkUtils.createAndAddNode(net, Id.createNodeId("e2"), new Coord(100, 2));
+		Node w2 = NetworkUtils.createAndAddNode(net, Id.createNodeId("w2"), new Coord(-100, 2));
+
+		NetworkUtils.createAndAddLink(net, Id.createLinkId("east"), w1, e1, 200, 10, 600, 1);
+		NetworkUtils.createAndAddLink(net, Id.createLinkId("west"), e2, w2, 200, 10, 600, 1);
+
+		network = tmp.newFile("network.xml").toPath();
+		NetworkUtils.writeNetwork(net, network.toString());
+
+		stations = tmp.newFile("stations.csv").toPath();
+		Files.writeString(stations, String.join("\n",
+				"station;x;y;bearing",
+				"S1_R1;0;5;90",
+				"S1_R2;0;5;270",
+				// only one direction and no bearing
+				"S2_R1;0;5;",
+				""));
+	}
+
+	private Path run(String format) throws Exception {
+
+		Path output = tmp.getRoot().toPath().resolve(format + ".csv");
+		int code = new CommandLine(new MatchCountStations()).execute(stations.toString(),
+				"--network", network.toString(), "--format", format, "--output", output.toString());
+
+		Assert.assertEquals(0, code);
+		return output;
+	}
+
+	@Test
+	public void direction() throws Exception {
+
+		Map<String, String> links = new HashMap<>();
+		try (CSVParser parser = new CSVParser(Files.newBufferedReader(run("city")), CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader())) {
+			for (CSVRecord record : parser)
+				links.put(record.get("Station"), record.get("Link-Id"));
+		}
+
+		// the link in the driving direction wins over the closer one
+		Assert.assertEquals("east", links.get("S1_R1"));
+		Assert.assertEquals("west", links.get("S1_R2"));
+
+		// without a bearing the closest link is used
+		Assert.assertEquals("west", links.get("S2_R1"));
+	}
+
+	@Test
+	public void bast() throws Exception {
+
+		Map<String, NodeMatcher.MatchedLinkID> matching = new NodeMatcher().parseNodeMatching(run("bast").toString());
+
+		// S2 has only one direction and is not written
+		Assert.assertEquals(2, matching.size());
+
+		NodeMatcher.MatchedLinkID r1 = matching.get("S1_R1");
+		Assert.assertEquals("east", r1.getLinkID());
+		Assert.assertEquals("w1", r1.getFromID());
+		Assert.assertEquals("e1", r1.getToID());
+
+		NodeMatcher.MatchedLinkID r2 = matching.get("S1_R2");
+		Assert.assertEquals("west", r2.getLinkID());
+		Assert.assertEquals("e2", r2.getFromID());
+		Assert.assertEquals("w2", r2.getToID());
+
+		Assert.assertEquals(List.of("DZ_Nr;Node_from_R1;Node_to_R1;Link_ID_R1;Node_from_R2;Node_to_R2;Link_ID_R2", "S1;w1;e1;east;e2;w2;west"),
+				Files.readAllLines(run("bast")));
+	}
+}
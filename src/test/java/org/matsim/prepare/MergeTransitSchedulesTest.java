@@ -0,0 +1,88 @@
+package org.matsim.prepare;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.nio.file.Path;
+import java.util.List;
+
+public class MergeTransitSchedulesTest {
+
+	/**
+	 * Feed with one line between two stops and one vehicle.
+	 */
+	private static Scenario feed(String from, Coord fromCoord, String to) {
+
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+
+		TransitStopFacility a = f.createTransitStopFacility(Id.create(from, TransitStopFacility.class), fromCoord, false);
+		TransitStopFacility b = f.createTransitStopFacility(Id.create(to, TransitStopFacility.class), new Coord(1000, 0), false);
+		schedule.addStopFacility(a);
+		schedule.addStopFacility(b);
+
+		TransitRoute route = f.createTransitRoute(Id.create("r", TransitRoute.class), null,
+				List.of(f.createTransitRouteStop(a, 0, 0), f.createTransitRouteStop(b, 60, 60)), "bus");
+
+		Departure d = f.createDeparture(Id.create("d", Departure.class), 3600);
+		d.setVehicleId(Id.createVehicleId("v"));
+		route.addDeparture(d);
+
+		TransitLine line = f.createTransitLine(Id.create("1", TransitLine.class));
+		line.addRoute(route);
+		schedule.addTransitLine(line);
+
+		Vehicles vehicles = scenario.getTransitVehicles();
+		VehicleType type = vehicles.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+		vehicles.addVehicleType(type);
+		vehicles.addVehicle(vehicles.getFactory().createVehicle(Id.createVehicleId("v"), type));
+
+		return scenario;
+	}
+
+	@Test
+	public void sharedStops() {
+
+		Scenario target = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+
+		MergeTransitSchedules.merge(target, feed("a", new Coord(0, 0), "shared"), "vrr");
+		MergeTransitSchedules.merge(target, feed("b", new Coord(0, 500), "shared"), "vrs");
+
+		TransitSchedule schedule = target.getTransitSchedule();
+
+		Assert.assertEquals(3, schedule.getFacilities().size());
+		Assert.assertEquals(2, schedule.getTransitLines().size());
+
+		TransitLine renamed = schedule.getTransitLines().get(Id.create("vrs_1", TransitLine.class));
+		Assert.assertNotNull(renamed);
+
+		// both lines end at the same stop object
+		TransitRoute first = schedule.getTransitLines().get(Id.create("1", TransitLine.class)).getRoutes().values().iterator().next();
+		TransitRoute second = renamed.getRoutes().values().iterator().next();
+		Assert.assertSame(first.getStops().get(1).getStopFacility(), second.getStops().get(1).getStopFacility());
+
+		Id<Vehicle> vehicle = second.getDepartures().values().iterator().next().getVehicleId();
+		Assert.assertEquals(Id.createVehicleId("vrs_v"), vehicle);
+		Assert.assertEquals(2, target.getTransitVehicles().getVehicles().size());
+		Assert.assertEquals(1, target.getTransitVehicles().getVehicleTypes().size());
+	}
+
+	@Test
+	public void names() {
+
+		Path schedule = Path.of("scenarios/input/gtfs/duesseldorf-v1.7-vrr-transitSchedule.xml.gz");
+
+		Assert.assertEquals("duesseldorf-v1.7-vrr", MergeTransitSchedules.feedName(schedule));
+		Assert.assertEquals(Path.of("scenarios/input/gtfs/duesseldorf-v1.7-vrr-transitVehicles.xml.gz"), MergeTransitSchedules.vehiclesPath(schedule));
+	}
+}
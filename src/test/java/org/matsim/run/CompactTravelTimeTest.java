@@ -0,0 +1,129 @@
+package org.matsim.run;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.TravelTimeCalculator;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompactTravelTimeTest {
+
+	private static final Id<Link> L1 = Id.createLinkId("l1");
+	private static final Id<Link> L2 = Id.createLinkId("l2");
+
+	@Test
+	public void sameAsCalculator() {
+
+		Network network = NetworkUtils.createNetwork();
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(1000, 0));
+		Node c = NetworkUtils.createAndAddNode(network, Id.createNodeId("c"), new Coord(1500, 0));
+
+		// free flow of 100s and 50s
+		NetworkUtils.createAndAddLink(network, L1, a, b, 1000, 10, 600, 1);
+		NetworkUtils.createAndAddLink(network, L2, b, c, 500, 10, 600, 1);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("unused"), c, a, 1500, 10, 600, 1);
+
+		TravelTimeCalculatorConfigGroup config = new TravelTimeCalculatorConfigGroup();
+		config.setTraveltimeBinSize(900);
+		config.setMaxTime(4 * 3600);
+		config.setCalculateLinkToLinkTravelTimes(false);
+		config.setAnalyzedModesAsString("car");
+		config.setFilterModes(true);
+
+		List<Event> events = new ArrayList<>();
+
+		// starts on l1, only l2 is traversed completely
+		departure(events, 0, "v1", L1, "car");
+		events.add(new LinkLeaveEvent(10, vehicle("v1"), L1));
+		events.add(new LinkEnterEvent(50, vehicle("v1"), L2));
+		events.add(new LinkLeaveEvent(2050, vehicle("v1"), L2));
+
+		// faster than the previous bin allows, will be consolidated
+		departure(events, 900, "v2", L1, "car");
+		events.add(new LinkEnterEvent(950, vehicle("v2"), L2));
+		events.add(new LinkLeaveEvent(1000, vehicle("v2"), L2));
+
+		// average of two vehicles
+		departure(events, 1700, "v3", L2, "car");
+		events.add(new LinkEnterEvent(1800, vehicle("v3"), L1));
+		events.add(new LinkEnterEvent(1810, vehicle("v4"), L1));
+		events.add(new LinkLeaveEvent(2010, vehicle("v4"), L1));
+		events.add(new LinkLeaveEvent(2100, vehicle("v3"), L1));
+
+		// not an analyzed mode
+		departure(events, 50, "bike", L2, "bike");
+		events.add(new LinkEnterEvent(100, vehicle("bike"), L1));
+		events.add(new LinkLeaveEvent(5000, vehicle("bike"), L1));
+
+		// arrives on the link
+		departure(events, 2900, "v5", L1, "car");
+		events.add(new LinkEnterEvent(3000, vehicle("v5"), L2));
+		events.add(new VehicleLeavesTrafficEvent(3100, Id.createPersonId("v5"), L2, vehicle("v5"), "car", 1.0));
+
+		// after the max time, goes into the last bin
+		events.add(new LinkEnterEvent(20000, vehicle("v6"), L1));
+		events.add(new LinkLeaveEvent(20500, vehicle("v6"), L1));
+
+		events.sort((e1, e2) -> Double.compare(e1.getTime(), e2.getTime()));
+
+		TravelTimeCalculator calculator = TravelTimeCalculator.create(network, config);
+		CompactTravelTime.Collector collector = new CompactTravelTime.Collector(network, config, 0);
+
+		EventsManager manager = EventsUtils.createEventsManager();
+		manager.addHandler(calculator);
+		manager.addHandler(collector);
+		manager.initProcessing();
+		events.forEach(manager::processEvent);
+		manager.finishProcessing();
+
+		TravelTime expected = calculator.getLinkTravelTimes();
+		CompactTravelTime actual = collector.build();
+
+		for (Link link : network.getLinks().values()) {
+			for (int bin = 0; bin < 17; bin++) {
+				for (double t : new double[]{bin * 900, bin * 900 + 450}) {
+					Assert.assertEquals(link.getId() + " at " + t, expected.getLinkTravelTime(link, t, null, null),
+							actual.getLinkTravelTime(link, t, null, null), 1e-3);
+				}
+			}
+		}
+
+		Link l1 = network.getLinks().get(L1);
+		Link l2 = network.getLinks().get(L2);
+
+		Assert.assertEquals(100, actual.getLinkTravelTime(l1, 0, null, null), 1e-3);
+		Assert.assertEquals(250, actual.getLinkTravelTime(l1, 1800, null, null), 1e-3);
+		Assert.assertEquals(500, actual.getLinkTravelTime(l1, 16 * 900, null, null), 1e-3);
+		Assert.assertEquals(2000, actual.getLinkTravelTime(l2, 0, null, null), 1e-3);
+		Assert.assertEquals(1100, actual.getLinkTravelTime(l2, 900, null, null), 1e-3);
+		Assert.assertEquals(200, actual.getLinkTravelTime(l2, 1800, null, null), 1e-3);
+		Assert.assertEquals(50, actual.getLinkTravelTime(l2, 2700, null, null), 1e-3);
+
+		// only bins that deviate from free flow
+		Assert.assertEquals(5, actual.size());
+	}
+
+	private static Id<Vehicle> vehicle(String id) {
+		return Id.createVehicleId(id);
+	}
+
+	private static void departure(List<Event> events, double time, String vehicle, Id<Link> link, String mode) {
+		Id<Person> person = Id.createPersonId(vehicle);
+		events.add(new VehicleEntersTrafficEvent(time, person, link, vehicle(vehicle), mode, 1.0));
+	}
+}
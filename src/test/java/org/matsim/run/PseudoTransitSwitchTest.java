@@ -0,0 +1,173 @@
+package org.matsim.run;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.TransitDriverStartsEvent;
+import org.matsim.api.core.v01.events.handler.TransitDriverStartsEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.StrategyConfigGroup;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.replanning.strategies.DefaultPlanStrategiesModule;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class PseudoTransitSwitchTest {
+
+	@Rule
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	private static Config config(int first, int last, double fraction) {
+		Config config = ConfigUtils.createConfig();
+		config.controler().setFirstIteration(first);
+		config.controler().setLastIteration(last);
+		config.strategy().setFractionOfIterationsToDisableInnovation(fraction);
+		return config;
+	}
+
+	@Test
+	public void isSimulated() {
+
+		Config config = config(0, 10, 0.8);
+		Assert.assertFalse(PseudoTransitSwitch.isSimulated(config, 0, false));
+		Assert.assertFalse(PseudoTransitSwitch.isSimulated(config, 7, false));
+		Assert.assertTrue(PseudoTransitSwitch.isSimulated(config, 8, false));
+		Assert.assertTrue(PseudoTransitSwitch.isSimulated(config, 10, true));
+
+		// relative to the first iteration
+		config = config(10, 20, 0.5);
+		Assert.assertFalse(PseudoTransitSwitch.isSimulated(config, 14, false));
+		Assert.assertTrue(PseudoTransitSwitch.isSimulated(config, 15, false));
+
+		// innovation is never disabled by default, only the last iteration is simulated
+		config = ConfigUtils.createConfig();
+		config.controler().setLastIteration(10);
+		Assert.assertEquals(Double.POSITIVE_INFINITY, config.strategy().getFractionOfIterationsToDisableInnovation(), 0);
+		Assert.assertFalse(PseudoTransitSwitch.isSimulated(config, 0, false));
+		Assert.assertFalse(PseudoTransitSwitch.isSimulated(config, 9, false));
+		Assert.assertTrue(PseudoTransitSwitch.isSimulated(config, 10, true));
+
+		// a single iteration is always simulated
+		config = ConfigUtils.createConfig();
+		config.controler().setLastIteration(0);
+		Assert.assertTrue(PseudoTransitSwitch.isSimulated(config, 0, true));
+	}
+
+	@Test
+	public void transitDrivers() {
+
+		Config config = config(0, 3, 0.5);
+		config.controler().setOutputDirectory(utils.getOutputDirectory());
+		config.controler().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
+		config.controler().setCreateGraphs(false);
+		config.controler().setDumpDataAtEnd(false);
+		config.transit().setUseTransit(true);
+		config.transit().setTransitModes(Set.of("pt"));
+		config.qsim().setEndTime(12 * 3600);
+
+		StrategyConfigGroup.StrategySettings strategy = new StrategyConfigGroup.StrategySettings();
+		strategy.setStrategyName(DefaultPlanStrategiesModule.DefaultSelector.ChangeExpBeta);
+		strategy.setWeight(1);
+		config.strategy().addStrategySettings(strategy);
+
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		createTransit(scenario);
+
+		Map<Integer, Integer> drivers = new TreeMap<>();
+
+		Controler controler = new Controler(scenario);
+		controler.addOverridingModule(new AbstractModule() {
+			@Override
+			public void install() {
+				addControlerListenerBinding().to(PseudoTransitSwitch.class);
+				bindMobsim().toProvider(PseudoTransitSwitch.class);
+
+				addEventHandlerBinding().toInstance(new TransitDriverStartsEventHandler() {
+
+					private int iteration;
+
+					@Override
+					public void reset(int iteration) {
+						this.iteration = iteration;
+					}
+
+					@Override
+					public void handleEvent(TransitDriverStartsEvent event) {
+						drivers.merge(iteration, 1, Integer::sum);
+					}
+				});
+			}
+		});
+
+		controler.run();
+
+		// switch at iteration 0 + 3 * 0.5
+		Assert.assertNull(drivers.get(0));
+		Assert.assertEquals(Integer.valueOf(2), drivers.get(1));
+		Assert.assertEquals(Integer.valueOf(2), drivers.get(2));
+		Assert.assertEquals(Integer.valueOf(2), drivers.get(3));
+	}
+
+	/**
+	 * One line with two departures on a network of two links.
+	 */
+	private static void createTransit(Scenario scenario) {
+
+		Network network = scenario.getNetwork();
+		Node a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		Node b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(1000, 0));
+		Node c = NetworkUtils.createAndAddNode(network, Id.createNodeId("c"), new Coord(2000, 0));
+		Link l1 = NetworkUtils.createAndAddLink(network, Id.createLinkId("l1"), a, b, 1000, 14, 1800, 1);
+		Link l2 = NetworkUtils.createAndAddLink(network, Id.createLinkId("l2"), b, c, 1000, 14, 1800, 1);
+		l1.setAllowedModes(Set.of("car", "pt"));
+		l2.setAllowedModes(Set.of("car", "pt"));
+
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+
+		TransitStopFacility s1 = f.createTransitStopFacility(Id.create("s1", TransitStopFacility.class), b.getCoord(), false);
+		s1.setLinkId(l1.getId());
+		TransitStopFacility s2 = f.createTransitStopFacility(Id.create("s2", TransitStopFacility.class), c.getCoord(), false);
+		s2.setLinkId(l2.getId());
+		schedule.addStopFacility(s1);
+		schedule.addStopFacility(s2);
+
+		TransitRoute route = f.createTransitRoute(Id.create("r", TransitRoute.class),
+				RouteUtils.createLinkNetworkRouteImpl(l1.getId(), List.of(), l2.getId()),
+				List.of(f.createTransitRouteStop(s1, 0, 0), f.createTransitRouteStop(s2, 120, 120)), "bus");
+
+		Vehicles vehicles = scenario.getTransitVehicles();
+		VehicleType bus = vehicles.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+		vehicles.addVehicleType(bus);
+
+		for (int i = 0; i < 2; i++) {
+			Departure d = f.createDeparture(Id.create("d" + i, Departure.class), 8 * 3600 + i * 600);
+			d.setVehicleId(Id.createVehicleId("bus" + i));
+			route.addDeparture(d);
+			vehicles.addVehicle(vehicles.getFactory().createVehicle(d.getVehicleId(), bus));
+		}
+
+		TransitLine line = f.createTransitLine(Id.create("line", TransitLine.class));
+		line.addRoute(route);
+		schedule.addTransitLine(line);
+	}
+}
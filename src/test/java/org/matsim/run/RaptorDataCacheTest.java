@@ -0,0 +1,70 @@
+package org.matsim.run;
+
+import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
+import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+public class RaptorDataCacheTest {
+
+	private static Scenario scenario() {
+
+		Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory f = schedule.getFactory();
+
+		schedule.addStopFacility(f.createTransitStopFacility(Id.create("a", TransitStopFacility.class), new Coord(0, 0), false));
+		schedule.addStopFacility(f.createTransitStopFacility(Id.create("b", TransitStopFacility.class), new Coord(200, 0), false));
+
+		return scenario;
+	}
+
+	@Test
+	public void hash() {
+
+		Scenario scenario = scenario();
+		RaptorStaticConfig config = RaptorUtils.createStaticConfig(scenario.getConfig());
+
+		String hash = RaptorDataCache.hash(scenario, config);
+		Assert.assertEquals(hash, RaptorDataCache.hash(scenario(), config));
+
+		config.setBeelineWalkConnectionDistance(config.getBeelineWalkConnectionDistance() + 100);
+		Assert.assertNotEquals(hash, RaptorDataCache.hash(scenario, config));
+
+		Scenario moved = scenario();
+		moved.getTransitSchedule().getFacilities().get(Id.create("b", TransitStopFacility.class)).setCoord(new Coord(300, 0));
+		Assert.assertNotEquals(hash, RaptorDataCache.hash(moved, RaptorUtils.createStaticConfig(moved.getConfig())));
+	}
+
+	@Test
+	public void reuse() {
+
+		Scenario scenario = scenario();
+		RaptorStaticConfig config = RaptorUtils.createStaticConfig(scenario.getConfig());
+
+		RaptorDataCache.Entry first = RaptorDataCache.get(scenario, config, null);
+
+		// same content in a new scenario
+		Scenario other = scenario();
+		RaptorDataCache.Entry second = RaptorDataCache.get(other, RaptorUtils.createStaticConfig(other.getConfig()), null);
+
+		Assert.assertTrue(second.isReused());
+		Assert.assertSame(first.getData(), second.getData());
+		Assert.assertEquals(first.getHash(), second.getHash());
+
+		// changed config needs new data
+		config.setMinimalTransferTime(config.getMinimalTransferTime() + 60);
+		RaptorDataCache.Entry third = RaptorDataCache.get(scenario, config, null);
+
+		Assert.assertFalse(third.isReused());
+		Assert.assertNotSame(first.getData(), third.getData());
+	}
+}
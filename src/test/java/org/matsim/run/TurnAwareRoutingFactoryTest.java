@@ -0,0 +1,135 @@
+package org.matsim.run;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.lanes.Lane;
+import org.matsim.lanes.Lanes;
+import org.matsim.lanes.LanesFactory;
+import org.matsim.lanes.LanesToLinkAssignment;
+import org.matsim.lanes.LanesUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class TurnAwareRoutingFactoryTest {
+
+	private Network network;
+	private Node a;
+	private Node j;
+	private Node b;
+	private Node c;
+
+	/**
+	 * Junction j with the links a -> j -> b straight on, and the detour j -> c -> b.
+	 */
+	@Before
+	public void setUp() {
+
+		network = NetworkUtils.createNetwork();
+		network.setCapacityPeriod(3600);
+
+		a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+		j = NetworkUtils.createAndAddNode(network, Id.createNodeId("j"), new Coord(100, 0));
+		b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(200, 0));
+		c = NetworkUtils.createAndAddNode(network, Id.createNodeId("c"), new Coord(100, 100));
+
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("aj"), a, j, 100, 10, 3600, 1);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("jb"), j, b, 100, 10, 3600, 1);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("jc"), j, c, 100, 10, 3600, 1);
+		NetworkUtils.createAndAddLink(network, Id.createLinkId("cb"), c, b, 150, 10, 3600, 1);
+	}
+
+	private LeastCostPathCalculator calculator(Lanes lanes) {
+		FreeSpeedTravelTime tt = new FreeSpeedTravelTime();
+		return new TurnAwareRoutingFactory(lanes).createPathCalculator(network, new OnlyTimeDependentTravelDisutility(tt), tt);
+	}
+
+	private static List<String> ids(LeastCostPathCalculator.Path path) {
+		return path.links.stream().map(l -> l.getId().toString()).collect(Collectors.toList());
+	}
+
+	private void setEfficiency(String toLink, String efficiency) {
+		Map<String, String> eff = new HashMap<>();
+		eff.put(toLink, efficiency);
+		network.getLinks().get(Id.createLinkId("aj")).getAttributes().putAttribute(TurnDependentFlowEfficiencyCalculator.ATTR_TURN_EFFICIENCY, eff);
+	}
+
+	@Test
+	public void allowedTurn() {
+
+		setEfficiency("jc", "0.5");
+
+		LeastCostPathCalculator.Path path = calculator(null).calcLeastCostPath(a, c, 0, null, null);
+
+		Assert.assertEquals(List.of("aj", "jc"), ids(path));
+		Assert.assertEquals(List.of(a, j, c), path.nodes);
+
+		// half efficiency doubles the time gap of one second on the incoming link
+		Assert.assertEquals(10 + 1 + 10, path.travelTime, 1e-6);
+	}
+
+	@Test
+	public void bannedTurn() {
+
+		setEfficiency("jb", "0");
+
+		LeastCostPathCalculator.Path path = calculator(null).calcLeastCostPath(a, b, 0, null, null);
+
+		Assert.assertEquals(List.of("aj", "jc", "cb"), ids(path));
+		Assert.assertEquals(35, path.travelTime, 1e-6);
+	}
+
+	@Test
+	public void bannedByLanes() {
+
+		setEfficiency("jc", "1");
+
+		Lanes lanes = LanesUtils.createLanesContainer();
+		LanesFactory f = lanes.getFactory();
+		LanesToLinkAssignment l2l = f.createLanesToLinkAssignment(Id.createLinkId("aj"));
+		Lane lane = f.createLane(Id.create("aj.1", Lane.class));
+		lane.addToLinkId(Id.createLinkId("jc"));
+		l2l.addLane(lane);
+		lanes.addLanesToLinkAssignment(l2l);
+
+		LeastCostPathCalculator.Path path = calculator(lanes).calcLeastCostPath(a, b, 0, null, null);
+
+		Assert.assertEquals(List.of("aj", "jc", "cb"), ids(path));
+	}
+
+	@Test
+	public void sameNode() {
+
+		setEfficiency("jb", "0");
+
+		// leg from a link ending at the junction onto an adjacent link
+		LeastCostPathCalculator.Path path = calculator(null).calcLeastCostPath(j, j, 0, null, null);
+
+		Assert.assertNotNull(path);
+		Assert.assertTrue(path.links.isEmpty());
+		Assert.assertEquals(List.of(j), path.nodes);
+		Assert.assertEquals(0, path.travelTime, 0);
+	}
+
+	@Test
+	public void fromAndToJunction() {
+
+		setEfficiency("jb", "0");
+
+		// no turn applies when starting at or ending at the junction
+		Assert.assertEquals(List.of("jb"), ids(calculator(null).calcLeastCostPath(j, b, 0, null, null)));
+		Assert.assertEquals(List.of("aj"), ids(calculator(null).calcLeastCostPath(a, j, 0, null, null)));
+	}
+}
@@ -1,5 +1,6 @@
 package routerTesting;
 
+import org.matsim.analysis.TravelTimeMatrix;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.network.Link;
@@ -13,11 +14,12 @@ import org.matsim.core.router.util.LeastCostPathCalculator.Path;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.scenario.ScenarioUtils;
 
-import java.util.Map;
+import java.nio.file.Paths;
 
 public class RouterAnalysisRun {
 	private final static String CONFIG_FILE = "C:\\Users\\cluac\\MATSimScenarios\\Dusseldorf\\Scenario\\duesseldorf-v1.2-10pct.config.xml";
 	private final static String EVENTS_FILE = "C:\\Users\\cluac\\MATSimScenarios\\Dusseldorf\\output\\v1.2-10pct-01\\duesseldorf-10pct-no-lanes.output_events.xml.gz";
+	private final static String MATRIX_FILE = "C:\\Users\\cluac\\MATSimScenarios\\Dusseldorf\\output\\v1.2-10pct-01\\duesseldorf-10pct-no-lanes.travel_times.bin";
 
 	// Route to calculate
 	private final static String[][] LINK_PAIRS = { { "5098457#2", "12152142", "36000" },
@@ -29,8 +31,7 @@ public class RouterAnalysisRun {
 		Network network = scenario.getNetwork();
 
 		RouterAnalysisWithTraffic routerAnalysisWithTraffic = new RouterAnalysisWithTraffic(EVENTS_FILE, network);
-		Map<Double, Map<String, Double>> linkTravelTimeMap = routerAnalysisWithTraffic.processEventsFile();
-		RouterTestingTravelTime travelTime = new RouterTestingTravelTime(linkTravelTimeMap, network);
+		TravelTimeMatrix travelTime = routerAnalysisWithTraffic.processEventsFile(Paths.get(MATRIX_FILE));
 
 		FastAStarLandmarksFactory fastAStarLandmarksFactory = new FastAStarLandmarksFactory(8);
 		RandomizingTimeDistanceTravelDisutilityFactory disutilityFactory = new RandomizingTimeDistanceTravelDisutilityFactory(